@@ -0,0 +1,151 @@
+package sb.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Admission control, so overload is shed at the door instead of taking the host down. The accept
+// loops check the connection caps (overall and per client address) before a connection gets any
+// thread or buffer; joins (NICK and RESUME) share one server-wide token bucket, and every connection
+// has its own bucket for MSG. A client that is turned away hears "[busy] retry-after=<seconds> <reason>",
+// with the delay spread over --retry-after to twice that so a reconnect storm comes back spread out.
+final class Admission {
+
+    enum Reason { CONNECTIONS, ADDRESS, JOINS, MESSAGES }
+
+    // --accept-backlog, --max-connections, --max-connections-per-ip (0 = no limit),
+    // --join-rate and --join-burst, --message-rate and --message-burst (rate 0 = no limit), --retry-after
+    static int backlog = 1024;
+    static int maxConnections = 10_000;
+    static int maxPerAddress = 0;
+    static double messageRate = 20;
+    static double messageBurst = 40;
+    static int retryAfterSeconds = 5;
+    private static TokenBucket joins = new TokenBucket(500, 1000); // shared, guarded by itself
+
+    private static final AtomicInteger open = new AtomicInteger();
+    private static final Map<InetAddress, Integer> perAddress = new ConcurrentHashMap<>();
+
+    static void configure(ServerOptions options) {
+        backlog = Math.max(0, options.integer("accept-backlog", backlog));
+        maxConnections = Math.max(0, options.integer("max-connections", maxConnections));
+        maxPerAddress = Math.max(0, options.integer("max-connections-per-ip", maxPerAddress));
+        int joinRate = options.integer("join-rate", 500);
+        joins = new TokenBucket(joinRate, options.integer("join-burst", joinRate * 2));
+        messageRate = options.integer("message-rate", (int) messageRate);
+        messageBurst = options.integer("message-burst", (int) Math.max(1, messageRate * 2));
+        retryAfterSeconds = Math.max(1, options.integer("retry-after", retryAfterSeconds));
+    }
+
+    // Called by the accept loops for every new connection. Returns the client's address, which goes to
+    // release() once the connection ends, or null after turning the connection away and closing it.
+    // TLS connections are closed without the "[busy]" line, which only a plain connection could read.
+    static InetAddress admit(SocketChannel ch, boolean tls) {
+        InetAddress address;
+        try {
+            address = ((InetSocketAddress) ch.getRemoteAddress()).getAddress();
+        } catch (IOException e) {
+            close(ch);
+            return null;
+        }
+        Reason reason = take(address);
+        if (reason == null) return address;
+
+        Metrics.rejected(reason);
+        if (!tls) {
+            String line = busy(0, reason == Reason.CONNECTIONS
+                    ? "The server is full." : "Too many connections from your address.");
+            try {
+                // never blocks the accept loop: a line the socket does not take at once is not sent
+                ch.configureBlocking(false);
+                ch.write(ByteBuffer.wrap((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8)));
+                ch.shutdownOutput();
+                // closing with unread input would reset the connection and lose the line on its way,
+                // so take in whatever the client already sent (typically its NICK)
+                ch.read(ByteBuffer.allocate(4096));
+            } catch (IOException ignored) {}
+        }
+        close(ch);
+        return null;
+    }
+
+    // The next connection for an accept loop. A failed accept (typically out of file descriptors)
+    // is logged and retried after a pause, up to a second, so the server keeps serving; it only
+    // ends with the server socket.
+    static SocketChannel accept(ServerSocketChannel server) throws IOException {
+        long pause = 10;
+        while (true) {
+            try {
+                return server.accept();
+            } catch (IOException e) {
+                if (!server.isOpen()) throw e;
+                Log.warn("Accept failed, retrying in " + pause + " ms: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Accept loop interrupted");
+            }
+            pause = Math.min(1000, pause * 2);
+        }
+    }
+
+    static void release(InetAddress address) {
+        open.decrementAndGet();
+        if (maxPerAddress > 0) perAddress.computeIfPresent(address, (a, n) -> n <= 1 ? null : n - 1);
+    }
+
+    // null admits a NICK or RESUME; otherwise the line to send before closing the connection
+    static String join() {
+        long wait;
+        synchronized (joins) {
+            if (joins.tryAcquire()) return null;
+            wait = joins.nanosUntilAvailable();
+        }
+        Metrics.rejected(Reason.JOINS);
+        return busy(wait, "Too many clients are joining right now.");
+    }
+
+    // "[busy] retry-after=<seconds> <reason>": at least --retry-after (or wait) seconds, up to twice that
+    static String busy(long waitNanos, String reason) {
+        int base = (int) Math.max(retryAfterSeconds, Math.ceil(waitNanos / 1e9));
+        return "[busy] retry-after=" + (base + ThreadLocalRandom.current().nextInt(base + 1)) + " " + reason;
+    }
+
+    private static Reason take(InetAddress address) {
+        if (open.incrementAndGet() > maxConnections && maxConnections > 0) {
+            open.decrementAndGet();
+            return Reason.CONNECTIONS;
+        }
+        if (maxPerAddress > 0) {
+            boolean[] full = new boolean[1];
+            perAddress.compute(address, (a, n) -> {
+                int count = n == null ? 0 : n;
+                if (count >= maxPerAddress) {
+                    full[0] = true;
+                    return n;
+                }
+                return count + 1;
+            });
+            if (full[0]) {
+                open.decrementAndGet();
+                return Reason.ADDRESS;
+            }
+        }
+        return null;
+    }
+
+    private static void close(SocketChannel ch) {
+        try { ch.close(); } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,120 @@
+package sb.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Length-prefixed binary framing spoken by SyncBridgeServer and SyncBridgeClient.
+//
+//   [opcode:1][payload length:4][message id:8][sender id:4][payload]
+//
+// A connection is binary when its first byte is HELLO; anything else is the text line protocol,
+// so old clients keep working on the same port. Integers are big-endian, text payloads UTF-8.
+public final class BinaryProtocol {
+
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 17;
+    public static final int MAX_PAYLOAD = 64 * 1024;
+    public static final int MAX_INFLATED = 1024 * 1024; // frames carried by one DEFLATED frame
+
+    // client -> server (HELLO is answered with HELLO, message id = server version)
+    public static final byte HELLO = 0x01;         // message id = client version
+    public static final byte NICK = 0x02;          // payload = nickname
+    public static final byte MSG = 0x03;           // payload = chat text
+    public static final byte TYPING_ON = 0x04;
+    public static final byte TYPING_OFF = 0x05;
+    public static final byte READ = 0x06;          // message id = newest sequence number read (0: all so far)
+    public static final byte SAVE_CHAT = 0x07;     // payload = file name
+    public static final byte HISTORY_SINCE = 0x08; // message id = last sequence number seen
+    public static final byte QUIT = 0x09;
+    public static final byte JOIN = 0x0A;          // payload = room, message id = last sequence number seen in it
+    public static final byte LEAVE = 0x0B;         // payload = room
+    public static final byte HISTORY_BEFORE = 0x0C; // message id = oldest sequence number held, payload = room
+    public static final byte RESUME = 0x0D;        // payload = session token, sent instead of NICK after a reconnect
+    public static final byte ACK = 0x0E;           // message id = newest sequence number received, payload = room
+    public static final byte COMPRESS = 0x0F;      // after HELLO; answered with COMPRESS, message id 1 = on, 0 = refused
+    public static final byte EXPORT = 0x10;        // payload = "<room>[:<from>[-<to>]]", empty room = the current one
+    public static final byte SEARCH = 0x11;        // payload = query, e.g. "deploy fail* from:bob before:<seq>"
+
+    // server -> client; message id = history sequence number (0 if not kept), payload = display text
+    public static final byte CHAT = 0x41;          // sender id = author
+    public static final byte SYSTEM = 0x42;        // sender id = the recipient on its own welcome line
+    public static final byte TYPING = 0x43;
+    public static final byte RECEIPT = 0x44;
+    public static final byte SESSION = 0x45;       // payload = "[session] <token>" or "[session] expired"
+    // payload = raw deflate data (sync-flushed, one stream per connection) of complete frames,
+    // message id = their inflated size
+    public static final byte DEFLATED = 0x46;
+    // payload = whole history lines as stored (text protocol lines, separators included), message id =
+    // sequence number of the first; text clients get "[export] data <seq> <lines> <bytes>" and the lines.
+    // At most MAX_INFLATED bytes, between "[export] begin <room> <from> <to> <bytes>" and "[export] end <lines>"
+    public static final byte EXPORT_DATA = 0x47;
+
+    private BinaryProtocol() {
+    }
+
+    public static ByteBuffer encode(byte opcode, long messageId, int senderId, byte[] payload) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buf.put(opcode).putInt(payload.length).putLong(messageId).putInt(senderId).put(payload);
+        return buf.flip();
+    }
+
+    // Just the header of a frame whose payload is sent separately
+    public static ByteBuffer header(byte opcode, int payloadLength, long messageId, int senderId) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.put(opcode).putInt(payloadLength).putLong(messageId).putInt(senderId);
+        return buf.flip();
+    }
+
+    public static ByteBuffer encode(byte opcode, long messageId, String text) {
+        return encode(opcode, messageId, 0, text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Lines from rooms other than the lobby are tagged "[#room] "; returns null for lobby lines
+    public static String roomOf(String line) {
+        int end = roomTagEnd(line);
+        return end < 0 ? null : line.substring(2, end);
+    }
+
+    // The display line without its room tag
+    public static String untagged(String line) {
+        int end = roomTagEnd(line);
+        return end < 0 ? line : line.substring(Math.min(line.length(), end + 2));
+    }
+
+    private static int roomTagEnd(String line) {
+        return line.startsWith("[#") ? line.indexOf(']') : -1;
+    }
+
+    // The server-side opcode for a display line, classified the same way the client renders it
+    public static byte opcodeFor(String line) {
+        line = untagged(line);
+        if (line.startsWith("[system]") || line.startsWith("[error]") || line.startsWith("[export]")
+                || line.startsWith("[busy]") || line.startsWith("[search]")) return SYSTEM;
+        if (line.startsWith("[typing]")) return TYPING;
+        if (line.startsWith("[read]")) return RECEIPT;
+        if (line.startsWith("[session]")) return SESSION;
+        return CHAT;
+    }
+
+    // The equivalent text protocol line for a client command
+    public static String textCommand(byte opcode, long messageId, String text) {
+        switch (opcode) {
+            case NICK: return "NICK:" + text;
+            case MSG: return "MSG:" + text;
+            case TYPING_ON: return "TYPING_ON";
+            case TYPING_OFF: return "TYPING_OFF";
+            case READ: return "READ" + (messageId > 0 ? ":" + messageId : "");
+            case SAVE_CHAT: return "SAVE_CHAT:" + text;
+            case HISTORY_SINCE: return "HISTORY_SINCE:" + messageId;
+            case QUIT: return "QUIT";
+            case JOIN: return "JOIN:" + text + (messageId > 0 ? ":" + messageId : "");
+            case LEAVE: return "LEAVE:" + text;
+            case HISTORY_BEFORE: return "HISTORY_BEFORE:" + messageId + (text == null || text.isEmpty() ? "" : ":" + text);
+            case RESUME: return "RESUME:" + text;
+            case ACK: return "ACK:" + messageId + (text == null || text.isEmpty() ? "" : ":" + text);
+            case EXPORT: return "EXPORT:" + (text == null ? "" : text);
+            case SEARCH: return "SEARCH:" + (text == null ? "" : text);
+            default: throw new IllegalArgumentException("No text form for opcode " + opcode);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package sb.client;
+
+import sb.protocol.BinaryProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+// The networking side of a SyncBridge client, without any UI: one connection speaking either the
+// binary or the text protocol. Received lines go to a Listener on whichever thread runs readLoop().
+public final class ChatConnection implements Closeable {
+
+    public interface Listener {
+        // seq is the line's history sequence number, 0 for lines that are not kept
+        void onLine(long seq, String line);
+
+        // cause is null when the server closed the connection normally
+        void onClosed(IOException cause);
+
+        // One chunk of a transcript export (see BinaryProtocol.EXPORT_DATA): whole lines with their
+        // separators, the first numbered seq; lines[off, off+len) is only valid during the call
+        default void onExport(long seq, byte[] lines, int off, int len) {
+        }
+    }
+
+    private static final String EXPORT_DATA = "[export] data ";
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final boolean binary;
+    private final Listener listener;
+    private Inflater inflater; // reader thread only, once the server deflates
+
+    private ChatConnection(Socket socket, boolean binary, Listener listener) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.binary = binary;
+        this.listener = listener;
+    }
+
+    // Connects and, for binary framing, sends HELLO; nothing is read until readLoop() runs
+    public static ChatConnection open(String host, int port, boolean binary, Listener listener) throws IOException {
+        return open(host, port, binary, false, listener);
+    }
+
+    // compress asks the server to deflate what it sends (binary framing only)
+    public static ChatConnection open(String host, int port, boolean binary, boolean compress, Listener listener)
+            throws IOException {
+        return open(host, port, binary, compress, null, listener);
+    }
+
+    // With tls (see tls(...)) the connection is encrypted; reuse one factory so reconnects resume the session
+    public static ChatConnection open(String host, int port, boolean binary, boolean compress,
+                                      SSLSocketFactory tls, Listener listener) throws IOException {
+        Socket socket;
+        if (tls == null) {
+            socket = new Socket(host, port);
+        } else {
+            SSLSocket ssl = (SSLSocket) tls.createSocket(host, port);
+            ssl.setTcpNoDelay(true); // the handshake is several small flights
+            SSLParameters params = ssl.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS"); // the certificate must name host
+            ssl.setSSLParameters(params);
+            try {
+                ssl.startHandshake();
+            } catch (IOException e) {
+                ssl.close();
+                throw e;
+            }
+            socket = ssl;
+        }
+        socket.setTcpNoDelay(true);
+        ChatConnection conn = new ChatConnection(socket, binary, listener);
+        if (binary) conn.command(BinaryProtocol.HELLO, BinaryProtocol.VERSION, null);
+        if (binary && compress) conn.command(BinaryProtocol.COMPRESS, 1, null);
+        return conn;
+    }
+
+    // Trusts the certificates in a PKCS#12 trust store (e.g. syncbridge-test-trust.p12), or the
+    // JVM's default CAs when trustStore is null
+    public static SSLSocketFactory tls(Path trustStore, char[] password) throws IOException {
+        try {
+            if (trustStore == null) return SSLContext.getDefault().getSocketFactory();
+            KeyStore trusted = KeyStore.getInstance("PKCS12");
+            try (InputStream in = Files.newInputStream(trustStore)) {
+                trusted.load(in, password);
+            }
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(trusted);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, tmf.getTrustManagers(), null);
+            return context.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not set up TLS: " + e.getMessage(), e);
+        }
+    }
+
+    public boolean isOpen() {
+        return socket.isConnected() && !socket.isClosed();
+    }
+
+    // Sends one client command in the connection's protocol; failures surface in readLoop()
+    public void command(byte opcode) {
+        command(opcode, 0, null);
+    }
+
+    public void command(byte opcode, long id, String text) {
+        try {
+            synchronized (out) {
+                if (binary) {
+                    ByteBuffer frame = BinaryProtocol.encode(opcode, id, text);
+                    out.write(frame.array(), 0, frame.limit());
+                } else {
+                    out.write((BinaryProtocol.textCommand(opcode, id, text) + System.lineSeparator())
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            }
+        } catch (IOException ignored) {
+            // the reader reports the closed connection
+        }
+    }
+
+    // Blocks until the connection ends, handing every line to the listener
+    public void readLoop() {
+        try {
+            if (binary) readFrames(); else readLines();
+            listener.onClosed(null);
+        } catch (IOException e) {
+            listener.onClosed(e);
+        } finally {
+            if (inflater != null) inflater.end();
+        }
+    }
+
+    private void readLines() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            long seq = 0;
+            // History lines arrive numbered as "#<seq> <text>"
+            if (line.startsWith("#")) {
+                int sp = line.indexOf(' ');
+                if (sp > 1) {
+                    try {
+                        seq = Long.parseLong(line.substring(1, sp));
+                        line = line.substring(sp + 1);
+                    } catch (NumberFormatException ignored) {}
+                }
+            }
+            if (line.startsWith(EXPORT_DATA)) {
+                readExport(reader, line);
+                continue;
+            }
+            listener.onLine(seq, line);
+        }
+    }
+
+    // "[export] data <seq> <lines> <bytes>" is followed by that many lines
+    private void readExport(BufferedReader reader, String header) throws IOException {
+        String[] parts = header.substring(EXPORT_DATA.length()).trim().split(" ");
+        long seq;
+        int lines;
+        try {
+            seq = Long.parseLong(parts[0]);
+            lines = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid export chunk from server");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            String line = reader.readLine();
+            if (line == null) throw new EOFException("Connection closed during an export");
+            sb.append(line).append(System.lineSeparator());
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        listener.onExport(seq, bytes, 0, bytes.length);
+    }
+
+    private void readFrames() throws IOException {
+        in.mark(1);
+        if (in.read() == '[') {
+            // turned away before the server knew our protocol: one text line ("[busy] ..."), then it closes
+            in.reset();
+            readLines();
+            return;
+        }
+        in.reset();
+        DataInputStream din = new DataInputStream(in);
+        byte[] payload = new byte[256];
+        int opcode;
+        while ((opcode = din.read()) >= 0) {
+            int len = din.readInt();
+            long seq = din.readLong();
+            din.readInt(); // sender id
+            int max = opcode == BinaryProtocol.DEFLATED || opcode == BinaryProtocol.EXPORT_DATA
+                    ? BinaryProtocol.MAX_INFLATED : BinaryProtocol.MAX_PAYLOAD;
+            if (len < 0 || len > max) throw new IOException("Invalid frame from server");
+            if (payload.length < len) payload = new byte[len];
+            din.readFully(payload, 0, len);
+            if (opcode == BinaryProtocol.DEFLATED) {
+                inflate(payload, len, seq);
+            } else {
+                dispatch(opcode, seq, payload, 0, len);
+            }
+        }
+    }
+
+    // A DEFLATED frame holds complete frames; seq is their inflated size
+    private void inflate(byte[] deflated, int len, long size) throws IOException {
+        if (size < 0 || size > BinaryProtocol.MAX_INFLATED) throw new IOException("Invalid frame from server");
+        if (inflater == null) inflater = new Inflater(true);
+        byte[] frames = new byte[(int) size];
+        inflater.setInput(deflated, 0, len);
+        int n = 0;
+        try {
+            while (n < frames.length) {
+                int r = inflater.inflate(frames, n, frames.length - n);
+                if (r == 0 && inflater.needsInput()) break;
+                n += r;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame from server", e);
+        }
+        if (n != frames.length) throw new IOException("Truncated compressed frame from server");
+
+        ByteBuffer in = ByteBuffer.wrap(frames);
+        while (in.remaining() >= BinaryProtocol.HEADER_SIZE) {
+            byte opcode = in.get();
+            int flen = in.getInt();
+            long seq = in.getLong();
+            in.getInt(); // sender id
+            if (flen < 0 || flen > in.remaining()) throw new IOException("Invalid frame from server");
+            dispatch(opcode, seq, frames, in.position(), flen);
+            in.position(in.position() + flen);
+        }
+    }
+
+    private void dispatch(int opcode, long seq, byte[] payload, int off, int len) {
+        if (opcode == BinaryProtocol.HELLO || opcode == BinaryProtocol.COMPRESS) return;
+        if (opcode == BinaryProtocol.EXPORT_DATA) {
+            listener.onExport(seq, payload, off, len);
+            return;
+        }
+        listener.onLine(seq, new String(payload, off, len, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
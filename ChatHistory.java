@@ -0,0 +1,208 @@
+package sb.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+// Fixed-capacity, lock-free ring of history frames numbered 1, 2, 3, ...
+// Appending claims a sequence number and publishes the entry into its slot; readers walk the
+// slots without locking and skip anything overwritten or expired while they read.
+// With a ChatLog attached every line is also persisted, and anything older than the ring is
+// replayed straight from the mapped log segments.
+final class ChatHistory {
+
+    static final int EXPORT_CHUNK = 256 * 1024; // bytes of lines per transcript export frame
+
+    private static final class Entry {
+        final long seq;
+        final long time;
+        final Frame frame;
+
+        Entry(long seq, long time, Frame frame) {
+            this.seq = seq;
+            this.time = time;
+            this.frame = frame;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final long maxAgeMillis;
+    private final AtomicLong nextSeq = new AtomicLong(1);
+    private final ChatLog log; // null when history is memory-only
+
+    // capacity is rounded up to a power of two; maxAgeMillis <= 0 keeps entries until overwritten
+    ChatHistory(int capacity, long maxAgeMillis) {
+        this(capacity, maxAgeMillis, null);
+    }
+
+    // Continues the numbering of log and reloads its most recent lines into the ring
+    ChatHistory(int capacity, long maxAgeMillis, ChatLog log) {
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.maxAgeMillis = maxAgeMillis;
+        this.log = log;
+        if (log != null) {
+            long last = log.lastSeq();
+            log.forEach(Math.max(log.firstSeq(), last - mask), last,
+                    (seq, time, frame) -> slots.set((int) (seq & mask), new Entry(seq, time, frame)));
+            nextSeq.set(last + 1);
+        }
+    }
+
+    // The lobby keeps its log in --log-dir itself, every other room in <log-dir>/rooms/<room>
+    static ChatHistory create(ServerOptions options, String room) throws IOException {
+        int capacity = options.integer("history-capacity", 8192);
+        long maxAge = options.integer("history-max-age", 0) * 1000L;
+        if (!options.bool("persist", true)) return new ChatHistory(capacity, maxAge);
+
+        ChatLog.Fsync fsync;
+        try {
+            fsync = ChatLog.Fsync.valueOf(options.string("log-fsync", "interval").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown log-fsync policy (use os, interval or always)");
+        }
+        Path dir = Paths.get(options.string("log-dir", "syncbridge-log"));
+        if (!room.equals(Room.LOBBY)) dir = dir.resolve("rooms").resolve(room);
+        ChatLog log = ChatLog.open(dir,
+                options.integer("log-segment-mb", 64) * 1024 * 1024, fsync,
+                options.integer("log-fsync-ms", 50));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try { log.close(); } catch (IOException ignored) {}
+        }));
+        return new ChatHistory(capacity, maxAge, log);
+    }
+
+    Frame append(String text) {
+        return append(text, 0);
+    }
+
+    Frame append(String text, int senderId) {
+        long now = System.currentTimeMillis();
+        if (log == null) {
+            long seq = nextSeq.getAndIncrement();
+            return publish(seq, now, Frame.of(text, seq, senderId));
+        }
+
+        // the log needs lines in sequence order, so numbering and writing happen together
+        synchronized (this) {
+            long seq = nextSeq.get();
+            Frame frame = Frame.of(text, seq, senderId);
+            try {
+                log.append(seq, now, frame.buffer());
+            } catch (IOException e) {
+                // clients still get the line; the log leaves a gap and carries on after it
+                Log.warn("Chat log write failed: " + e.getMessage());
+            }
+            nextSeq.set(seq + 1);
+            return publish(seq, now, frame);
+        }
+    }
+
+    private Frame publish(long seq, long time, Frame frame) {
+        slots.set((int) (seq & mask), new Entry(seq, time, frame));
+        return frame;
+    }
+
+    long lastSeq() {
+        return nextSeq.get() - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    // The frame numbered seq while the ring still holds it and it has not expired, else null
+    Frame get(long seq) {
+        Entry e = slots.get((int) (seq & mask));
+        if (e == null || e.seq != seq) return null;
+        if (maxAgeMillis > 0 && e.time < System.currentTimeMillis() - maxAgeMillis) return null;
+        return e.frame;
+    }
+
+    // Hands every retained frame with a sequence number above since to sink, oldest first
+    void replaySince(long since, Frame.Format format, Consumer<Frame> sink) {
+        long last = lastSeq();
+        if (since < last) replayRange(Math.max(since, 0) + 1, last, format, sink);
+    }
+
+    // Retained frames numbered from..to, oldest first.
+    // Plain-text clients get lines older than the ring as whole mapped log chunks.
+    void replayRange(long from, long to, Frame.Format format, Consumer<Frame> sink) {
+        long newest = lastSeq();
+        long ringFirst = Math.max(1, newest - mask);
+        long last = Math.min(to, newest);
+        long cutoff = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+
+        if (log != null && from < ringFirst) {
+            long logFrom = Math.max(from, log.firstSeq());
+            long logTo = Math.min(last, ringFirst - 1);
+            if (format == Frame.Format.TEXT && maxAgeMillis <= 0) {
+                log.chunks(logFrom, logTo, sink);
+            } else {
+                log.forEach(logFrom, logTo, (seq, time, frame) -> {
+                    if (time >= cutoff) sink.accept(frame);
+                });
+            }
+        }
+
+        for (long seq = Math.max(from, ringFirst); seq <= last; seq++) {
+            Entry e = slots.get((int) (seq & mask));
+            if (e == null || e.seq < seq) break;  // claimed but not published yet
+            if (e.seq > seq) {
+                // overwritten while we were reading; the log still has it
+                if (log != null) log.forEach(seq, seq, (s, time, frame) -> {
+                    if (time >= cutoff) sink.accept(frame);
+                });
+                continue;
+            }
+            if (e.time < cutoff) continue;
+            sink.accept(e.frame);
+        }
+    }
+
+    // Retained lines numbered from..to as transcript export chunks of whole lines, oldest first.
+    // With a log every chunk is a region of a segment file; memory-only history copies them from the ring.
+    void export(long from, long to, Consumer<Frame.Region> sink) {
+        long newest = lastSeq();
+        long last = Math.min(to, newest);
+        long since = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+        if (log != null) {
+            log.regions(Math.max(from, log.firstSeq()), last, since, EXPORT_CHUNK, sink);
+            return;
+        }
+
+        List<ByteBuffer> run = new ArrayList<>();
+        long start = 0;
+        int bytes = 0;
+        for (long seq = Math.max(from, Math.max(1, newest - mask)); seq <= last; seq++) {
+            Entry e = slots.get((int) (seq & mask));
+            if (e == null || e.seq < seq) break;  // claimed but not published yet
+            ByteBuffer line = e.frame.buffer();
+            boolean keep = e.seq == seq && e.time >= since;
+            if (!run.isEmpty() && (!keep || bytes + line.remaining() > EXPORT_CHUNK)) {
+                sink.accept(copy(start, run, bytes));
+                run.clear();
+                bytes = 0;
+            }
+            if (!keep) continue;
+            if (run.isEmpty()) start = seq;
+            run.add(line);
+            bytes += line.remaining();
+        }
+        if (!run.isEmpty()) sink.accept(copy(start, run, bytes));
+    }
+
+    private static Frame.Region copy(long firstSeq, List<ByteBuffer> lines, int bytes) {
+        ByteBuffer buf = ByteBuffer.allocate(bytes);
+        for (ByteBuffer line : lines) buf.put(line);
+        return new Frame.Region(firstSeq, lines.size(), null, 0, buf.flip().asReadOnlyBuffer());
+    }
+}
@@ -0,0 +1,347 @@
+package sb.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Append-only, segmented history log on disk. Each segment is a pair of memory-mapped files:
+//   <baseSeq>.log  the history lines exactly as sent in the text protocol, back to back
+//   <baseSeq>.idx  16 bytes per line, by sequence number: [long time][int offset][int length]
+// An index entry is written after its line, and a zero time marks the end of the segment,
+// so a crash loses at most the lines that had not reached the disk. Only the segment being
+// written stays mapped; older ones are mapped again while they are read, a few at a time.
+final class ChatLog implements Closeable {
+
+    enum Fsync {
+        OS,       // leave write-back to the operating system
+        INTERVAL, // group commit: one force for everything appended in the last interval
+        ALWAYS    // force after every line
+    }
+
+    // Called for each stored line during replay
+    interface Visitor {
+        void visit(long seq, long time, Frame frame);
+    }
+
+    private static final int INDEX_ENTRY = 16;
+    private static final int MIN_SEGMENT = 1024 * 1024;
+    private static final int MAX_MAPPED = 4; // older segments kept mapped for reading
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int indexEntries;
+    private final Fsync fsync;
+    private final List<Segment> segments = new ArrayList<>(); // oldest first
+    private Segment active;
+    private final ArrayDeque<Segment> mapped = new ArrayDeque<>(); // older segments, least recently read first
+    private volatile boolean dirty;
+    private Thread syncer;
+
+    private ChatLog(Path dir, int segmentBytes, Fsync fsync) {
+        this.dir = dir;
+        this.segmentBytes = Math.max(MIN_SEGMENT, segmentBytes);
+        this.indexEntries = this.segmentBytes / 32;
+        this.fsync = fsync;
+    }
+
+    static ChatLog open(Path dir, int segmentBytes, Fsync fsync, long intervalMillis) throws IOException {
+        ChatLog log = new ChatLog(dir, segmentBytes, fsync);
+        Files.createDirectories(dir);
+
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - 4)));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        bases.sort(null);
+        for (int i = 0; i < bases.size(); i++) {
+            boolean last = i == bases.size() - 1;
+            Segment s = log.mapSegment(bases.get(i), last);
+            if (!last) s.unmap();
+            log.segments.add(s);
+        }
+        if (log.segments.isEmpty()) {
+            log.segments.add(log.mapSegment(1, true));
+        }
+        log.active = log.segments.get(log.segments.size() - 1);
+
+        if (fsync == Fsync.INTERVAL) {
+            log.syncer = new Thread(() -> log.syncLoop(intervalMillis), "sb-log-sync");
+            log.syncer.setDaemon(true);
+            log.syncer.start();
+        }
+        return log;
+    }
+
+    synchronized long firstSeq() {
+        return segments.get(0).baseSeq;
+    }
+
+    // 0 when the log is empty
+    synchronized long lastSeq() {
+        return active.baseSeq + active.count - 1;
+    }
+
+    // Lines must arrive in sequence order; line holds the encoded text plus line separator. Lines
+    // that failed to reach the log leave a gap: the line after them starts a new segment.
+    synchronized void append(long seq, long time, ByteBuffer line) throws IOException {
+        if (seq <= lastSeq()) {
+            throw new IllegalStateException("Chat log expected seq " + (lastSeq() + 1) + " but got " + seq);
+        }
+        int len = line.remaining();
+        if (len > segmentBytes) throw new IOException("History line larger than a log segment");
+        if (seq > lastSeq() + 1 || active.count == indexEntries || active.dataPos + len > segmentBytes) {
+            roll(seq);
+        }
+
+        int offset = active.dataPos;
+        active.data.put(offset, line, line.position(), len);
+        int slot = active.count * INDEX_ENTRY;
+        active.index.putInt(slot + 8, offset);
+        active.index.putInt(slot + 12, len);
+        active.index.putLong(slot, time);
+        active.dataPos += len;
+        active.count++;
+
+        if (fsync == Fsync.ALWAYS) {
+            active.data.force(offset, len);
+            active.index.force(slot, INDEX_ENTRY);
+        } else {
+            dirty = true;
+        }
+    }
+
+    // Every stored line in [from, to] as its own frame, sliced straight from the mapped segment
+    void forEach(long from, long to, Visitor visitor) {
+        for (Segment s : snapshot(from, to)) {
+            long first = Math.max(from, s.baseSeq);
+            long last = Math.min(to, s.baseSeq + s.count - 1);
+            for (long seq = first; seq <= last; seq++) {
+                int slot = (int) (seq - s.baseSeq) * INDEX_ENTRY;
+                long time = s.index.getLong(slot);
+                int offset = s.index.getInt(slot + 8);
+                int len = s.index.getInt(slot + 12);
+                visitor.visit(seq, time, Frame.mapped(s.data.slice(offset, len).asReadOnlyBuffer(), seq));
+            }
+        }
+    }
+
+    // The lines in [from, to] as one plain-text frame per segment: each is a single mapped slice
+    void chunks(long from, long to, Consumer<Frame> sink) {
+        for (Segment s : snapshot(from, to)) {
+            long first = Math.max(from, s.baseSeq);
+            long last = Math.min(to, s.baseSeq + s.count - 1);
+            if (first > last) continue;
+            int start = s.index.getInt((int) (first - s.baseSeq) * INDEX_ENTRY + 8);
+            int lastSlot = (int) (last - s.baseSeq) * INDEX_ENTRY;
+            int end = s.index.getInt(lastSlot + 8) + s.index.getInt(lastSlot + 12);
+            sink.accept(Frame.mapped(s.data.slice(start, end - start).asReadOnlyBuffer(), 0));
+        }
+    }
+
+    // The lines in [from, to] written at or after since, as runs of whole lines of at most maxBytes
+    // (a longer line is a run of its own). Each run is a region of a segment file plus its mapped slice.
+    void regions(long from, long to, long since, int maxBytes, Consumer<Frame.Region> sink) {
+        for (Segment s : snapshot(from, to)) {
+            long first = Math.max(from, s.baseSeq);
+            long last = Math.min(to, s.baseSeq + s.count - 1);
+            long start = 0; // first seq of the current run, 0 while there is none
+            int startOffset = 0, end = 0;
+            for (long seq = first; seq <= last; seq++) {
+                int slot = (int) (seq - s.baseSeq) * INDEX_ENTRY;
+                int offset = s.index.getInt(slot + 8);
+                int len = s.index.getInt(slot + 12);
+                boolean keep = s.index.getLong(slot) >= since;
+                if (start != 0 && (!keep || offset + len - startOffset > maxBytes)) {
+                    sink.accept(region(s, start, (int) (seq - start), startOffset, end));
+                    start = 0;
+                }
+                if (!keep) continue;
+                if (start == 0) {
+                    start = seq;
+                    startOffset = offset;
+                }
+                end = offset + len;
+            }
+            if (start != 0) sink.accept(region(s, start, (int) (last + 1 - start), startOffset, end));
+        }
+    }
+
+    private static Frame.Region region(Segment s, long firstSeq, int count, int start, int end) {
+        return new Frame.Region(firstSeq, count, s.dataChannel, start,
+                s.data.slice(start, end - start).asReadOnlyBuffer());
+    }
+
+    void force() {
+        MappedByteBuffer data, index;
+        synchronized (this) {
+            if (!dirty) return;
+            dirty = false;
+            data = active.data;
+            index = active.index;
+        }
+        data.force();
+        index.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (syncer != null) syncer.interrupt();
+        active.data.force();
+        active.index.force();
+        for (Segment s : segments) s.unmap();
+        mapped.clear();
+    }
+
+    // The segments holding lines in [from, to] and their line counts as of now, mapped; lines
+    // appended later are not visited. A segment that cannot be mapped again is left out.
+    private synchronized List<Segment> snapshot(long from, long to) {
+        List<Segment> copy = new ArrayList<>();
+        for (Segment s : segments) {
+            if (s.count == 0 || s.baseSeq > to || s.baseSeq + s.count - 1 < from) continue;
+            try {
+                read(s);
+                copy.add(s.view());
+            } catch (IOException e) {
+                Log.warn("Chat log segment " + s.baseSeq + " unreadable: " + e.getMessage());
+            }
+        }
+        return copy;
+    }
+
+    // Maps an older segment for reading, unmapping the one read least recently past MAX_MAPPED
+    private void read(Segment s) throws IOException {
+        if (s == active) return;
+        if (s.data != null) {
+            mapped.remove(s);
+            mapped.addLast(s);
+            return;
+        }
+        map(s, false);
+        mapped.addLast(s);
+        if (mapped.size() > MAX_MAPPED) mapped.removeFirst().unmap();
+    }
+
+    // The segment just filled is unmapped until it is read; an empty one (only lines that failed
+    // to reach the log went there) is deleted
+    private void roll(long nextSeq) throws IOException {
+        Segment old = active;
+        if (old.count > 0) {
+            old.data.force();
+            old.index.force();
+        }
+        active = mapSegment(nextSeq, true);
+        segments.add(active);
+        old.unmap();
+        if (old.count == 0) {
+            segments.remove(old);
+            try {
+                Files.deleteIfExists(path(old.baseSeq, ".log"));
+                Files.deleteIfExists(path(old.baseSeq, ".idx"));
+            } catch (IOException e) {
+                Log.warn("Chat log could not delete empty segment " + old.baseSeq + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void syncLoop(long intervalMillis) {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+                force();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                Log.warn("Chat log sync failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private Segment mapSegment(long baseSeq, boolean writable) throws IOException {
+        Segment s = new Segment(baseSeq);
+        map(s, writable);
+        int entries = s.index.capacity() / INDEX_ENTRY;
+        while (s.count < entries && s.index.getLong(s.count * INDEX_ENTRY) != 0) {
+            int slot = s.count * INDEX_ENTRY;
+            s.dataPos = s.index.getInt(slot + 8) + s.index.getInt(slot + 12);
+            s.count++;
+        }
+        return s;
+    }
+
+    private void map(Segment s, boolean writable) throws IOException {
+        FileChannel dataCh = null, indexCh = null;
+        try {
+            if (writable) {
+                dataCh = FileChannel.open(path(s.baseSeq, ".log"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                indexCh = FileChannel.open(path(s.baseSeq, ".idx"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                s.data = dataCh.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+                s.index = indexCh.map(FileChannel.MapMode.READ_WRITE, 0, (long) indexEntries * INDEX_ENTRY);
+            } else {
+                dataCh = FileChannel.open(path(s.baseSeq, ".log"), StandardOpenOption.READ);
+                indexCh = FileChannel.open(path(s.baseSeq, ".idx"), StandardOpenOption.READ);
+                s.data = dataCh.map(FileChannel.MapMode.READ_ONLY, 0, dataCh.size());
+                s.index = indexCh.map(FileChannel.MapMode.READ_ONLY, 0, indexCh.size());
+            }
+        } catch (IOException e) {
+            if (dataCh != null) dataCh.close();
+            if (indexCh != null) indexCh.close();
+            s.data = s.index = null;
+            throw e;
+        }
+        s.dataChannel = dataCh;
+        s.indexChannel = indexCh;
+    }
+
+    private Path path(long baseSeq, String suffix) {
+        return dir.resolve(String.format("%020d", baseSeq) + suffix);
+    }
+
+    private static final class Segment {
+        final long baseSeq;
+        FileChannel dataChannel, indexChannel; // null while the segment is not mapped
+        MappedByteBuffer data, index;
+        int count;
+        int dataPos;
+
+        Segment(long baseSeq) {
+            this.baseSeq = baseSeq;
+        }
+
+        Segment view() {
+            Segment v = new Segment(baseSeq);
+            v.dataChannel = dataChannel;
+            v.indexChannel = indexChannel;
+            v.data = data;
+            v.index = index;
+            v.count = count;
+            v.dataPos = dataPos;
+            return v;
+        }
+
+        // Closes the files; the mapping itself goes once no frame sliced from it is left. Export
+        // regions still holding the closed channel fall back to the mapped lines.
+        void unmap() {
+            try {
+                if (dataChannel != null) dataChannel.close();
+                if (indexChannel != null) indexChannel.close();
+            } catch (IOException ignored) {}
+            dataChannel = indexChannel = null;
+            data = index = null;
+        }
+    }
+}
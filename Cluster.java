@@ -0,0 +1,369 @@
+package sb.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Relays chat between SyncBridgeServer nodes so that clients of every node share one chat.
+//
+// Each node dials every peer in --peers (their --cluster-port) and only ever writes to the links
+// it dialed; what it receives arrives on the links its peers dialed. Peer lines are UTF-8 text:
+//   CHALLENGE <nonce>                        the only line ever sent back, by the accepting node
+//   NODE <id> <epoch> <mac>                  the dialer's answer, HMAC-SHA256 under --cluster-secret
+//   LINE <origin seq> <M|E> <room> <line>    a room broadcast; M lines are kept in history
+//   TYPING <1|0> <room> <nick>
+//   NICK+ <nick> / NICK- <nick>              nickname taken / released on the sending node
+// Every node numbers its own history; the origin seq only lets a receiver drop lines that were
+// resent after a reconnect. Lines may arrive slightly out of origin order (without the pipeline a
+// line is relayed after it is numbered, outside any lock), so receivers remember a window of the
+// seqs they saw rather than the highest one. A nickname claimed on two nodes at once stays with the lower node id.
+// A link that does not answer the challenge with the shared secret is closed before it can relay
+// anything, and the cluster port listens on loopback unless --cluster-bind says otherwise.
+final class Cluster {
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final int HANDSHAKE_MILLIS = 5000;
+
+    final int nodeId;
+    private final int clusterPort;
+    private final String bindAddress;
+    private final byte[] secret;
+    private final long epoch = System.currentTimeMillis();
+    private final List<Peer> peers = new ArrayList<>();
+    private final Map<String, Integer> remoteNicks = new ConcurrentHashMap<>(); // nick -> owning node
+    private final Map<Integer, Socket> inbound = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> epochs = new ConcurrentHashMap<>();
+    private final Map<String, SeenWindow> seen = new ConcurrentHashMap<>(); // "<node>/<room>" -> origin seqs
+
+    private Cluster(int nodeId, int clusterPort, String bindAddress, String secret) {
+        this.nodeId = nodeId;
+        this.clusterPort = clusterPort;
+        this.bindAddress = bindAddress;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // --node-id defaults to the client port, which is unique when all nodes run on one host;
+    // --cluster-bind (default 127.0.0.1) and --cluster-secret, needed unless bound to loopback
+    static Cluster create(ServerOptions options, int port) {
+        Cluster cluster = new Cluster(options.integer("node-id", port), options.integer("cluster-port", 0),
+                options.string("cluster-bind", "127.0.0.1"), options.string("cluster-secret", ""));
+        for (String peer : options.string("peers", "").split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) continue;
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) throw new IllegalArgumentException("Peer " + peer + " must be given as host:port");
+            try {
+                cluster.peers.add(cluster.new Peer(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Peer " + peer + " must be given as host:port");
+            }
+        }
+        return cluster;
+    }
+
+    boolean enabled() {
+        return clusterPort > 0 || !peers.isEmpty();
+    }
+
+    void start() throws IOException {
+        if (clusterPort > 0) {
+            InetAddress bind = InetAddress.getByName(bindAddress);
+            if (secret.length == 0 && !bind.isLoopbackAddress()) {
+                throw new IllegalArgumentException("--cluster-bind=" + bindAddress + " needs --cluster-secret");
+            }
+            ServerSocket server = new ServerSocket(clusterPort, 50, bind);
+            Thread acceptor = new Thread(() -> acceptLoop(server), "sb-cluster-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        for (Peer p : peers) {
+            Thread t = new Thread(p::run, "sb-cluster-" + p.host + ":" + p.port);
+            t.setDaemon(true);
+            t.start();
+        }
+        Log.info("Cluster node " + nodeId + " listening on " + bindAddress + ":" + clusterPort + ", peers " + peers);
+    }
+
+    // ---------- outgoing ----------
+
+    void relayLine(Room room, String line, OutboundQueue.Kind kind, long seq) {
+        send("LINE " + seq + " " + (kind == OutboundQueue.Kind.EPHEMERAL ? "E" : "M") + " " + room.name + " " + line);
+    }
+
+    void relayTyping(Room room, String nick, boolean on) {
+        send("TYPING " + (on ? "1 " : "0 ") + room.name + " " + nick);
+    }
+
+    void nickAdded(String nick) {
+        send("NICK+ " + nick);
+    }
+
+    void nickRemoved(String nick) {
+        send("NICK- " + nick);
+    }
+
+    boolean nickTaken(String nick) {
+        return remoteNicks.containsKey(nick);
+    }
+
+    private void send(String line) {
+        if (peers.isEmpty()) return;
+        // a binary client may put line breaks into a message; they would split the peer line
+        String oneLine = line.replace('\n', ' ').replace('\r', ' ');
+        for (Peer p : peers) p.offer(oneLine);
+    }
+
+    // ---------- incoming ----------
+
+    private void acceptLoop(ServerSocket server) {
+        while (true) {
+            try {
+                Socket s = server.accept();
+                Thread t = new Thread(() -> readPeer(s), "sb-cluster-in");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                Log.warn("Cluster accept failed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void readPeer(Socket socket) {
+        int node = -1;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            String nonce = newNonce();
+            socket.getOutputStream().write(("CHALLENGE " + nonce + "\n").getBytes(StandardCharsets.UTF_8));
+            socket.setSoTimeout(HANDSHAKE_MILLIS);
+            String[] hello = String.valueOf(in.readLine()).split(" ");
+            if (hello.length != 4 || !hello[0].equals("NODE")) return;
+            if (!MessageDigest.isEqual(mac(nonce, hello[1], hello[2]).getBytes(StandardCharsets.UTF_8),
+                    hello[3].getBytes(StandardCharsets.UTF_8))) {
+                Log.warn("Cluster peer " + socket.getRemoteSocketAddress() + " does not know the cluster secret");
+                return;
+            }
+            socket.setSoTimeout(0);
+            node = Integer.parseInt(hello[1]);
+            if (node == nodeId) {
+                Log.warn("Cluster peer " + socket.getRemoteSocketAddress() + " uses this node's id " + nodeId);
+                node = -1;
+                return;
+            }
+            Socket old = inbound.put(node, socket);
+            if (old != null) old.close();
+            // the peer re-announces its nicknames on every link; a restarted peer numbers afresh
+            dropNicksOf(node);
+            Long peerEpoch = Long.parseLong(hello[2]);
+            if (!peerEpoch.equals(epochs.put(node, peerEpoch))) {
+                String prefix = node + "/";
+                seen.keySet().removeIf(k -> k.startsWith(prefix));
+            }
+            Log.info("Cluster node " + node + " connected from " + socket.getRemoteSocketAddress());
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                handle(node, line);
+            }
+        } catch (IOException | RuntimeException e) {
+            // the peer redials; its nicknames are dropped until then
+        } finally {
+            if (node >= 0 && inbound.remove(node, socket)) {
+                dropNicksOf(node);
+                Log.info("Cluster node " + node + " disconnected.");
+            }
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void handle(int node, String line) {
+        int sp = line.indexOf(' ');
+        String cmd = sp < 0 ? line : line.substring(0, sp);
+        String rest = sp < 0 ? "" : line.substring(sp + 1);
+        switch (cmd) {
+            case "LINE": {
+                String[] f = rest.split(" ", 4); // seq, kind, room, line
+                if (f.length < 4) return;
+                long seq = Long.parseLong(f[0]);
+                if (seq > 0 && !seen.computeIfAbsent(node + "/" + f[2], k -> new SeenWindow()).firstTime(seq)) return;
+                Room room = SyncBridgeServer.room(f[2]);
+                if (room != null) {
+                    room.deliver(f[3], f[1].equals("E") ? OutboundQueue.Kind.EPHEMERAL : OutboundQueue.Kind.MESSAGE);
+                }
+                return;
+            }
+            case "TYPING": {
+                String[] f = rest.split(" ", 3); // on, room, nick
+                if (f.length < 3) return;
+                Room room = SyncBridgeServer.room(f[1]);
+                if (room != null) room.presence.typing(f[2], f[0].equals("1"));
+                return;
+            }
+            case "NICK+":
+                claimed(node, rest);
+                return;
+            case "NICK-":
+                remoteNicks.remove(rest, node);
+                return;
+            default:
+                // unknown peer commands are ignored so nodes can be upgraded one at a time
+        }
+    }
+
+    // Both nodes see both claims, so both keep the same winner
+    private void claimed(int node, String nick) {
+        SyncBridgeServer.ClientHandler local = SyncBridgeServer.client(nick);
+        if (local != null) {
+            if (nodeId < node) return;
+            local.kick("[system] Nickname " + nick + " is already in use on another server.");
+        }
+        remoteNicks.merge(nick, node, Math::min);
+    }
+
+    private void dropNicksOf(int node) {
+        remoteNicks.values().removeIf(owner -> owner == node);
+    }
+
+    private static String newNonce() {
+        byte[] nonce = new byte[16];
+        RANDOM.nextBytes(nonce);
+        return HexFormat.of().formatHex(nonce);
+    }
+
+    // Proves the dialer knows the secret, for this challenge only, so a recorded handshake is no use
+    private String mac(String nonce, String node, String epoch) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            // an empty secret (loopback only) still needs a key
+            mac.init(new SecretKeySpec(secret.length == 0 ? new byte[1] : secret, "HmacSHA256"));
+            return HexFormat.of().formatHex(mac.doFinal((nonce + " " + node + " " + epoch).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    // Outgoing link to one peer. Lines queue up while the peer is unreachable (the oldest are
+    // dropped past QUEUE_CAPACITY) and are written once it is back.
+    private final class Peer {
+        final String host;
+        final int port;
+        private final BlockingDeque<String> queue = new LinkedBlockingDeque<>();
+        private volatile boolean overflowed;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void offer(String line) {
+            while (!queue.offerLast(line) || queue.size() > QUEUE_CAPACITY) {
+                queue.pollFirst();
+                if (!overflowed) {
+                    overflowed = true;
+                    Log.warn("Cluster peer " + this + " is unreachable, dropping old lines.");
+                }
+            }
+        }
+
+        void run() {
+            long backoff = 100;
+            List<String> batch = new ArrayList<>();
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(host, port), 5000);
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(HANDSHAKE_MILLIS);
+                    String challenge = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+                    if (challenge == null || !challenge.startsWith("CHALLENGE ")) throw new IOException("No challenge from " + this);
+                    String nonce = challenge.substring(10);
+                    Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                    out.write("NODE " + nodeId + " " + epoch + " " + mac(nonce, Integer.toString(nodeId), Long.toString(epoch)) + "\n");
+                    for (String nick : SyncBridgeServer.nicks()) out.write("NICK+ " + nick + "\n");
+                    out.flush();
+                    backoff = 100;
+                    overflowed = false;
+
+                    while (true) {
+                        // lines taken but not written are put back if the link breaks
+                        if (batch.isEmpty()) {
+                            batch.add(queue.take());
+                            queue.drainTo(batch, 1023);
+                        }
+                        for (String line : batch) {
+                            out.write(line);
+                            out.write('\n');
+                        }
+                        out.flush();
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    // redial below
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    // The origin seqs of one node's room seen lately: the last SIZE of them as a bitmap. A seq older
+    // than that counts as a resend; lines are never that far out of order.
+    private static final class SeenWindow {
+        private static final int SIZE = 4096;
+        private final long[] bits = new long[SIZE / 64];
+        private long high; // highest seq seen
+
+        synchronized boolean firstTime(long seq) {
+            if (seq > high) {
+                if (seq - high >= SIZE) {
+                    Arrays.fill(bits, 0);
+                } else {
+                    for (long s = high + 1; s < seq; s++) bits[slot(s) >>> 6] &= ~(1L << slot(s));
+                }
+                high = seq;
+            } else if (seq <= high - SIZE) {
+                return false;
+            } else if ((bits[slot(seq) >>> 6] & (1L << slot(seq))) != 0) {
+                return false;
+            }
+            bits[slot(seq) >>> 6] |= 1L << slot(seq);
+            return true;
+        }
+
+        private static int slot(long seq) {
+            return (int) (seq & (SIZE - 1));
+        }
+    }
+}
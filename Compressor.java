@@ -0,0 +1,76 @@
+package sb.server;
+
+import sb.protocol.BinaryProtocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// Deflate for binary clients that sent COMPRESS. One Deflater spans the whole connection, so each
+// batch is compressed against everything sent before it (a dictionary shared with the client's
+// Inflater); every batch ends with a sync flush, so the client can inflate it as soon as it arrives.
+// Only the connection's writer uses an instance.
+final class Compressor {
+
+    // --compression=false refuses COMPRESS, --compress-min-bytes, --compress-level (1-9)
+    static boolean enabled = true;
+    static int minBytes = 512;
+    static int level = Deflater.DEFAULT_COMPRESSION;
+
+    static void configure(ServerOptions options) {
+        enabled = options.bool("compression", enabled);
+        minBytes = Math.max(0, options.integer("compress-min-bytes", minBytes));
+        level = options.integer("compress-level", level);
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < 1 || level > 9)) {
+            throw new IllegalArgumentException("Option --compress-level expects 1-9, got: " + level);
+        }
+    }
+
+    private final Deflater deflater = new Deflater(level, true);
+    private byte[] input = new byte[8192];
+    private byte[] output = new byte[8192];
+
+    // Replaces the frames gather[from..count) by a single DEFLATED frame when they add up to at least
+    // --compress-min-bytes; returns the new count. Smaller batches go out as they are, and frames past
+    // MAX_INFLATED bytes follow the compressed ones uncompressed.
+    int compress(ByteBuffer[] gather, int from, int count) {
+        int total = 0;
+        int end = from;
+        while (end < count && total + gather[end].remaining() <= BinaryProtocol.MAX_INFLATED) {
+            total += gather[end++].remaining();
+        }
+        if (total < minBytes || total == 0) return count;
+
+        if (input.length < total) input = new byte[Math.max(total, input.length * 2)];
+        int n = 0;
+        for (int i = from; i < end; i++) {
+            ByteBuffer b = gather[i];
+            int r = b.remaining();
+            b.get(input, n, r);
+            n += r;
+            gather[i] = null;
+        }
+
+        deflater.setInput(input, 0, n);
+        int len = 0;
+        while (true) {
+            len += deflater.deflate(output, len, output.length - len, Deflater.SYNC_FLUSH);
+            if (len < output.length) break;
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+        Metrics.compressedIn.add(n);
+        Metrics.compressedOut.add(len);
+
+        // message id = inflated size, so the client can size its buffer
+        gather[from] = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE + len)
+                .put(BinaryProtocol.DEFLATED).putInt(len).putLong(n).putInt(0).put(output, 0, len).flip();
+        System.arraycopy(gather, end, gather, from + 1, count - end);
+        Arrays.fill(gather, from + 1 + count - end, count, null);
+        return from + 1 + count - end;
+    }
+
+    // Frees the native deflate state; the connection is gone
+    void close() {
+        deflater.end();
+    }
+}
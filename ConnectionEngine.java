@@ -0,0 +1,30 @@
+package sb.server;
+
+import java.io.IOException;
+
+// Accepts client connections and drives their ClientHandler (selected with --engine=...)
+interface ConnectionEngine {
+
+    String name();
+
+    // Blocks for the lifetime of the server
+    void serve(int port) throws IOException;
+
+    static ConnectionEngine create(ServerOptions options) {
+        String kind = options.string("engine", "nio");
+        if (!kind.equals("nio") && options.integer("tls-port", 0) > 0) {
+            throw new IllegalArgumentException("--tls-port needs --engine=nio");
+        }
+        switch (kind) {
+            case "nio":
+                int loops = options.integer("selectors", Runtime.getRuntime().availableProcessors());
+                return new SelectorEngine(Math.max(1, loops), Tls.create(options));
+            case "threads":
+                return new ThreadEngine(false);
+            case "virtual":
+                return new ThreadEngine(true);
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + kind + " (use nio, threads or virtual)");
+        }
+    }
+}
@@ -0,0 +1,239 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Resolves a list of names and addresses through DnsLookupEngine, at most --parallel hosts at a
+// time, and streams one CSV or JSON line per resolved address as each host finishes. Duplicates in
+// the list are resolved once (the engine shares in-flight and cached lookups).
+//
+//   java DnsBatch --in=hosts.txt [--out=results.csv] [--format=csv|json] [--parallel=64]
+//        [--reachability=false] [--ports=80,443] [--timeout=3000] [--ttl=300]
+//
+// The list has one name or address per line; blank lines and # comments are skipped, and only the
+// first word of a line is used, so a hosts file can be fed in as is. Without --out the results go
+// to stdout and the report to stderr. To test without a real resolver, point the JVM at a hosts
+// file with -Djdk.net.hosts.file=FILE. "json" writes JSON Lines, one object per address.
+final class DnsBatch {
+
+    enum Format { CSV, JSON }
+
+    private static final String CSV_HEADER = "input,address,host_name,canonical_name,reachable,micros,error";
+
+    private final DnsLookupEngine engine;
+    private final int parallel;
+    private final boolean reachability;
+    private final int[] ports;
+    private final Format format;
+
+    DnsBatch(DnsLookupEngine engine, int parallel, boolean reachability, int[] ports, Format format) {
+        this.engine = engine;
+        this.parallel = Math.max(1, parallel);
+        this.reachability = reachability;
+        this.ports = ports;
+        this.format = format;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                System.err.println("Unexpected argument: " + arg + " (options are --key=value)");
+                System.exit(2);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        String in = options.get("in");
+        if (in == null) {
+            System.err.println("Usage: java DnsBatch --in=hosts.txt [--out=FILE] [--format=csv|json] [--parallel=64]"
+                    + " [--reachability=false] [--ports=80,443] [--timeout=3000] [--ttl=300]");
+            System.exit(2);
+        }
+        String out = options.get("out");
+        Format format = Format.valueOf(options.getOrDefault("format",
+                out != null && out.endsWith(".json") ? "json" : "csv").toUpperCase());
+        DnsLookupEngine engine = new DnsLookupEngine(Long.parseLong(options.getOrDefault("ttl", "300")),
+                Integer.parseInt(options.getOrDefault("timeout", "3000")), 512);
+        DnsBatch batch = new DnsBatch(engine, Integer.parseInt(options.getOrDefault("parallel", "64")),
+                Boolean.parseBoolean(options.getOrDefault("reachability", "false")),
+                ReachabilityScanner.parsePorts(options.getOrDefault("ports", "")), format);
+
+        List<String> hosts = readHosts(Files.readAllLines(Paths.get(in), StandardCharsets.UTF_8));
+        try (Writer w = out == null
+                ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8)) {
+            Summary summary = batch.run(hosts, w, System.err::println);
+            System.err.println(summary);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    static List<String> readHosts(List<String> lines) {
+        List<String> hosts = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            int hash = line.indexOf('#');
+            String s = (hash < 0 ? line : line.substring(0, hash)).trim();
+            if (s.isEmpty()) continue;
+            String[] words = s.split("\\s+", 2);
+            hosts.add(words[0]);
+        }
+        return hosts;
+    }
+
+    // Blocks until every host is done; progress gets a line about every 5 seconds
+    Summary run(List<String> hosts, Writer out, Consumer<String> progress) throws IOException, InterruptedException {
+        if (format == Format.CSV) out.write(CSV_HEADER + "\n");
+        Semaphore permits = new Semaphore(parallel);
+        long[] micros = new long[hosts.size()];
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger cached = new AtomicInteger();
+        AtomicInteger finished = new AtomicInteger();
+        ReachabilityScanner.Stats reachStats = reachability ? new ReachabilityScanner.Stats() : null;
+        IOException[] writeError = new IOException[1];
+        long start = System.nanoTime();
+        long nextReport = start + 5_000_000_000L;
+
+        for (int i = 0; i < hosts.size(); i++) {
+            permits.acquire();
+            String host = hosts.get(i);
+            int index = i;
+            long began = System.nanoTime();
+            List<String[]> rows = new ArrayList<>(2);
+            engine.lookup(host, false, reachability, ports, new DnsLookupEngine.Listener() {
+                @Override
+                public void result(InetAddress address, String hostName, String canonicalName,
+                                   ReachabilityScanner.Result reach) {
+                    if (reach != null) reachStats.add(reach);
+                    synchronized (rows) {
+                        rows.add(new String[]{address.getHostAddress(), hostName, canonicalName,
+                                reach == null ? null : Boolean.toString(reach.reachable())});
+                    }
+                }
+
+                @Override
+                public void done(long millis, boolean fromCache, Exception failure) {
+                    long us = (System.nanoTime() - began) / 1000;
+                    micros[index] = us;
+                    if (fromCache) cached.incrementAndGet();
+                    try {
+                        synchronized (out) {
+                            if (failure != null) {
+                                failed.incrementAndGet();
+                                out.write(row(host, null, null, null, null, Long.toString(us), String.valueOf(failure.getMessage())));
+                            } else {
+                                synchronized (rows) {
+                                    for (String[] r : rows) out.write(row(host, r[0], r[1], r[2], r[3], Long.toString(us), null));
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        synchronized (writeError) {
+                            writeError[0] = e;
+                        }
+                    } finally {
+                        finished.incrementAndGet();
+                        permits.release();
+                    }
+                }
+            });
+            long now = System.nanoTime();
+            if (now >= nextReport) {
+                nextReport = now + 5_000_000_000L;
+                progress.accept(String.format("%,d of %,d hosts, %,.0f queries/s",
+                        finished.get(), hosts.size(), finished.get() / ((now - start) / 1e9)));
+            }
+        }
+        permits.acquire(parallel); // every lookup has finished
+        out.flush();
+        synchronized (writeError) {
+            if (writeError[0] != null) throw writeError[0];
+        }
+        return new Summary(hosts.size(), failed.get(), cached.get(), System.nanoTime() - start, micros, reachStats);
+    }
+
+    private String row(String input, String address, String hostName, String canonicalName, String reachable,
+                       String us, String error) {
+        if (format == Format.CSV) {
+            return csv(input) + "," + csv(address) + "," + csv(hostName) + "," + csv(canonicalName) + ","
+                    + csv(reachable) + "," + us + "," + csv(error) + "\n";
+        }
+        StringBuilder sb = new StringBuilder("{\"input\":").append(json(input));
+        if (address != null) {
+            sb.append(",\"address\":").append(json(address))
+              .append(",\"host_name\":").append(json(hostName))
+              .append(",\"canonical_name\":").append(json(canonicalName));
+        }
+        if (reachable != null) sb.append(",\"reachable\":").append(reachable);
+        sb.append(",\"micros\":").append(us);
+        if (error != null) sb.append(",\"error\":").append(json(error));
+        return sb.append("}\n").toString();
+    }
+
+    static String csv(String s) {
+        if (s == null) return "";
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) return s;
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    static String json(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    static final class Summary {
+        final int hosts;
+        final int failed;
+        final int cached;
+        final long nanos;
+        final ReachabilityScanner.Stats reach; // null without reachability
+        private final long[] sorted;
+
+        Summary(int hosts, int failed, int cached, long nanos, long[] micros, ReachabilityScanner.Stats reach) {
+            this.hosts = hosts;
+            this.failed = failed;
+            this.cached = cached;
+            this.nanos = nanos;
+            this.reach = reach;
+            this.sorted = micros.clone();
+            Arrays.sort(sorted);
+        }
+
+        double queriesPerSecond() {
+            return hosts / Math.max(nanos / 1e9, 1e-9);
+        }
+
+        String percentile(double p) {
+            if (sorted.length == 0) return "-";
+            long us = sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+            return us < 10_000 ? us + "us" : String.format("%.1fms", us / 1000.0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,d hosts in %.2fs (%,.0f queries/s), %,d failed, %,d cached%n"
+                            + "latency  p50=%s  p90=%s  p99=%s  max=%s",
+                    hosts, nanos / 1e9, queriesPerSecond(), failed, cached,
+                    percentile(0.50), percentile(0.90), percentile(0.99), percentile(1.0))
+                    + (reach == null ? "" : "\nreachability  " + reach);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import sb.protocol.VirtualThreads;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+// Runs MyDNSLookup's lookups off the Swing thread. The forward lookup comes first; then the reverse
+// names and the reachability probes of every address run in parallel, and each address is reported
+// as soon as its own results are in. Reachability goes through a ReachabilityScanner (non-blocking
+// connects, at most maxProbes at once). Results are cached for the TTL, so a repeated lookup is
+// answered at once; lookups of the same thing that overlap share one resolution.
+final class DnsLookupEngine {
+
+    interface Listener {
+        // One address; reach is null when reachability was not asked for. Called on a worker thread.
+        void result(InetAddress address, String hostName, String canonicalName, ReachabilityScanner.Result reach);
+
+        // Called once at the end; failure is null unless the name could not be resolved
+        void done(long millis, boolean cached, Exception failure);
+    }
+
+    private static final int MAX_ENTRIES = 10_000; // expired entries are pruned beyond this
+
+    private final long ttlNanos;
+    private final ReachabilityScanner scanner;
+    private final ExecutorService executor = VirtualThreads.executorOrFallback(() -> Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "dns-lookup");
+        t.setDaemon(true);
+        return t;
+    }));
+    private final TtlCache<String, InetAddress[]> addresses = new TtlCache<>();
+    private final TtlCache<String, String[]> names = new TtlCache<>();
+    private final TtlCache<String, ReachabilityScanner.Result> reachable = new TtlCache<>();
+
+    DnsLookupEngine(long ttlSeconds, int reachTimeoutMillis, int maxProbes) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        try {
+            this.scanner = new ReachabilityScanner(reachTimeoutMillis, maxProbes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // reverse: input is an address whose names are wanted, otherwise a name to resolve;
+    // ports: what reachability probes (null for the scanner's defaults)
+    CompletableFuture<Void> lookup(String input, boolean reverse, boolean reachability, int[] ports, Listener listener) {
+        long start = System.nanoTime();
+        AtomicBoolean computed = new AtomicBoolean();
+        CompletableFuture<InetAddress[]> forward = reverse
+                ? addresses.get("ip:" + input, call(() -> new InetAddress[]{InetAddress.getByName(input)}), computed)
+                : addresses.get(input, call(() -> InetAddress.getAllByName(input)), computed);
+
+        return forward.thenCompose(all -> {
+            CompletableFuture<?>[] each = new CompletableFuture<?>[all.length];
+            for (int i = 0; i < all.length; i++) {
+                InetAddress a = all[i];
+                // toString() is "name/ip", or "/ip" when the name still has to be looked up
+                CompletableFuture<String[]> n = names.get(a.toString(),
+                        call(() -> new String[]{a.getHostName(), a.getCanonicalHostName()}), computed);
+                CompletableFuture<ReachabilityScanner.Result> r = reachability
+                        ? reachable.get(a.getHostAddress() + Arrays.toString(ports), () -> scanner.scan(a, ports), computed)
+                        : CompletableFuture.completedFuture(null);
+                each[i] = n.thenAcceptBoth(r, (hn, up) -> listener.result(a, hn[0], hn[1], up));
+            }
+            return CompletableFuture.allOf(each);
+        }).whenComplete((v, failure) -> listener.done(
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), !computed.get(), cause(failure)));
+    }
+
+    // The address input names, resolved on the executor and cached like a reverse lookup's
+    CompletableFuture<InetAddress> address(String input) {
+        return addresses.get("ip:" + input, call(() -> new InetAddress[]{InetAddress.getByName(input)}), new AtomicBoolean())
+                .thenApply(all -> all[0]);
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        scanner.close();
+    }
+
+    // A blocking lookup as a loader that runs on the engine's executor
+    private <V> Supplier<CompletableFuture<V>> call(Callable<V> task) {
+        return () -> {
+            CompletableFuture<V> f = new CompletableFuture<>();
+            executor.execute(() -> {
+                try {
+                    f.complete(task.call());
+                } catch (Exception e) {
+                    f.completeExceptionally(e);
+                }
+            });
+            return f;
+        };
+    }
+
+    private static Exception cause(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t == null ? null : t instanceof Exception ? (Exception) t : new Exception(t);
+    }
+
+    // Futures rather than values, so a lookup in flight is joined instead of repeated; failures are not kept
+    private final class TtlCache<K, V> {
+        private final Map<K, Entry<V>> map = new ConcurrentHashMap<>();
+
+        CompletableFuture<V> get(K key, Supplier<CompletableFuture<V>> loader, AtomicBoolean computed) {
+            long now = System.nanoTime();
+            while (true) {
+                Entry<V> old = map.get(key);
+                if (old != null && now - old.created < ttlNanos) return old.future;
+                Entry<V> fresh = new Entry<>(now);
+                if (old == null ? map.putIfAbsent(key, fresh) != null : !map.replace(key, old, fresh)) {
+                    continue; // someone else started it first
+                }
+                if (map.size() > MAX_ENTRIES) map.values().removeIf(e -> now - e.created >= ttlNanos);
+                computed.set(true);
+                loader.get().whenComplete((v, e) -> {
+                    if (e != null) {
+                        map.remove(key, fresh);
+                        fresh.future.completeExceptionally(e);
+                    } else {
+                        fresh.future.complete(v);
+                    }
+                });
+                return fresh.future;
+            }
+        }
+    }
+
+    private static final class Entry<V> {
+        final long created;
+        final CompletableFuture<V> future = new CompletableFuture<>();
+
+        Entry(long created) {
+            this.created = created;
+        }
+    }
+}
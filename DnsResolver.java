@@ -0,0 +1,504 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Speaks DNS to one server directly instead of going through InetAddress, so MyDNSLookup can ask
+// for A, AAAA, CNAME, MX, TXT and PTR records and see their TTLs. All queries share one connected
+// DatagramChannel and are matched to their answers by ID, so any number can be in flight at once;
+// a truncated answer is asked again over TCP. Every answer carries its round trip in nanoseconds,
+// from the first datagram sent to the answer parsed.
+//
+//   java DnsResolver [--server=IP[:PORT]] [--type=A] [--timeout=2000] [--window=256] name...
+//
+// The server defaults to the first nameserver in /etc/resolv.conf. At most --window queries are on
+// the wire at once and the rest wait their turn. Queries go out with EDNS0 advertising a 1232-byte
+// UDP payload; one is retried after half the timeout without an answer.
+final class DnsResolver implements AutoCloseable {
+
+    enum Type {
+        A(1), CNAME(5), PTR(12), MX(15), TXT(16), AAAA(28);
+
+        final int code;
+
+        Type(int code) {
+            this.code = code;
+        }
+
+        static String name(int code) {
+            for (Type t : values()) {
+                if (t.code == code) return t.name();
+            }
+            return "TYPE" + code;
+        }
+    }
+
+    static final int NOERROR = 0;
+    static final int NXDOMAIN = 3;
+    private static final String[] RCODES = {"NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"};
+
+    static final int UDP_PAYLOAD = 1232; // what we advertise; the usual EDNS0 size that avoids fragmentation
+
+    static final class Record {
+        final String name;
+        final int type;
+        final long ttl;
+        final String data;
+
+        Record(String name, int type, long ttl, String data) {
+            this.name = name;
+            this.type = type;
+            this.ttl = ttl;
+            this.data = data;
+        }
+
+        @Override
+        public String toString() {
+            return name + "  " + ttl + "  " + Type.name(type) + "  " + data;
+        }
+    }
+
+    static final class Answer {
+        final String name;
+        final Type type;
+        final int rcode;
+        final List<Record> records;
+        final long rttNanos;
+        final boolean tcp;
+
+        Answer(String name, Type type, int rcode, List<Record> records, long rttNanos, boolean tcp) {
+            this.name = name;
+            this.type = type;
+            this.rcode = rcode;
+            this.records = records;
+            this.rttNanos = rttNanos;
+            this.tcp = tcp;
+        }
+
+        String status() {
+            return rcode < RCODES.length ? RCODES[rcode] : "RCODE" + rcode;
+        }
+    }
+
+    // One query in flight
+    private final class Pending {
+        final int id;
+        final String name;
+        final Type type;
+        final byte[] packet;
+        volatile long sent;
+        final CompletableFuture<Answer> future = new CompletableFuture<>();
+        volatile ScheduledFuture<?> timer;
+        boolean retried;
+
+        Pending(int id, String name, Type type, byte[] packet) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.packet = packet;
+        }
+    }
+
+    private final InetSocketAddress server;
+    private final long timeoutNanos;
+    private final DatagramChannel channel;
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>(); // sent or waiting, by ID
+    private final Queue<Pending> waiting = new ConcurrentLinkedQueue<>();
+    private final Semaphore window; // queries on the wire; more would only overflow socket buffers
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "dns-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService tcpPool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "dns-tcp");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Thread reader;
+    private volatile boolean closed;
+
+    DnsResolver(InetSocketAddress server, long timeoutMillis, int maxInFlight) throws IOException {
+        this.server = server;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.window = new Semaphore(Math.max(1, maxInFlight));
+        this.channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+        channel.connect(server);
+        reader = new Thread(this::readLoop, "dns-udp");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        InetSocketAddress server = null;
+        Type type = Type.A;
+        long timeout = 2000;
+        int window = 256;
+        List<String> names = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--server=")) server = parseServer(arg.substring(9));
+            else if (arg.startsWith("--type=")) type = Type.valueOf(arg.substring(7).toUpperCase());
+            else if (arg.startsWith("--timeout=")) timeout = Long.parseLong(arg.substring(10));
+            else if (arg.startsWith("--window=")) window = Integer.parseInt(arg.substring(9));
+            else if (arg.startsWith("--")) {
+                System.err.println("Unexpected argument: " + arg);
+                System.exit(2);
+            } else names.add(arg);
+        }
+        if (names.isEmpty()) {
+            System.err.println("Usage: java DnsResolver [--server=IP[:PORT]] [--type=A] [--timeout=2000] [--window=256] name...");
+            System.exit(2);
+        }
+        try (DnsResolver resolver = new DnsResolver(server != null ? server : systemServer(), timeout, window)) {
+            List<CompletableFuture<Answer>> answers = new ArrayList<>();
+            for (String name : names) answers.add(resolver.query(name, type));
+            for (int i = 0; i < names.size(); i++) {
+                try {
+                    Answer a = answers.get(i).join();
+                    System.out.printf("%s %s: %s in %.3f ms%s%n", names.get(i), type, a.status(),
+                            a.rttNanos / 1e6, a.tcp ? " (tcp)" : "");
+                    for (Record r : a.records) System.out.println("  " + r);
+                } catch (RuntimeException e) {
+                    System.out.println(names.get(i) + " " + type + ": " + e.getCause());
+                }
+            }
+        }
+    }
+
+    // The first nameserver in /etc/resolv.conf, or 127.0.0.1 when there is none
+    static InetSocketAddress systemServer() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/etc/resolv.conf"))) {
+                String[] words = line.trim().split("\\s+");
+                if (words.length >= 2 && words[0].equals("nameserver")) return new InetSocketAddress(words[1], 53);
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // no resolv.conf (Windows), use the default
+        }
+        return new InetSocketAddress("127.0.0.1", 53);
+    }
+
+    // "IP", "IP:PORT" or "[IPv6]:PORT"
+    static InetSocketAddress parseServer(String s) {
+        int colon = s.lastIndexOf(':');
+        if (s.startsWith("[")) {
+            int end = s.indexOf(']');
+            int port = colon > end ? Integer.parseInt(s.substring(colon + 1)) : 53;
+            return new InetSocketAddress(s.substring(1, end), port);
+        }
+        if (colon > 0 && s.indexOf(':') == colon) {
+            return new InetSocketAddress(s.substring(0, colon), Integer.parseInt(s.substring(colon + 1)));
+        }
+        return new InetSocketAddress(s, 53);
+    }
+
+    // The name a PTR query for this address asks about (in-addr.arpa or ip6.arpa)
+    static String reverseName(InetAddress address) {
+        byte[] b = address.getAddress();
+        StringBuilder sb = new StringBuilder();
+        if (address instanceof Inet4Address) {
+            for (int i = b.length - 1; i >= 0; i--) sb.append(b[i] & 0xFF).append('.');
+            return sb.append("in-addr.arpa").toString();
+        }
+        for (int i = b.length - 1; i >= 0; i--) {
+            sb.append(Character.forDigit(b[i] & 0xF, 16)).append('.')
+              .append(Character.forDigit((b[i] >> 4) & 0xF, 16)).append('.');
+        }
+        return sb.append("ip6.arpa").toString();
+    }
+
+    CompletableFuture<Answer> query(String name, Type type) {
+        if (closed) return CompletableFuture.failedFuture(new IOException("Resolver closed"));
+        String qname = name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+        Pending p;
+        while (true) {
+            int id = ThreadLocalRandom.current().nextInt(0x10000);
+            byte[] packet;
+            try {
+                packet = encodeQuery(id, qname, type);
+            } catch (IllegalArgumentException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            p = new Pending(id, qname, type, packet);
+            if (pending.putIfAbsent(id, p) == null) break; // else the ID is taken by a query in flight
+        }
+        waiting.add(p);
+        pump();
+        return p.future;
+    }
+
+    // Sends waiting queries while the window has room
+    private void pump() {
+        while (!waiting.isEmpty() && window.tryAcquire()) {
+            Pending p = waiting.poll();
+            if (p == null) {
+                window.release();
+                return;
+            }
+            send(p);
+        }
+    }
+
+    // A query left the wire (answered, failed, or handed to TCP)
+    private void finished() {
+        window.release();
+        pump();
+    }
+
+    private void send(Pending p) {
+        try {
+            if (!p.retried) p.sent = System.nanoTime();
+            channel.write(ByteBuffer.wrap(p.packet));
+            p.timer = timer.schedule(() -> timedOut(p), timeoutNanos / 2, TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            fail(p, e);
+        }
+    }
+
+    private void timedOut(Pending p) {
+        if (pending.get(p.id) != p) return;
+        if (!p.retried) {
+            p.retried = true;
+            send(p);
+        } else {
+            fail(p, new SocketTimeoutException("No answer from " + server + " for " + p.name + " " + p.type));
+        }
+    }
+
+    private void fail(Pending p, Exception e) {
+        if (pending.remove(p.id, p)) {
+            p.future.completeExceptionally(e);
+            if (p.sent != 0) finished();
+        }
+    }
+
+    private void readLoop() {
+        ByteBuffer buf = ByteBuffer.allocate(UDP_PAYLOAD + 512);
+        while (!closed) {
+            buf.clear();
+            try {
+                channel.read(buf);
+            } catch (AsynchronousCloseException e) {
+                break;
+            } catch (IOException e) {
+                continue; // e.g. ICMP port unreachable; the query times out
+            }
+            buf.flip();
+            if (buf.remaining() < 12) continue;
+            Pending p = pending.get(buf.getShort(0) & 0xFFFF);
+            if (p == null) continue; // late answer to a retried or expired query
+            try {
+                Message m = Message.parse(buf);
+                if (!m.question.equalsIgnoreCase(p.name) || m.qtype != p.type.code) continue; // not ours
+                if (!pending.remove(p.id, p)) continue;
+                ScheduledFuture<?> t = p.timer;
+                if (t != null) t.cancel(false);
+                finished();
+                if (m.truncated) {
+                    tcpPool.execute(() -> overTcp(p));
+                } else {
+                    p.future.complete(new Answer(p.name, p.type, m.rcode, m.records, System.nanoTime() - p.sent, false));
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(p, e);
+            }
+        }
+    }
+
+    // Asks again over TCP, where the answer is not size-limited; one connection per truncated answer
+    private void overTcp(Pending p) {
+        try (SocketChannel tcp = SocketChannel.open()) {
+            tcp.socket().connect(server, (int) TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+            tcp.socket().setSoTimeout((int) TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+            ByteBuffer out = ByteBuffer.allocate(2 + p.packet.length);
+            out.putShort((short) p.packet.length).put(p.packet).flip();
+            while (out.hasRemaining()) tcp.write(out);
+            // a blocking SocketChannel ignores SO_TIMEOUT, so read through the socket's stream
+            DataInputStream in = new DataInputStream(tcp.socket().getInputStream());
+            byte[] body = new byte[in.readUnsignedShort()];
+            in.readFully(body);
+            Message m = Message.parse(ByteBuffer.wrap(body));
+            if (m.id != p.id) throw new IOException("Mismatched TCP answer from " + server);
+            p.future.complete(new Answer(p.name, p.type, m.rcode, m.records, System.nanoTime() - p.sent, true));
+        } catch (IOException | RuntimeException e) {
+            p.future.completeExceptionally(e instanceof EOFException ? new IOException("TCP answer cut short", e) : e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+        timer.shutdownNow();
+        tcpPool.shutdownNow();
+        IOException e = new IOException("Resolver closed");
+        for (Pending p : pending.values()) fail(p, e);
+    }
+
+    static byte[] encodeQuery(int id, String name, Type type) {
+        ByteBuffer b = ByteBuffer.allocate(12 + 256 + 4 + 11);
+        b.putShort((short) id).putShort((short) 0x0100) // RD
+         .putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) 1); // 1 question, 1 OPT
+        putName(b, name);
+        b.putShort((short) type.code).putShort((short) 1); // IN
+        b.put((byte) 0).putShort((short) 41).putShort((short) UDP_PAYLOAD).putInt(0).putShort((short) 0); // OPT
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    static void putName(ByteBuffer b, String name) {
+        if (!name.isEmpty()) {
+            for (String label : name.split("\\.", -1)) {
+                byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+                if (bytes.length == 0 || bytes.length > 63) throw new IllegalArgumentException("Bad DNS name: " + name);
+                b.put((byte) bytes.length).put(bytes);
+            }
+        }
+        b.put((byte) 0);
+    }
+
+    // Just enough of a response to answer the question: header, question and the answer section
+    static final class Message {
+        int id;
+        int flags;
+        boolean truncated;
+        int rcode;
+        String question = "";
+        int qtype;
+        List<Record> records = Collections.emptyList();
+
+        static Message parse(ByteBuffer b) throws IOException {
+            try {
+                Message m = new Message();
+                m.id = b.getShort(0) & 0xFFFF;
+                m.flags = b.getShort(2) & 0xFFFF;
+                m.truncated = (m.flags & 0x0200) != 0;
+                m.rcode = m.flags & 0xF;
+                int qd = b.getShort(4) & 0xFFFF, an = b.getShort(6) & 0xFFFF;
+                int pos = 12;
+                for (int i = 0; i < qd; i++) {
+                    StringBuilder name = new StringBuilder();
+                    pos = readName(b, pos, name);
+                    if (i == 0) {
+                        m.question = name.toString();
+                        m.qtype = b.getShort(pos) & 0xFFFF;
+                    }
+                    pos += 4;
+                }
+                if (m.truncated) return m;
+                m.records = new ArrayList<>(an);
+                for (int i = 0; i < an; i++) {
+                    StringBuilder name = new StringBuilder();
+                    pos = readName(b, pos, name);
+                    int type = b.getShort(pos) & 0xFFFF;
+                    long ttl = b.getInt(pos + 4) & 0xFFFFFFFFL;
+                    int len = b.getShort(pos + 8) & 0xFFFF;
+                    pos += 10;
+                    if (pos + len > b.limit()) throw new IOException("DNS record runs past the message");
+                    m.records.add(new Record(name.toString(), type, ttl, rdata(b, type, pos, len)));
+                    pos += len;
+                }
+                return m;
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Malformed DNS message", e);
+            }
+        }
+
+        private static String rdata(ByteBuffer b, int type, int pos, int len) throws IOException {
+            switch (type) {
+                case 1:
+                case 28: {
+                    byte[] addr = new byte[len];
+                    b.get(pos, addr);
+                    try {
+                        return InetAddress.getByAddress(addr).getHostAddress();
+                    } catch (UnknownHostException e) {
+                        throw new IOException("Bad address record", e);
+                    }
+                }
+                case 5:
+                case 12: {
+                    StringBuilder name = new StringBuilder();
+                    readName(b, pos, name);
+                    return name.toString();
+                }
+                case 15: {
+                    StringBuilder name = new StringBuilder();
+                    readName(b, pos + 2, name);
+                    return (b.getShort(pos) & 0xFFFF) + " " + name;
+                }
+                case 16: {
+                    StringBuilder sb = new StringBuilder();
+                    for (int p = pos; p < pos + len; ) {
+                        int n = b.get(p) & 0xFF;
+                        byte[] s = new byte[n];
+                        b.get(p + 1, s);
+                        if (sb.length() > 0) sb.append(' ');
+                        sb.append('"').append(new String(s, StandardCharsets.UTF_8)).append('"');
+                        p += 1 + n;
+                    }
+                    return sb.toString();
+                }
+                default: {
+                    StringBuilder sb = new StringBuilder("\\# " + len + " ");
+                    for (int i = 0; i < len; i++) sb.append(String.format("%02x", b.get(pos + i)));
+                    return sb.toString();
+                }
+            }
+        }
+
+        // Reads a possibly compressed name at pos; returns where the name ends in the message
+        static int readName(ByteBuffer b, int pos, StringBuilder out) throws IOException {
+            int end = -1;
+            for (int jumps = 0; ; ) {
+                int len = b.get(pos) & 0xFF;
+                if (len == 0) {
+                    return end < 0 ? pos + 1 : end;
+                }
+                if ((len & 0xC0) == 0xC0) {
+                    if (++jumps > 64) throw new IOException("DNS name compression loop");
+                    if (end < 0) end = pos + 2;
+                    pos = ((len & 0x3F) << 8) | (b.get(pos + 1) & 0xFF);
+                    continue;
+                }
+                byte[] label = new byte[len];
+                b.get(pos + 1, label);
+                if (out.length() > 0) out.append('.');
+                out.append(new String(label, StandardCharsets.US_ASCII));
+                pos += 1 + len;
+            }
+        }
+    }
+}
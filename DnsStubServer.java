@@ -0,0 +1,217 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A tiny authoritative DNS server for trying DnsResolver without a real one. DnsBatch resolves
+// through InetAddress and so cannot be pointed at it. It answers from a fixed zone over UDP and TCP
+// on the same port, and sets the truncation bit when an answer is larger than --udp-limit or the
+// client's advertised UDP size, so the TCP fallback gets exercised too.
+//
+//   java DnsStubServer [--port=5353] [--udp-limit=512] --zone=FILE
+//
+// Zone lines are "name TYPE ttl value", e.g. "mail.test MX 300 10 mx1.test" or
+// "t.test TXT 60 some text"; # starts a comment. Names that are not in the zone get NXDOMAIN.
+final class DnsStubServer implements AutoCloseable {
+
+    private final Map<String, List<byte[]>> zone = new ConcurrentHashMap<>(); // "name/type" -> encoded records
+    private final Map<String, Boolean> names = new ConcurrentHashMap<>();
+    private final DatagramChannel udp;
+    private final ServerSocket tcp;
+    private final int udpLimit;
+
+    DnsStubServer(int port, int udpLimit) throws IOException {
+        this.udpLimit = udpLimit;
+        udp = DatagramChannel.open().setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20).bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        tcp = new ServerSocket(udp.socket().getLocalPort(), 50, InetAddress.getLoopbackAddress());
+        start("dns-stub-udp", this::serveUdp);
+        start("dns-stub-tcp", this::serveTcp);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = 5353, limit = 512;
+        String zoneFile = null;
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) port = Integer.parseInt(arg.substring(7));
+            else if (arg.startsWith("--udp-limit=")) limit = Integer.parseInt(arg.substring(12));
+            else if (arg.startsWith("--zone=")) zoneFile = arg.substring(7);
+            else {
+                System.err.println("Unexpected argument: " + arg);
+                System.exit(2);
+            }
+        }
+        if (zoneFile == null) {
+            System.err.println("Usage: java DnsStubServer [--port=5353] [--udp-limit=512] --zone=FILE");
+            System.exit(2);
+        }
+        DnsStubServer stub = new DnsStubServer(port, limit);
+        int records = 0;
+        for (String line : Files.readAllLines(Paths.get(zoneFile), StandardCharsets.UTF_8)) {
+            int hash = line.indexOf('#');
+            String s = (hash < 0 ? line : line.substring(0, hash)).trim();
+            if (s.isEmpty()) continue;
+            String[] w = s.split("\\s+", 4);
+            if (w.length < 4) throw new IllegalArgumentException("Bad zone line: " + line);
+            stub.add(w[0], DnsResolver.Type.valueOf(w[1].toUpperCase(Locale.ROOT)), Long.parseLong(w[2]), w[3]);
+            records++;
+        }
+        System.out.println("Serving " + records + " records on 127.0.0.1:" + stub.port() + " (udp and tcp)");
+        Thread.currentThread().join();
+    }
+
+    int port() {
+        return tcp.getLocalPort();
+    }
+
+    // value is what DnsResolver prints for the type: an address, a name, "pref name" or text
+    DnsStubServer add(String name, DnsResolver.Type type, long ttl, String value) throws IOException {
+        String key = key(name);
+        ByteBuffer rdata = ByteBuffer.allocate(1024);
+        switch (type) {
+            case A:
+            case AAAA:
+                rdata.put(InetAddress.getByName(value).getAddress());
+                break;
+            case CNAME:
+            case PTR:
+                DnsResolver.putName(rdata, trim(value));
+                break;
+            case MX: {
+                String[] w = value.trim().split("\\s+", 2);
+                rdata.putShort(Short.parseShort(w[0]));
+                DnsResolver.putName(rdata, trim(w[1]));
+                break;
+            }
+            case TXT: {
+                byte[] text = value.getBytes(StandardCharsets.UTF_8);
+                for (int i = 0; i < text.length || i == 0; i += 255) {
+                    int n = Math.min(255, text.length - i);
+                    rdata.put((byte) n).put(text, i, n);
+                }
+                break;
+            }
+        }
+        rdata.flip();
+        ByteBuffer rr = ByteBuffer.allocate(256 + 10 + rdata.remaining());
+        DnsResolver.putName(rr, key);
+        rr.putShort((short) type.code).putShort((short) 1).putInt((int) ttl).putShort((short) rdata.remaining()).put(rdata);
+        names.put(key, true);
+        zone.computeIfAbsent(key + "/" + type.code, k -> new ArrayList<>()).add(Arrays.copyOf(rr.array(), rr.position()));
+        return this;
+    }
+
+    private static String trim(String name) {
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static String key(String name) {
+        return trim(name).toLowerCase(Locale.ROOT);
+    }
+
+    // The response to one query, or null when it is not worth answering; limit is the UDP size (0 over TCP)
+    byte[] answer(ByteBuffer query, int limit) {
+        try {
+            DnsResolver.Message q = DnsResolver.Message.parse(query);
+            if ((q.flags & 0x8000) != 0 || q.question.isEmpty()) return null;
+            int end = DnsResolver.Message.readName(query, 12, new StringBuilder()) + 4;
+            if (limit > 0) limit = Math.min(limit, ednsSize(query, end));
+
+            String key = key(q.question);
+            List<byte[]> records = zone.getOrDefault(key + "/" + q.qtype, List.of());
+            int size = end;
+            for (byte[] r : records) size += r.length;
+            boolean truncated = limit > 0 && size > limit;
+            int rcode = names.containsKey(key) ? 0 : 3;
+
+            ByteBuffer out = ByteBuffer.allocate(truncated ? end : size);
+            out.putShort((short) q.id)
+               .putShort((short) (0x8400 | (q.flags & 0x0100) | (truncated ? 0x0200 : 0) | rcode)) // QR AA RD
+               .putShort((short) 1).putShort((short) (truncated ? 0 : records.size()))
+               .putShort((short) 0).putShort((short) 0);
+            out.put(query.array(), 12, end - 12);
+            if (!truncated) {
+                for (byte[] r : records) out.put(r);
+            }
+            return out.array();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // The UDP size an OPT record right after the question advertises, 512 without one
+    private static int ednsSize(ByteBuffer query, int pos) {
+        if ((query.getShort(10) & 0xFFFF) == 0 || pos + 11 > query.limit()) return 512;
+        if (query.get(pos) != 0 || (query.getShort(pos + 1) & 0xFFFF) != 41) return 512;
+        return Math.max(512, query.getShort(pos + 3) & 0xFFFF);
+    }
+
+    private void serveUdp() {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        while (udp.isOpen()) {
+            try {
+                buf.clear();
+                SocketAddress from = udp.receive(buf);
+                buf.flip();
+                byte[] reply = answer(ByteBuffer.wrap(Arrays.copyOf(buf.array(), buf.limit())), udpLimit);
+                if (reply != null) udp.send(ByteBuffer.wrap(reply), from);
+            } catch (IOException e) {
+                if (!udp.isOpen()) return;
+            }
+        }
+    }
+
+    private void serveTcp() {
+        while (!tcp.isClosed()) {
+            try {
+                Socket s = tcp.accept();
+                start("dns-stub-conn", () -> {
+                    try (Socket conn = s) {
+                        DataInputStream in = new DataInputStream(conn.getInputStream());
+                        DataOutputStream out = new DataOutputStream(conn.getOutputStream());
+                        while (true) {
+                            byte[] query = new byte[in.readUnsignedShort()];
+                            in.readFully(query);
+                            byte[] reply = answer(ByteBuffer.wrap(query), 0);
+                            if (reply == null) return;
+                            out.writeShort(reply.length);
+                            out.write(reply);
+                            out.flush();
+                        }
+                    } catch (IOException ignored) {
+                        // client went away
+                    }
+                });
+            } catch (IOException e) {
+                if (tcp.isClosed()) return;
+            }
+        }
+    }
+
+    private static void start(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        udp.close();
+        tcp.close();
+    }
+}
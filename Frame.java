@@ -0,0 +1,219 @@
+package sb.server;
+
+import sb.protocol.BinaryProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// One outbound protocol line, UTF-8 encoded once and shared read-only by every recipient.
+// The bytes live off-heap, sliced from pooled direct chunks so small frames stay cheap. History
+// lines and their cached encodings come from chunks of their own, so a line the ring still holds
+// never keeps a chunk of short-lived replies and typing events alive.
+final class Frame {
+
+    // How a connection wants frames rendered on the wire
+    enum Format {
+        TEXT,      // the plain line protocol
+        SEQUENCED, // history lines prefixed with "#<seq> " (clients that sent HISTORY_SINCE)
+        BINARY     // BinaryProtocol frames (clients that opened with HELLO)
+    }
+
+    private static final byte[] LINE_SEP = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_POOLED = 16 * 1024;
+
+    private static final Arena HISTORY = new Arena();   // frames with a seq, freed in ring order
+    private static final Arena TRANSIENT = new Arena(); // everything else, gone once written
+
+    // Stored history lines that follow a transcript export frame's header. Plain sockets get them
+    // with FileChannel.transferTo straight from the chat log; other writers use the mapped lines.
+    static final class Region {
+        final long firstSeq;
+        final int count;        // lines
+        final FileChannel file; // null when history is memory-only
+        final long position;
+        private final ByteBuffer lines;
+
+        Region(long firstSeq, int count, FileChannel file, long position, ByteBuffer lines) {
+            this.firstSeq = firstSeq;
+            this.count = count;
+            this.file = file;
+            this.position = position;
+            this.lines = lines;
+        }
+
+        ByteBuffer lines() {
+            return lines.duplicate();
+        }
+
+        int size() {
+            return lines.remaining();
+        }
+
+        // Sends what target takes of the lines from offset on: from the file, or from the mapped
+        // lines once the chat log has closed the file of an older segment
+        long transferTo(long offset, WritableByteChannel target) throws IOException {
+            if (file.isOpen()) {
+                try {
+                    return file.transferTo(position + offset, size() - offset, target);
+                } catch (ClosedChannelException e) {
+                    if (file.isOpen()) throw e;
+                }
+            }
+            return target.write(lines().position((int) offset));
+        }
+    }
+
+    private String text; // decoded on demand for frames read back from the chat log
+    final long seq; // history sequence number, 0 for lines that are not kept in history
+    final int senderId; // ClientHandler id of the author, 0 if unknown or the server
+    private final ByteBuffer bytes;
+    private volatile ByteBuffer sequencedBytes;
+    private volatile ByteBuffer binaryBytes;
+    private final Region region; // null for everything but export chunks
+
+    private Frame(String text, long seq, int senderId, ByteBuffer bytes) {
+        this(text, seq, senderId, bytes, null);
+    }
+
+    private Frame(String text, long seq, int senderId, ByteBuffer bytes, Region region) {
+        this.text = text;
+        this.seq = seq;
+        this.senderId = senderId;
+        this.bytes = bytes;
+        this.region = region;
+    }
+
+    static Frame of(String text) {
+        return of(text, 0, 0);
+    }
+
+    static Frame of(String text, long seq, int senderId) {
+        return new Frame(text, seq, senderId, encode(text, seq != 0 ? HISTORY : TRANSIENT));
+    }
+
+    // Wraps already-encoded line(s), separators included, e.g. a slice of a mapped log segment
+    static Frame mapped(ByteBuffer lines, long seq) {
+        return new Frame(null, seq, 0, lines);
+    }
+
+    // Bytes that go out unchanged whatever the connection's format (protocol handshakes)
+    static Frame raw(ByteBuffer bytes) {
+        Frame f = new Frame("", 0, 0, bytes);
+        f.binaryBytes = bytes;
+        return f;
+    }
+
+    // One chunk of a transcript export: the buffers hold only its header, the lines are the region
+    static Frame export(Region region) {
+        String header = "[export] data " + region.firstSeq + " " + region.count + " " + region.size();
+        Frame f = new Frame(header, 0, 0, encode(header, TRANSIENT), region);
+        f.binaryBytes = BinaryProtocol.header(BinaryProtocol.EXPORT_DATA, region.size(), region.firstSeq, 0)
+                .asReadOnlyBuffer();
+        return f;
+    }
+
+    Region region() {
+        return region;
+    }
+
+    String text() {
+        String t = text;
+        if (t == null) {
+            ByteBuffer b = buffer();
+            b.limit(Math.max(b.position(), b.limit() - LINE_SEP.length));
+            t = StandardCharsets.UTF_8.decode(b).toString();
+            text = t;
+        }
+        return t;
+    }
+
+    // A fresh view for one write; shares the memory, only the position is private
+    ByteBuffer buffer() {
+        return bytes.duplicate();
+    }
+
+    // Alternative formats are encoded on first use and then shared like the plain form
+    ByteBuffer buffer(Format format) {
+        switch (format) {
+            case SEQUENCED: {
+                if (seq == 0) return buffer();
+                ByteBuffer b = sequencedBytes;
+                if (b == null) {
+                    b = encode("#" + seq + " " + text(), HISTORY);
+                    sequencedBytes = b;
+                }
+                return b.duplicate();
+            }
+            case BINARY: {
+                ByteBuffer b = binaryBytes;
+                if (b == null) {
+                    String t = text();
+                    ByteBuffer encoded = BinaryProtocol.encode(BinaryProtocol.opcodeFor(t), seq, senderId,
+                            t.getBytes(StandardCharsets.UTF_8));
+                    b = (seq != 0 ? HISTORY : TRANSIENT).allocate(encoded.remaining()).put(encoded).flip().asReadOnlyBuffer();
+                    binaryBytes = b;
+                }
+                return b.duplicate();
+            }
+            default:
+                return buffer();
+        }
+    }
+
+    int size() {
+        return bytes.remaining();
+    }
+
+    // Puts this frame's views into gather from i on and returns the next free index. An export chunk
+    // takes two slots, header and lines, or with single one copied buffer so a compressor cannot split it.
+    int gather(Format format, boolean single, ByteBuffer[] gather, int i) {
+        ByteBuffer b = buffer(format);
+        if (region == null) {
+            gather[i] = b;
+            return i + 1;
+        }
+        if (!single) {
+            gather[i] = b;
+            gather[i + 1] = region.lines();
+            return i + 2;
+        }
+        gather[i] = ByteBuffer.allocate(b.remaining() + region.size()).put(b).put(region.lines()).flip();
+        return i + 1;
+    }
+
+    private static ByteBuffer encode(String text, Arena arena) {
+        byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = arena.allocate(encoded.length + LINE_SEP.length);
+        buf.put(encoded).put(LINE_SEP).flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    // Lock-free bump allocation from a shared chunk; a chunk is freed once every frame sliced from
+    // it is. A thread that finds the chunk full installs a new one, and the loser of that race
+    // retries in the winner's chunk.
+    private static final class Arena {
+        private final AtomicReference<Chunk> current = new AtomicReference<>(new Chunk());
+
+        ByteBuffer allocate(int size) {
+            if (size > MAX_POOLED) return ByteBuffer.allocateDirect(size);
+            while (true) {
+                Chunk c = current.get();
+                int start = c.top.getAndAdd(size);
+                if (start + size <= CHUNK_SIZE) return c.memory.slice(start, size);
+                if (current.get() == c) current.compareAndSet(c, new Chunk());
+            }
+        }
+    }
+
+    private static final class Chunk {
+        final ByteBuffer memory = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        final AtomicInteger top = new AtomicInteger();
+    }
+}
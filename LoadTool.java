@@ -0,0 +1,235 @@
+package sb.client;
+
+import sb.protocol.BinaryProtocol;
+import sb.protocol.VirtualThreads;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLSocketFactory;
+
+// Drives load against a running SyncBridgeServer with many simulated, headless sessions.
+// Every session sends messages at --rate per second, with typing and read events mixed in, and
+// times every message it receives from another session (all sessions share this JVM's clock).
+//
+//   java sb.client.LoadTool [--host=127.0.0.1] [--port=5050] [--sessions=1000] [--duration=30]
+//        [--rate=0.2] [--typing=1] [--read=0.5] [--room=lobby] [--protocol=binary|text] [--compress=false]
+//        [--tls=false] [--truststore=FILE | --tls-test-keys=true]
+//
+// With TLS the server's certificate must be trusted by --truststore, by the bundled
+// syncbridge-test-trust.p12 with --tls-test-keys=true, or else by the JVM's default CAs.
+// --typing and --read are events per message sent. Sessions run on virtual threads when the JDK
+// has them (21+), otherwise on platform threads.
+public final class LoadTool {
+
+    private static final String MARK = "~lt ";
+
+    private final String host;
+    private final int port;
+    private final int sessions;
+    private final int durationSeconds;
+    private final double rate;
+    private final double typingPerMessage;
+    private final double readPerMessage;
+    private final String room;
+    private final boolean binary;
+    private final boolean compress;
+    private final boolean tls;
+    private final String trustStore; // null for the JVM's default CAs
+    private final String runId = Long.toString(System.currentTimeMillis() % 100_000, 36);
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+    private final AtomicInteger busy = new AtomicInteger(); // sessions the server turned away
+    private final Histogram latency = new Histogram();
+    private volatile boolean running = true;
+
+    private LoadTool(Map<String, String> options) {
+        host = options.getOrDefault("host", "127.0.0.1");
+        port = Integer.parseInt(options.getOrDefault("port", "5050"));
+        sessions = Integer.parseInt(options.getOrDefault("sessions", "1000"));
+        durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        rate = Double.parseDouble(options.getOrDefault("rate", "0.2"));
+        typingPerMessage = Double.parseDouble(options.getOrDefault("typing", "1"));
+        readPerMessage = Double.parseDouble(options.getOrDefault("read", "0.5"));
+        room = options.getOrDefault("room", "lobby");
+        binary = !"text".equals(options.get("protocol"));
+        compress = Boolean.parseBoolean(options.getOrDefault("compress", "false"));
+        tls = Boolean.parseBoolean(options.getOrDefault("tls", "false"));
+        trustStore = options.getOrDefault("truststore",
+                Boolean.parseBoolean(options.get("tls-test-keys")) ? "syncbridge-test-trust.p12" : null);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                System.err.println("Unexpected argument: " + arg + " (options are --key=value)");
+                System.exit(2);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        new LoadTool(options).run();
+    }
+
+    private void run() throws InterruptedException {
+        SSLSocketFactory factory = null;
+        if (tls) {
+            try {
+                // shared: sessions resume
+                factory = ChatConnection.tls(trustStore == null ? null : Paths.get(trustStore), "syncbridge".toCharArray());
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                return;
+            }
+        }
+        ExecutorService executor = VirtualThreads.executorOrFallback(Executors::newCachedThreadPool);
+        boolean virtual = VirtualThreads.available();
+        System.out.printf("%d sessions against %s:%d (%s, %s threads), %.2f msg/s each for %ds%n",
+                sessions, host, port, binary ? "binary" : "text", virtual ? "virtual" : "platform",
+                rate, durationSeconds);
+
+        List<ChatConnection> conns = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            try {
+                ChatConnection conn = ChatConnection.open(host, port, binary, compress, factory, new Receiver());
+                conn.command(BinaryProtocol.NICK, 0, "load-" + runId + "-" + i);
+                if (!room.equals("lobby")) conn.command(BinaryProtocol.JOIN, 0, room);
+                conns.add(conn);
+                connected.incrementAndGet();
+                executor.execute(conn::readLoop);
+            } catch (IOException e) {
+                System.err.println("Session " + i + " could not connect: " + e.getMessage());
+            }
+        }
+        Thread.sleep(1000); // let every session join before anyone talks
+
+        long start = System.nanoTime();
+        for (ChatConnection conn : conns) executor.execute(() -> talk(conn, start));
+
+        long lastSent = 0, lastDelivered = 0;
+        for (int t = 5; t <= durationSeconds; t += 5) {
+            Thread.sleep(5000);
+            long s = sent.sum(), d = delivered.sum();
+            System.out.printf("t=%3ds  sent %,8.0f msg/s  delivered %,10.0f msg/s  p50=%s p99=%s  open=%d%n",
+                    t, (s - lastSent) / 5.0, (d - lastDelivered) / 5.0,
+                    latency.percentile(0.50), latency.percentile(0.99), connected.get() - closed.get());
+            lastSent = s;
+            lastDelivered = d;
+        }
+        Thread.sleep((durationSeconds % 5) * 1000L);
+        running = false;
+        Thread.sleep(1000); // deliveries still in flight
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("sent %,d messages (%,.0f/s), delivered %,d (%,.0f/s) to %d sessions, %d closed by the server (%d busy)%n",
+                sent.sum(), sent.sum() / seconds, delivered.sum(), delivered.sum() / seconds,
+                connected.get(), closed.get(), busy.get());
+        System.out.printf("delivery latency  p50=%s  p99=%s  p99.9=%s  max=%s%n",
+                latency.percentile(0.50), latency.percentile(0.99), latency.percentile(0.999), latency.percentile(1.0));
+
+        for (ChatConnection conn : conns) {
+            conn.command(BinaryProtocol.QUIT);
+            conn.close();
+        }
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    // One session's sending side; sleeps are randomized so sessions do not fire in lockstep
+    private void talk(ChatConnection conn, long start) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double meanGapNanos = 1e9 / Math.max(rate, 1e-6);
+        try {
+            Thread.sleep((long) (random.nextDouble() * meanGapNanos / 1e6));
+            while (running && conn.isOpen()) {
+                if (random.nextDouble() < typingPerMessage) conn.command(BinaryProtocol.TYPING_ON);
+                conn.command(BinaryProtocol.MSG, 0, MARK + System.nanoTime());
+                sent.increment();
+                if (random.nextDouble() < typingPerMessage) conn.command(BinaryProtocol.TYPING_OFF);
+                if (random.nextDouble() < readPerMessage) conn.command(BinaryProtocol.READ);
+                long gap = (long) (meanGapNanos * (0.5 + random.nextDouble()));
+                TimeUnit.NANOSECONDS.sleep(gap);
+            }
+        } catch (InterruptedException ignored) {
+            // shutting down
+        }
+    }
+
+    private final class Receiver implements ChatConnection.Listener {
+        @Override
+        public void onLine(long seq, String line) {
+            if (line.startsWith("[busy]")) busy.incrementAndGet();
+            int mark = line.indexOf(": " + MARK);
+            if (mark < 0) return;
+            try {
+                long sentAt = Long.parseLong(line.substring(mark + 2 + MARK.length()).trim());
+                latency.record(System.nanoTime() - sentAt);
+                delivered.increment();
+            } catch (NumberFormatException ignored) {
+                // someone else's chat line that happens to look like ours
+            }
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            closed.incrementAndGet();
+        }
+    }
+
+    // Lock-free latency histogram in microseconds: 32 linear sub-buckets per power of two,
+    // so every value is reported within about 3% of what was recorded.
+    static final class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB);
+
+        void record(long nanos) {
+            counts.incrementAndGet(index(Math.max(0, nanos / 1000)));
+        }
+
+        private static int index(long micros) {
+            if (micros < SUB) return (int) micros;
+            int exp = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB - 1);
+            return (exp - SUB_BITS + 1) * SUB + sub;
+        }
+
+        private static long lowerBound(int index) {
+            if (index < SUB) return index;
+            int exp = index / SUB + SUB_BITS - 1;
+            return (long) (SUB + index % SUB) << (exp - SUB_BITS);
+        }
+
+        String percentile(double p) {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+            if (total == 0) return "-";
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return format(lowerBound(i));
+            }
+            return "-";
+        }
+
+        private static String format(long micros) {
+            return micros < 10_000 ? micros + "us" : String.format("%.1fms", micros / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package sb.server;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Console logging off the hot path: callers only enqueue a line, one daemon thread writes them.
+// At most --log-rate lines per second reach the console (0 = no limit); the rest, and anything
+// that does not fit the queue, is counted and reported as suppressed once a second.
+final class Log {
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int MAX_BATCH = 512;
+
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    static final LongAdder suppressed = new LongAdder();
+    private static volatile int rate = 1000;
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "sb-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {
+    }
+
+    static void configure(ServerOptions options) {
+        rate = Math.max(0, options.integer("log-rate", rate));
+    }
+
+    static void info(String line) {
+        offer(new Entry(false, line));
+    }
+
+    static void warn(String line) {
+        offer(new Entry(true, line));
+    }
+
+    private static void offer(Entry e) {
+        if (!queue.offer(e)) suppressed.increment();
+    }
+
+    private static void writeLoop() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        TokenBucket bucket = new TokenBucket(rate, rate);
+        int bucketRate = rate;
+        long reported = 0;
+        long lastReport = System.nanoTime();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            if (bucketRate != rate) {
+                bucketRate = rate;
+                bucket = new TokenBucket(bucketRate, bucketRate);
+            }
+            for (Entry e : batch) {
+                if (!bucket.tryAcquire()) {
+                    suppressed.increment();
+                } else {
+                    (e.error ? err : out).append(e.text).append(System.lineSeparator());
+                }
+            }
+            batch.clear();
+
+            long now = System.nanoTime();
+            long total = suppressed.sum();
+            if (total > reported && now - lastReport >= 1_000_000_000L) {
+                out.append("[log] ").append(total - reported).append(" lines suppressed").append(System.lineSeparator());
+                reported = total;
+                lastReport = now;
+            }
+            write(System.out, out);
+            write(System.err, err);
+        }
+    }
+
+    private static void write(PrintStream stream, StringBuilder text) {
+        if (text.length() == 0) return;
+        stream.print(text);
+        stream.flush();
+        text.setLength(0);
+    }
+
+    private static final class Entry {
+        final boolean error;
+        final String text;
+
+        Entry(boolean error, String text) {
+            this.error = error;
+            this.text = text;
+        }
+    }
+}
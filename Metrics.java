@@ -0,0 +1,261 @@
+package sb.server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Server counters, readable over JMX (sb.server:type=Metrics) and, with --metrics-port, as
+// Prometheus text at http://<--metrics-bind, default 127.0.0.1>:<port>/metrics.
+// Hot paths only bump LongAdders; queue depths and history sizes are read when scraped.
+final class Metrics {
+
+    enum Command { HELLO, NICK, MSG, TYPING, READ, SAVE_CHAT, HISTORY_SINCE, HISTORY_BEFORE, JOIN, LEAVE, RESUME, ACK, COMPRESS, EXPORT, SEARCH, QUIT, OTHER }
+
+    // upper bounds of the fan-out time buckets, in seconds
+    private static final double[] FAN_OUT_BUCKETS = {0.00001, 0.00005, 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5};
+
+    static final LongAdder connectionsOpened = new LongAdder();
+    static final LongAdder connectionsClosed = new LongAdder();
+    static final LongAdder bytesWritten = new LongAdder();
+    static final LongAdder compressedIn = new LongAdder();
+    static final LongAdder compressedOut = new LongAdder();
+    static final LongAdder deliveries = new LongAdder();
+    static final LongAdder tlsHandshakes = new LongAdder();
+    private static final LongAdder[] commands = adders(Command.values().length);
+    private static final LongAdder[] rejections = adders(Admission.Reason.values().length);
+    private static final LongAdder[] frames = adders(OutboundQueue.Kind.values().length * OutboundQueue.Result.values().length);
+    private static final LongAdder[] fanOutBuckets = adders(FAN_OUT_BUCKETS.length + 1);
+    private static final LongAdder fanOutNanos = new LongAdder();
+
+    private Metrics() {
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) a[i] = new LongAdder();
+        return a;
+    }
+
+    static void command(Command c) {
+        commands[c.ordinal()].increment();
+    }
+
+    static void rejected(Admission.Reason reason) {
+        rejections[reason.ordinal()].increment();
+    }
+
+    static void frame(OutboundQueue.Kind kind, OutboundQueue.Result result) {
+        frames[kind.ordinal() * OutboundQueue.Result.values().length + result.ordinal()].increment();
+    }
+
+    // One broadcast that handed a frame to members queues, taking nanos
+    static void fanOut(int members, long nanos) {
+        deliveries.add(members);
+        fanOutNanos.add(nanos);
+        double seconds = nanos / 1e9;
+        int b = 0;
+        while (b < FAN_OUT_BUCKETS.length && seconds > FAN_OUT_BUCKETS[b]) b++;
+        fanOutBuckets[b].increment();
+    }
+
+    // Registers the MXBean and, if --metrics-port is set, starts the HTTP endpoint
+    static void start(ServerOptions options) throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(new Bean(), ServerMetricsMXBean.class, true),
+                    new ObjectName("sb.server:type=Metrics"));
+        } catch (JMException e) {
+            Log.warn("Could not register the metrics MXBean: " + e.getMessage());
+        }
+
+        int port = options.integer("metrics-port", 0);
+        if (port <= 0) return;
+        HttpServer http = HttpServer.create(new InetSocketAddress(options.string("metrics-bind", "127.0.0.1"), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+        Log.info("Metrics on http://" + http.getAddress().getHostString() + ":" + port + "/metrics");
+    }
+
+    // Prometheus text exposition format
+    static String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        long opened = connectionsOpened.sum();
+        long closed = connectionsClosed.sum();
+        gauge(sb, "sb_connections_open", "Connections currently open", opened - closed);
+        counter(sb, "sb_connections_opened_total", "Connections accepted since start", opened);
+        counter(sb, "sb_tls_handshakes_total", "TLS handshakes completed, full or resumed", tlsHandshakes.sum());
+
+        header(sb, "sb_rejected_total", "counter", "Connections, joins and messages turned away by admission control");
+        for (Admission.Reason r : Admission.Reason.values()) {
+            sb.append("sb_rejected_total{reason=\"").append(r.name().toLowerCase(Locale.ROOT)).append("\"} ")
+                    .append(rejections[r.ordinal()].sum()).append('\n');
+        }
+
+        header(sb, "sb_commands_total", "counter", "Client commands received, by command");
+        for (Command c : Command.values()) {
+            sb.append("sb_commands_total{command=\"").append(c.name().toLowerCase(Locale.ROOT)).append("\"} ")
+                    .append(commands[c.ordinal()].sum()).append('\n');
+        }
+
+        header(sb, "sb_frames_total", "counter", "Frames handed to client queues, by kind and outcome");
+        for (OutboundQueue.Kind k : OutboundQueue.Kind.values()) {
+            for (OutboundQueue.Result r : OutboundQueue.Result.values()) {
+                sb.append("sb_frames_total{kind=\"").append(k.name().toLowerCase(Locale.ROOT))
+                        .append("\",result=\"").append(r.name().toLowerCase(Locale.ROOT)).append("\"} ")
+                        .append(frames[k.ordinal() * OutboundQueue.Result.values().length + r.ordinal()].sum()).append('\n');
+            }
+        }
+        counter(sb, "sb_bytes_written_total", "Bytes written to client sockets", bytesWritten.sum());
+        counter(sb, "sb_compress_in_bytes_total", "Frame bytes deflated before writing", compressedIn.sum());
+        counter(sb, "sb_compress_out_bytes_total", "Deflated bytes those frames became", compressedOut.sum());
+        counter(sb, "sb_fanout_deliveries_total", "Frames queued by room fan-out", deliveries.sum());
+
+        header(sb, "sb_fanout_seconds", "histogram", "Time to queue one broadcast to every room member");
+        long cumulative = 0;
+        for (int b = 0; b <= FAN_OUT_BUCKETS.length; b++) {
+            cumulative += fanOutBuckets[b].sum();
+            sb.append("sb_fanout_seconds_bucket{le=\"")
+                    .append(b < FAN_OUT_BUCKETS.length ? BigDecimal.valueOf(FAN_OUT_BUCKETS[b]).toPlainString() : "+Inf")
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        sb.append("sb_fanout_seconds_sum ").append(fanOutNanos.sum() / 1e9).append('\n');
+        sb.append("sb_fanout_seconds_count ").append(cumulative).append('\n');
+
+        long depthMax = 0, depthSum = 0;
+        for (SyncBridgeServer.ClientHandler c : SyncBridgeServer.handlers()) {
+            int depth = c.queued();
+            depthMax = Math.max(depthMax, depth);
+            depthSum += depth;
+        }
+        gauge(sb, "sb_queue_depth_max", "Largest outbound queue of a connected client", depthMax);
+        gauge(sb, "sb_queue_depth_sum", "Frames waiting in all outbound queues", depthSum);
+        Sequencer sequencer = SyncBridgeServer.sequencer;
+        if (sequencer != null) {
+            gauge(sb, "sb_pipeline_backlog", "Broadcasts published but not yet fanned out", sequencer.backlog());
+        }
+
+        header(sb, "sb_room_history_lines", "gauge", "Last history sequence number, by room");
+        for (Room r : SyncBridgeServer.rooms()) {
+            sb.append("sb_room_history_lines{room=\"").append(r.name).append("\"} ").append(r.history.lastSeq()).append('\n');
+        }
+        header(sb, "sb_room_members", "gauge", "Clients subscribed, by room");
+        for (Room r : SyncBridgeServer.rooms()) {
+            sb.append("sb_room_members{room=\"").append(r.name).append("\"} ").append(r.members.size()).append('\n');
+        }
+        counter(sb, "sb_log_suppressed_total", "Console lines dropped by the log rate limit", Log.suppressed.sum());
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, "counter", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, "gauge", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static final class Bean implements ServerMetricsMXBean {
+        @Override
+        public long getConnectionsOpen() {
+            return connectionsOpened.sum() - connectionsClosed.sum();
+        }
+
+        @Override
+        public long getConnectionsOpened() {
+            return connectionsOpened.sum();
+        }
+
+        @Override
+        public Map<String, Long> getRejected() {
+            Map<String, Long> m = new LinkedHashMap<>();
+            for (Admission.Reason r : Admission.Reason.values()) m.put(r.name(), rejections[r.ordinal()].sum());
+            return m;
+        }
+
+        @Override
+        public Map<String, Long> getCommands() {
+            Map<String, Long> m = new LinkedHashMap<>();
+            for (Command c : Command.values()) m.put(c.name(), commands[c.ordinal()].sum());
+            return m;
+        }
+
+        @Override
+        public long getFramesQueued() {
+            long n = 0;
+            for (OutboundQueue.Kind k : OutboundQueue.Kind.values()) {
+                n += frames[k.ordinal() * OutboundQueue.Result.values().length + OutboundQueue.Result.QUEUED.ordinal()].sum();
+            }
+            return n;
+        }
+
+        @Override
+        public long getFramesDropped() {
+            long n = 0;
+            for (LongAdder a : frames) n += a.sum();
+            return n - getFramesQueued();
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return bytesWritten.sum();
+        }
+
+        @Override
+        public long getBroadcasts() {
+            long n = 0;
+            for (LongAdder a : fanOutBuckets) n += a.sum();
+            return n;
+        }
+
+        @Override
+        public double getBroadcastMeanMicros() {
+            long n = getBroadcasts();
+            return n == 0 ? 0 : fanOutNanos.sum() / 1e3 / n;
+        }
+
+        @Override
+        public long getMaxQueueDepth() {
+            long max = 0;
+            for (SyncBridgeServer.ClientHandler c : SyncBridgeServer.handlers()) max = Math.max(max, c.queued());
+            return max;
+        }
+
+        @Override
+        public Map<String, Long> getHistoryLines() {
+            Map<String, Long> m = new LinkedHashMap<>();
+            for (Room r : SyncBridgeServer.rooms()) m.put(r.name, r.history.lastSeq());
+            return m;
+        }
+
+        @Override
+        public long getLogSuppressed() {
+            return Log.suppressed.sum();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.*;
+
+public class MyDNSLookup {
+
+    public static void main(String[] args) {
+
+        JFrame frame = new JFrame("DNS Lookup Tool");
+        frame.setSize(500, 400);
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setLayout(new BorderLayout());
+
+        // ---------- TOP PANEL ----------
+        JPanel inputPanel = new JPanel(new FlowLayout());
+
+        JLabel label = new JLabel("Domain / IP:");
+        JTextField domainField = new JTextField(20);
+        JButton lookupButton = new JButton("Lookup");
+        JButton importButton = new JButton("Import List...");
+
+        JCheckBox reverseCheck = new JCheckBox("Reverse Lookup (IP)");
+        JCheckBox reachabilityCheck = new JCheckBox("Check Reachability");
+        JTextField portsField = new JTextField("80,443", 8); // TCP ports the reachability check probes
+        // "System" goes through the JDK resolver; a record type asks the nameserver directly
+        JComboBox<String> recordBox = new JComboBox<>(new String[]{"System", "A", "AAAA", "CNAME", "MX", "TXT", "PTR"});
+
+        inputPanel.add(label);
+        inputPanel.add(domainField);
+        inputPanel.add(lookupButton);
+        inputPanel.add(importButton);
+        inputPanel.add(reverseCheck);
+        inputPanel.add(reachabilityCheck);
+        inputPanel.add(portsField);
+        inputPanel.add(recordBox);
+
+        // ---------- RESULT AREA ----------
+        JTextArea resultArea = new JTextArea();
+        resultArea.setEditable(false);
+        JScrollPane scrollPane = new JScrollPane(resultArea);
+
+        frame.add(inputPanel, BorderLayout.NORTH);
+        frame.add(scrollPane, BorderLayout.CENTER);
+
+        // ---------- BUTTON ACTION ----------
+        // Lookups run on the engine's threads; results are appended as each address completes.
+        // Only the newest lookup may write to the result area.
+        DnsLookupEngine engine = new DnsLookupEngine(60, 3000, 256);
+        DnsResolver[] resolver = new DnsResolver[1]; // opened on first use
+        AtomicInteger current = new AtomicInteger();
+
+        lookupButton.addActionListener((ActionEvent e) -> {
+
+            String input = domainField.getText().trim();
+            resultArea.setText("");
+
+            if (input.isEmpty()) {
+                JOptionPane.showMessageDialog(frame, "Please enter a domain name or IP address!");
+                return;
+            }
+
+            boolean reverse = reverseCheck.isSelected();
+            boolean reachability = reachabilityCheck.isSelected();
+            int[] ports;
+            try {
+                ports = ReachabilityScanner.parsePorts(portsField.getText());
+            } catch (IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(frame, "Ports must look like 80,443 or 8000-8010");
+                return;
+            }
+            if (!reverse && !input.contains(".")) {
+                input = input + ".com";
+            }
+            String domain = input;
+            int lookup = current.incrementAndGet();
+
+            if (reverse) {
+                resultArea.append("Reverse DNS Lookup\n");
+            } else {
+                resultArea.append("DNS Lookup Results\n");
+            }
+            resultArea.append("----------------------\n");
+
+            // ---------- RECORD LOOKUP ----------
+            if (recordBox.getSelectedIndex() > 0) {
+                DnsResolver.Type type = reverse ? DnsResolver.Type.PTR
+                        : DnsResolver.Type.valueOf((String) recordBox.getSelectedItem());
+                try {
+                    if (resolver[0] == null) {
+                        resolver[0] = new DnsResolver(DnsResolver.systemServer(), 3000, 256);
+                    }
+                    DnsResolver dns = resolver[0];
+                    // a host name typed for a reverse lookup is resolved first, off the EDT
+                    CompletableFuture<String> name = reverse
+                            ? engine.address(domain).thenApply(DnsResolver::reverseName)
+                            : CompletableFuture.completedFuture(domain);
+                    name.thenCompose(n -> dns.query(n, type)).whenComplete((answer, failure) -> SwingUtilities.invokeLater(() -> {
+                        if (current.get() != lookup) return;
+                        Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                        if (cause instanceof UnknownHostException) {
+                            resultArea.setText("Error: Domain or IP not found, or network access blocked.");
+                            return;
+                        }
+                        if (cause != null) {
+                            resultArea.setText("Error: " + cause.getMessage());
+                            return;
+                        }
+                        resultArea.append("Query: " + answer.name + " " + type + " (" + answer.status() + ")\n");
+                        for (DnsResolver.Record r : answer.records) {
+                            resultArea.append(DnsResolver.Type.name(r.type) + ": " + r.data + "  (TTL " + r.ttl + " s)\n");
+                        }
+                        resultArea.append("----------------------\n");
+                        resultArea.append(String.format("DNS Query Time: %.3f ms%s%n",
+                                answer.rttNanos / 1e6, answer.tcp ? " (TCP)" : ""));
+                    }));
+                } catch (IOException ex) {
+                    resultArea.setText("Error: Could not open a DNS socket: " + ex.getMessage());
+                }
+                return;
+            }
+
+            ReachabilityScanner.Stats reachStats = new ReachabilityScanner.Stats();
+            engine.lookup(domain, reverse, reachability, ports, new DnsLookupEngine.Listener() {
+                @Override
+                public void result(InetAddress address, String hostName, String canonicalName,
+                                   ReachabilityScanner.Result reach) {
+                    if (reach != null) reachStats.add(reach);
+                    SwingUtilities.invokeLater(() -> {
+                        if (current.get() != lookup) return;
+                        if (!reverse) {
+                            resultArea.append("Domain: " + domain + "\n");
+                        }
+                        resultArea.append("IP Address: " + address.getHostAddress() + "\n");
+                        resultArea.append("Host Name: " + hostName + "\n");
+                        resultArea.append("Canonical Name: " + canonicalName + "\n");
+                        if (reach != null) {
+                            resultArea.append("Reachable: " + reach + "\n");
+                        }
+                        if (!reverse) {
+                            resultArea.append("----------------------\n");
+                        }
+                    });
+                }
+
+                @Override
+                public void done(long millis, boolean cached, Exception failure) {
+                    SwingUtilities.invokeLater(() -> {
+                        if (current.get() != lookup) return;
+                        if (failure != null) {
+                            resultArea.setText("Error: Domain or IP not found, or network access blocked.");
+                        } else {
+                            if (reachability) {
+                                resultArea.append("Reachability: " + reachStats + "\n");
+                            }
+                            resultArea.append("DNS Lookup Time: " + millis + " ms" + (cached ? " (cached)" : "") + "\n");
+                        }
+                    });
+                }
+            });
+        });
+
+        // ---------- BATCH IMPORT ----------
+        // Resolves every host in a list file and writes the results next to it as CSV (or JSON
+        // when saved as .json); the report appears in the result area when the batch is done.
+        importButton.addActionListener((ActionEvent e) -> {
+
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) return;
+            File in = chooser.getSelectedFile();
+            chooser.setSelectedFile(new File(in.getParentFile(), in.getName() + ".csv"));
+            if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) return;
+            File out = chooser.getSelectedFile();
+
+            DnsBatch.Format format = out.getName().endsWith(".json") ? DnsBatch.Format.JSON : DnsBatch.Format.CSV;
+            int[] ports;
+            try {
+                ports = ReachabilityScanner.parsePorts(portsField.getText());
+            } catch (IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(frame, "Ports must look like 80,443 or 8000-8010");
+                return;
+            }
+            DnsBatch batch = new DnsBatch(engine, 64, reachabilityCheck.isSelected(), ports, format);
+            current.incrementAndGet(); // a running single lookup no longer writes here
+            importButton.setEnabled(false);
+            resultArea.setText("Batch Lookup: " + in.getName() + "\n");
+            resultArea.append("----------------------\n");
+
+            Thread worker = new Thread(() -> {
+                String report;
+                try (Writer w = Files.newBufferedWriter(out.toPath(), StandardCharsets.UTF_8)) {
+                    List<String> hosts = DnsBatch.readHosts(Files.readAllLines(in.toPath(), StandardCharsets.UTF_8));
+                    DnsBatch.Summary summary = batch.run(hosts, w,
+                            line -> SwingUtilities.invokeLater(() -> resultArea.append(line + "\n")));
+                    report = summary + "\nResults: " + out + "\n";
+                } catch (IOException | InterruptedException ex) {
+                    report = "Error: " + ex.getMessage() + "\n";
+                }
+                String text = report;
+                SwingUtilities.invokeLater(() -> {
+                    resultArea.append(text);
+                    importButton.setEnabled(true);
+                });
+            }, "dns-batch");
+            worker.setDaemon(true);
+            worker.start();
+        });
+
+        frame.setVisible(true);
+    }
+}
\ No newline at end of file
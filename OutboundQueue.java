@@ -0,0 +1,114 @@
+package sb.server;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded per-client queue of outbound frames. Broadcasters only enqueue; the connection's
+// own writer drains it in batches so many queued frames go out in a single write.
+final class OutboundQueue {
+
+    enum Kind {
+        MESSAGE,   // chat and system lines, counted against the capacity
+        EPHEMERAL, // typing events, dropped first once the client falls behind
+        REPLAY     // history, search results and exports, allowed past the capacity up to the replay limit
+    }
+
+    enum Result { QUEUED, DROPPED, OVERFLOW }
+
+    // --queue-capacity, --queue-ephemeral-limit, --queue-replay-limit, --slow-consumer=disconnect|drop
+    static int capacity = 4096;
+    static int ephemeralLimit = 256;
+    static int replayLimit = 4096 + 8192; // room for a full default history on top of a full queue
+    static boolean disconnectSlowConsumers = true;
+
+    static void configure(ServerOptions options) {
+        capacity = Math.max(1, options.integer("queue-capacity", capacity));
+        ephemeralLimit = Math.min(capacity, options.integer("queue-ephemeral-limit", Math.max(1, capacity / 16)));
+        replayLimit = Math.max(capacity, options.integer("queue-replay-limit", capacity + options.integer("history-capacity", 8192)));
+        String policy = options.string("slow-consumer", "disconnect");
+        if (!policy.equals("disconnect") && !policy.equals("drop")) {
+            throw new IllegalArgumentException("Unknown slow-consumer policy: " + policy + " (use disconnect or drop)");
+        }
+        disconnectSlowConsumers = policy.equals("disconnect");
+    }
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean shutdown;
+    volatile Frame.Format format = Frame.Format.TEXT;
+
+    Result offer(Frame frame, Kind kind) {
+        lock.lock();
+        try {
+            if (shutdown) return Result.DROPPED;
+            int size = frames.size();
+            if (kind == Kind.EPHEMERAL && size >= ephemeralLimit) return Result.DROPPED;
+            if (size >= (kind == Kind.REPLAY ? replayLimit : capacity)) return Result.OVERFLOW;
+            frames.add(frame);
+            if (size == 0) notEmpty.signal();
+            return Result.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Non-blocking drain for the selector loops
+    Frame poll() {
+        lock.lock();
+        try {
+            return frames.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until frames are available and moves up to max of them into batch;
+    // returns false once the queue is shut down and empty
+    boolean take(List<Frame> batch, int max) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty()) {
+                if (shutdown) return false;
+                notEmpty.await();
+            }
+            for (int i = 0; i < max && !frames.isEmpty(); i++) {
+                batch.add(frames.poll());
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Accepts no more frames; already queued ones are still drained
+    void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            frames.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package sb.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Typing indicators of one room as ephemeral state. TYPING_ON/OFF only update a per-user flag; once
+// per tick every member gets at most one presence line describing who is (or just stopped) typing.
+// On/off flapping inside a tick collapses to its final state, and nothing goes to history.
+final class PresenceTracker {
+
+    private static final int MAX_NAMES = 5;
+
+    private final Map<String, Long> typing = new ConcurrentHashMap<>(); // nick -> last TYPING_ON
+    private final Set<String> stopped = ConcurrentHashMap.newKeySet();
+    private final String tag; // the room's line tag
+    private final long timeoutMillis;
+    private volatile boolean dirty;
+
+    PresenceTracker(String tag, long timeoutMillis) {
+        this.tag = tag;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    static PresenceTracker create(ServerOptions options, String tag) {
+        return new PresenceTracker(tag, options.integer("typing-timeout-ms", 10_000));
+    }
+
+    void typing(String nick, boolean on) {
+        if (on) {
+            if (typing.put(nick, System.currentTimeMillis()) == null) {
+                stopped.remove(nick);
+                dirty = true;
+            }
+        } else if (typing.remove(nick) != null) {
+            stopped.add(nick);
+            dirty = true;
+        }
+    }
+
+    // A user who left simply drops out of the next presence line
+    void remove(String nick) {
+        stopped.remove(nick);
+        if (typing.remove(nick) != null) dirty = true;
+    }
+
+    // Called by the server's presence ticker
+    void tick(Collection<SyncBridgeServer.ClientHandler> clients) {
+        long expired = System.currentTimeMillis() - timeoutMillis;
+        for (Iterator<Map.Entry<String, Long>> it = typing.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> e = it.next();
+            if (e.getValue() < expired) {
+                it.remove();
+                stopped.add(e.getKey());
+                dirty = true;
+            }
+        }
+        if (!dirty) return;
+        dirty = false;
+
+        List<String> typers = new ArrayList<>(typing.keySet());
+        List<String> stops = new ArrayList<>(stopped);
+        stopped.removeAll(stops);
+        Collections.sort(typers);
+        Collections.sort(stops);
+
+        // everyone shares one frame, except the people named in it, who must not see themselves
+        Frame common = frame(typers, stops, null);
+        Map<String, Frame> personal = new HashMap<>();
+        for (SyncBridgeServer.ClientHandler c : clients) {
+            String nick = c.nick;
+            Frame f = typers.contains(nick) || stops.contains(nick)
+                    ? personal.computeIfAbsent(nick, n -> frame(typers, stops, n))
+                    : common;
+            if (f != null) c.send(f, OutboundQueue.Kind.EPHEMERAL);
+        }
+    }
+
+    // The presence line in the format clients already render; null if there is nothing to show
+    private Frame frame(List<String> typers, List<String> stops, String exclude) {
+        List<String> now = without(typers, exclude);
+        if (!now.isEmpty()) {
+            return Frame.of(tag + "[typing] " + names(now) + (now.size() == 1 ? " is typing..." : " are typing..."));
+        }
+        List<String> done = without(stops, exclude);
+        if (!done.isEmpty()) {
+            return Frame.of(tag + "[typing] " + names(done) + (done.size() == 1 ? " has stopped typing." : " have stopped typing."));
+        }
+        return null;
+    }
+
+    private static List<String> without(List<String> nicks, String exclude) {
+        if (exclude == null || !nicks.contains(exclude)) return nicks;
+        List<String> copy = new ArrayList<>(nicks);
+        copy.remove(exclude);
+        return copy;
+    }
+
+    static String names(List<String> nicks) {
+        int n = nicks.size();
+        if (n == 1) return nicks.get(0);
+        if (n <= MAX_NAMES) {
+            return String.join(", ", nicks.subList(0, n - 1)) + " and " + nicks.get(n - 1);
+        }
+        return String.join(", ", nicks.subList(0, MAX_NAMES)) + " and " + (n - MAX_NAMES) + " others";
+    }
+}
@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// Probes hosts with non-blocking TCP connects, all driven by one selector thread, instead of one
+// blocking isReachable call per address. A probe is answered when the port accepts the connection
+// or refuses it (either way the host is up), and times out on its own deadline. At most
+// maxConcurrent connects are in progress at once; the rest wait their turn.
+//
+// Without a port list the probes go to 80, 443 and 7 (the echo port isReachable falls back to
+// without ICMP privileges). An accepted probe connection is reset right away rather than closed.
+final class ReachabilityScanner implements AutoCloseable {
+
+    static final int[] DEFAULT_PORTS = {80, 443, 7};
+
+    enum State { OPEN, REFUSED, TIMEOUT, UNREACHABLE }
+
+    static final class Probe {
+        final InetAddress address;
+        final int port;
+        final State state;
+        final long rttNanos; // time to the answer, or to giving up
+
+        Probe(InetAddress address, int port, State state, long rttNanos) {
+            this.address = address;
+            this.port = port;
+            this.state = state;
+            this.rttNanos = rttNanos;
+        }
+
+        boolean answered() {
+            return state == State.OPEN || state == State.REFUSED;
+        }
+
+        @Override
+        public String toString() {
+            return port + "/" + state.name().toLowerCase() + (answered() ? String.format(" %.1f ms", rttNanos / 1e6) : "");
+        }
+    }
+
+    // Every probe of one address
+    static final class Result {
+        final InetAddress address;
+        final List<Probe> probes;
+
+        Result(InetAddress address, List<Probe> probes) {
+            this.address = address;
+            this.probes = probes;
+        }
+
+        boolean reachable() {
+            for (Probe p : probes) {
+                if (p.answered()) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(reachable() ? "YES" : "NO").append(" (");
+            for (int i = 0; i < probes.size(); i++) sb.append(i == 0 ? "" : ", ").append(probes.get(i));
+            return sb.append(')').toString();
+        }
+    }
+
+    // RTTs of answered probes, aggregated over any number of results
+    static final class Stats {
+        private int probes;
+        private int answered;
+        private long min = Long.MAX_VALUE;
+        private long max;
+        private long sum;
+
+        synchronized void add(Result r) {
+            for (Probe p : r.probes) {
+                probes++;
+                if (!p.answered()) continue;
+                answered++;
+                min = Math.min(min, p.rttNanos);
+                max = Math.max(max, p.rttNanos);
+                sum += p.rttNanos;
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (answered == 0) return answered + " of " + probes + " probes answered";
+            return String.format("%d of %d probes answered, RTT min %.2f / avg %.2f / max %.2f ms",
+                    answered, probes, min / 1e6, sum / 1e6 / answered, max / 1e6);
+        }
+    }
+
+    // One connect, owned by the selector thread once started
+    private static final class Attempt implements Comparable<Attempt> {
+        final InetSocketAddress target;
+        final CompletableFuture<Probe> future = new CompletableFuture<>();
+        SocketChannel channel;
+        long started;
+        long deadline;
+
+        Attempt(InetSocketAddress target) {
+            this.target = target;
+        }
+
+        @Override
+        public int compareTo(Attempt o) {
+            return Long.compare(deadline, o.deadline);
+        }
+    }
+
+    private final long timeoutNanos;
+    private final int maxConcurrent;
+    private final Selector selector;
+    private final Queue<Attempt> waiting = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Attempt> deadlines = new PriorityQueue<>(); // selector thread only
+    private int active; // selector thread only
+    private volatile boolean closed;
+
+    ReachabilityScanner(long timeoutMillis, int maxConcurrent) throws IOException {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.selector = Selector.open();
+        Thread t = new Thread(this::loop, "reach-scan");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Probes every port (DEFAULT_PORTS when null or empty) of the address at once
+    CompletableFuture<Result> scan(InetAddress address, int[] ports) {
+        int[] list = ports == null || ports.length == 0 ? DEFAULT_PORTS : ports;
+        List<CompletableFuture<Probe>> all = new ArrayList<>(list.length);
+        for (int port : list) all.add(probe(address, port));
+        return CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<Probe> probes = new ArrayList<>(all.size());
+            for (CompletableFuture<Probe> f : all) probes.add(f.join());
+            return new Result(address, probes);
+        });
+    }
+
+    CompletableFuture<Probe> probe(InetAddress address, int port) {
+        Attempt a = new Attempt(new InetSocketAddress(address, port));
+        if (closed) {
+            a.future.completeExceptionally(new IOException("Scanner closed"));
+            return a.future;
+        }
+        waiting.add(a);
+        selector.wakeup();
+        return a.future;
+    }
+
+    // "1,2, 80-82" -> {1, 2, 80, 81, 82}; empty text gives null (the default ports)
+    static int[] parsePorts(String text) {
+        List<Integer> ports = new ArrayList<>();
+        for (String part : text.split("[,\\s]+")) {
+            if (part.isEmpty()) continue;
+            int dash = part.indexOf('-');
+            int from = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+            int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1));
+            if (from < 1 || to > 65535 || from > to) throw new IllegalArgumentException("Bad port range: " + part);
+            for (int p = from; p <= to; p++) ports.add(p);
+        }
+        if (ports.isEmpty()) return null;
+        int[] out = new int[ports.size()];
+        for (int i = 0; i < out.length; i++) out[i] = ports.get(i);
+        return out;
+    }
+
+    private void loop() {
+        try {
+            while (!closed) {
+                Attempt next;
+                while (active < maxConcurrent && (next = waiting.poll()) != null) start(next);
+
+                long wait = 0; // 0: until something happens
+                Attempt first = deadlines.peek();
+                if (first != null) wait = Math.max(1, TimeUnit.NANOSECONDS.toMillis(first.deadline - System.nanoTime()) + 1);
+                selector.select(wait);
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Attempt a = (Attempt) key.attachment();
+                    try {
+                        a.channel.finishConnect();
+                        finish(a, State.OPEN);
+                    } catch (ConnectException e) {
+                        String msg = String.valueOf(e.getMessage());
+                        finish(a, msg.contains("refused") ? State.REFUSED : State.UNREACHABLE);
+                    } catch (IOException e) {
+                        finish(a, State.UNREACHABLE);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                long now = System.nanoTime();
+                while ((first = deadlines.peek()) != null && first.deadline <= now) finish(first, State.TIMEOUT);
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // closing
+        } finally {
+            IOException e = new IOException("Scanner closed");
+            for (Attempt a : deadlines) close(a);
+            for (Attempt a : deadlines) a.future.completeExceptionally(e);
+            for (Attempt a : waiting) a.future.completeExceptionally(e);
+        }
+    }
+
+    private void start(Attempt a) {
+        active++;
+        a.started = System.nanoTime();
+        a.deadline = a.started + timeoutNanos;
+        deadlines.add(a);
+        try {
+            a.channel = SocketChannel.open();
+            a.channel.configureBlocking(false);
+            a.channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            if (a.channel.connect(a.target)) {
+                finish(a, State.OPEN);
+            } else {
+                a.channel.register(selector, SelectionKey.OP_CONNECT, a);
+            }
+        } catch (ConnectException e) {
+            finish(a, String.valueOf(e.getMessage()).contains("refused") ? State.REFUSED : State.UNREACHABLE);
+        } catch (IOException | RuntimeException e) {
+            finish(a, State.UNREACHABLE); // no route, unresolved, or out of sockets
+        }
+    }
+
+    private void finish(Attempt a, State state) {
+        if (!deadlines.remove(a)) return;
+        active--;
+        close(a);
+        a.future.complete(new Probe(a.target.getAddress(), a.target.getPort(), state, System.nanoTime() - a.started));
+    }
+
+    private static void close(Attempt a) {
+        if (a.channel == null) return;
+        try {
+            a.channel.close(); // deregisters the key on the next select
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+    }
+}
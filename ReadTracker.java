@@ -0,0 +1,74 @@
+package sb.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Read receipts of one room as per-user watermarks. READ only moves the reader's watermark (the
+// newest sequence number they have read); once per tick the changes are aggregated, and a member
+// hears about them only if they cover the last line that member posted, as
+// "[read] bob and carol have read up to #42.". Nothing goes to history, and a member who reads
+// ten times between ticks costs one line at most.
+final class ReadTracker {
+
+    private final Map<String, Long> watermarks = new HashMap<>(); // nick -> newest seq read
+    private final Map<String, Long> before = new HashMap<>();     // nick -> watermark at the last tick, if it moved since
+    private final Map<String, Long> posted = new ConcurrentHashMap<>(); // nick -> newest seq they posted
+    private final String tag; // the room's line tag
+
+    ReadTracker(String tag) {
+        this.tag = tag;
+    }
+
+    synchronized void read(String nick, long seq) {
+        long old = watermarks.getOrDefault(nick, 0L);
+        if (seq <= old) return;
+        watermarks.put(nick, seq);
+        before.putIfAbsent(nick, old);
+    }
+
+    void posted(String nick, long seq) {
+        posted.merge(nick, seq, Math::max);
+    }
+
+    // A user who left the room stops being tracked
+    synchronized void remove(String nick) {
+        watermarks.remove(nick);
+        before.remove(nick);
+        posted.remove(nick);
+    }
+
+    // Called by the server's presence ticker
+    void tick(Collection<SyncBridgeServer.ClientHandler> clients) {
+        Map<String, long[]> moved; // nick -> {old, new} watermark
+        synchronized (this) {
+            if (before.isEmpty()) return;
+            moved = new HashMap<>();
+            for (Map.Entry<String, Long> e : before.entrySet()) {
+                moved.put(e.getKey(), new long[]{e.getValue(), watermarks.get(e.getKey())});
+            }
+            before.clear();
+        }
+
+        // members whose last line became read by the same people share one frame
+        Map<String, Frame> frames = new HashMap<>();
+        for (SyncBridgeServer.ClientHandler c : clients) {
+            Long last = posted.get(c.nick);
+            if (last == null) continue;
+            List<String> readers = new ArrayList<>();
+            for (Map.Entry<String, long[]> e : moved.entrySet()) {
+                long[] w = e.getValue();
+                if (w[0] < last && last <= w[1] && !e.getKey().equals(c.nick)) readers.add(e.getKey());
+            }
+            if (readers.isEmpty()) continue;
+            Collections.sort(readers);
+            String line = tag + "[read] " + PresenceTracker.names(readers)
+                    + (readers.size() == 1 ? " has" : " have") + " read up to #" + last + ".";
+            c.send(frames.computeIfAbsent(line, Frame::of), OutboundQueue.Kind.EPHEMERAL);
+        }
+    }
+}
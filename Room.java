@@ -0,0 +1,138 @@
+package sb.server;
+
+import sb.protocol.BinaryProtocol;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+// A chat room: its subscribers, its own numbered history and its own typing presence.
+// Lines fan out to the room's members only. Rooms other than the lobby tag their lines
+// "[#room] " so a client subscribed to several rooms can tell them apart.
+final class Room {
+
+    static final String LOBBY = "lobby";
+    private static final Pattern NAME = Pattern.compile("[a-z0-9_-]{1,32}");
+
+    final String name;
+    final ChatHistory history;
+    final PresenceTracker presence;
+    final ReadTracker reads;
+    final SearchIndex search; // null with --search=false
+    final Set<SyncBridgeServer.ClientHandler> members = ConcurrentHashMap.newKeySet();
+    private final String tag;
+
+    Room(String name, ServerOptions options) throws IOException {
+        this.name = name;
+        this.tag = LOBBY.equals(name) ? "" : "[#" + name + "] ";
+        this.history = ChatHistory.create(options, name);
+        this.presence = PresenceTracker.create(options, tag);
+        this.reads = new ReadTracker(tag);
+        this.search = options.bool("search", true) ? new SearchIndex(history.capacity()) : null;
+        if (search != null) {
+            // lines reloaded from the chat log into the ring
+            history.replaySince(Math.max(0, history.lastSeq() - history.capacity()), Frame.Format.TEXT,
+                    f -> index(f.seq, f.text()));
+        }
+    }
+
+    // Lower-cased room name without a leading '#', or null if it is not a valid name
+    static String normalize(String requested) {
+        String n = requested.trim().toLowerCase(Locale.ROOT);
+        if (n.startsWith("#")) n = n.substring(1);
+        return NAME.matcher(n).matches() ? n : null;
+    }
+
+    String tag(String line) {
+        return tag.isEmpty() ? line : tag + line;
+    }
+
+    // Used for regular chat messages (does NOT send back to sender).
+    // Encodes msg once; every member's outbound queue gets the same read-only frame.
+    // Ephemeral lines (typing, read receipts) are never kept in history.
+    // With the Sequencer running this only publishes the line; numbering and fan-out follow on
+    // the pipeline's threads.
+    void broadcast(String msg, SyncBridgeServer.ClientHandler from, OutboundQueue.Kind kind) {
+        publish(tag(msg), from, kind, true);
+    }
+
+    // Used for system messages/read receipts (sends to ALL members, including sender)
+    void broadcastAll(String msg, OutboundQueue.Kind kind) {
+        broadcast(msg, null, kind);
+    }
+
+    // A line relayed by another cluster node, already tagged; kept in this node's own numbering
+    void deliver(String line, OutboundQueue.Kind kind) {
+        publish(line, null, kind, false);
+    }
+
+    private void publish(String line, SyncBridgeServer.ClientHandler from, OutboundQueue.Kind kind, boolean relay) {
+        Sequencer sequencer = SyncBridgeServer.sequencer;
+        if (sequencer != null) {
+            sequencer.publish(this, line, from, kind, relay);
+        } else {
+            synchronized (this) {
+                fanOut(sequence(line, from, kind, relay), from, kind);
+            }
+        }
+    }
+
+    // Makes c a member and replays the history after since to it, so it gets every line exactly once
+    // and in order. With the Sequencer this goes through the ring like a line: the room's fan-out
+    // worker runs it after the lines sequenced before it and before those sequenced after it.
+    // Without, broadcasts and subscriptions take turns on the room.
+    void subscribe(SyncBridgeServer.ClientHandler c, long since, Frame.Format format) {
+        Sequencer sequencer = SyncBridgeServer.sequencer;
+        if (sequencer != null) {
+            sequencer.subscribe(this, c, since, format);
+        } else {
+            synchronized (this) {
+                join(c, since, history.lastSeq(), format);
+            }
+        }
+    }
+
+    // Replays since..through, the last line sequenced before the subscription, unless c has left
+    // the room or dropped the connection in the meantime
+    void join(SyncBridgeServer.ClientHandler c, long since, long through, Frame.Format format) {
+        if (!c.subscribedTo(this)) return;
+        members.add(c);
+        if (!c.subscribedTo(this)) { // left while being added: undo, as its own removal may have run first
+            members.remove(c);
+            return;
+        }
+        if (since < through) {
+            history.replayRange(Math.max(since, 0) + 1, through, format, f -> c.send(f, OutboundQueue.Kind.REPLAY));
+        }
+    }
+
+    // Numbers the line in this room's history (unless ephemeral), logs it and relays it to the cluster
+    Frame sequence(String line, SyncBridgeServer.ClientHandler from, OutboundQueue.Kind kind, boolean relay) {
+        int senderId = from == null ? 0 : from.id;
+        Frame frame = kind == OutboundQueue.Kind.EPHEMERAL ? Frame.of(line, 0, senderId) : history.append(line, senderId);
+        if (from != null && BinaryProtocol.opcodeFor(line) == BinaryProtocol.CHAT) reads.posted(from.nick, frame.seq);
+        if (search != null) index(frame.seq, line);
+        Log.info(line);
+        if (relay) SyncBridgeServer.cluster.relayLine(this, line, kind, frame.seq);
+        return frame;
+    }
+
+    // Chat lines go into the search index; system lines and ephemeral (unnumbered) ones do not
+    private void index(long seq, String line) {
+        if (seq > 0 && BinaryProtocol.opcodeFor(line) == BinaryProtocol.CHAT) search.add(seq, BinaryProtocol.untagged(line));
+    }
+
+    void fanOut(Frame frame, SyncBridgeServer.ClientHandler from, OutboundQueue.Kind kind) {
+        long start = System.nanoTime();
+        int delivered = 0;
+        for (SyncBridgeServer.ClientHandler c : members) {
+            if (c != from) {
+                c.send(frame, kind);
+                delivered++;
+            }
+        }
+        Metrics.fanOut(delivered, System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,324 @@
+package sb.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Full-text index of one room's chat lines, kept in step with its history ring. Words (lower-cased
+// runs of letters and digits) and senders map to posting lists of sequence numbers. Lines are
+// indexed as they are numbered, so every list is sorted (appended to) and a query intersects
+// sorted arrays. Postings of lines the ring has overwritten are dropped in sweeps, so the index
+// never holds more than the ring does.
+final class SearchIndex {
+
+    static final int PAGE = 20;
+    private static final int MAX_TERM = 32; // longer words are indexed by their first MAX_TERM characters
+
+    // A query: words all of which must occur (the last character '*' makes it a prefix), optionally
+    // a sender, and the paging cursor. Double quotes keep spaces inside one part: from:"john smith".
+    static final class Query {
+        final List<String> words = new ArrayList<>();
+        final List<String> prefixes = new ArrayList<>();
+        String sender;
+        long before = Long.MAX_VALUE;
+
+        // "hello wor* from:bob before:1234"
+        static Query parse(String text) {
+            Query q = new Query();
+            for (String part : parts(text)) {
+                String lower = part.toLowerCase(Locale.ROOT);
+                if (lower.startsWith("from:") && lower.length() > 5) {
+                    q.sender = lower.substring(5);
+                } else if (lower.startsWith("before:")) {
+                    try {
+                        q.before = Long.parseLong(lower.substring(7));
+                    } catch (NumberFormatException ignored) {}
+                } else {
+                    List<String> terms = terms(lower);
+                    if (lower.endsWith("*") && !terms.isEmpty()) {
+                        q.prefixes.add(terms.remove(terms.size() - 1));
+                    }
+                    q.words.addAll(terms);
+                }
+            }
+            return q;
+        }
+
+        // Whitespace-separated parts, where a quoted stretch (quotes dropped) does not separate
+        private static List<String> parts(String text) {
+            List<String> parts = new ArrayList<>();
+            StringBuilder sb = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i <= text.length(); i++) {
+                char c = i < text.length() ? text.charAt(i) : ' ';
+                if (c == '"') {
+                    quoted = !quoted;
+                } else if (Character.isWhitespace(c) && (!quoted || i == text.length())) {
+                    if (sb.length() > 0) parts.add(sb.toString());
+                    sb.setLength(0);
+                } else {
+                    sb.append(c);
+                }
+            }
+            return parts;
+        }
+
+        boolean isEmpty() {
+            return words.isEmpty() && prefixes.isEmpty() && sender == null;
+        }
+    }
+
+    // Matching sequence numbers below the query's cursor, newest first, and how many match in all
+    static final class Result {
+        final long[] seqs;
+        final int total;
+
+        Result(long[] seqs, int total) {
+            this.seqs = seqs;
+            this.total = total;
+        }
+    }
+
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final NavigableSet<String> sorted = new TreeSet<>(); // the words again, for prefix queries
+    private final Map<String, Postings> senders = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final int window; // lines the history ring keeps
+    private long horizon = 1; // oldest sequence number still in the ring
+    private long swept = 1;   // horizon at the last sweep
+
+    SearchIndex(int window) {
+        this.window = window;
+    }
+
+    // A chat line "<nick>: <text>", untagged, numbered seq
+    void add(long seq, String line) {
+        int colon = line.indexOf(": ");
+        if (colon <= 0) return;
+        String sender = line.substring(0, colon).toLowerCase(Locale.ROOT);
+        List<String> words = terms(line.substring(colon + 2));
+
+        lock.writeLock().lock();
+        try {
+            postings(senders, sender).add(seq);
+            for (String w : words) {
+                Postings p = terms.get(w);
+                if (p == null) {
+                    terms.put(w, p = new Postings());
+                    sorted.add(w);
+                }
+                p.add(seq);
+            }
+            horizon = Math.max(horizon, seq - window + 1);
+            if (horizon - swept >= window / 2) sweep();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    Result search(Query q, int limit) {
+        lock.readLock().lock();
+        try {
+            long from = horizon;
+            long to = q.before; // exclusive
+            List<Slice> clauses = new ArrayList<>();
+            if (q.sender != null) clauses.add(Slice.of(senders.get(q.sender), from, to));
+            for (String w : q.words) clauses.add(Slice.of(terms.get(w), from, to));
+            for (String p : q.prefixes) {
+                List<Postings> lists = new ArrayList<>();
+                for (String w : sorted.subSet(p, true, p + Character.MAX_VALUE, false)) lists.add(terms.get(w));
+                clauses.add(union(lists, from, to));
+            }
+            return intersect(clauses, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Lower-cased runs of letters and digits; ASCII, most of any chat, skips the Unicode tables
+    static List<String> terms(String text) {
+        List<String> out = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int cp = i < text.length() ? text.charAt(i) : ' ';
+            if (cp < 0x80) {
+                if (cp >= 'a' && cp <= 'z' || cp >= '0' && cp <= '9') {
+                    if (sb.length() < MAX_TERM) sb.append((char) cp);
+                } else if (cp >= 'A' && cp <= 'Z') {
+                    if (sb.length() < MAX_TERM) sb.append((char) (cp + ('a' - 'A')));
+                } else if (sb.length() > 0) {
+                    out.add(sb.toString());
+                    sb.setLength(0);
+                }
+                i++;
+                continue;
+            }
+            cp = text.codePointAt(i);
+            if (Character.isLetterOrDigit(cp)) {
+                if (sb.length() < MAX_TERM) sb.appendCodePoint(Character.toLowerCase(cp));
+            } else if (sb.length() > 0) {
+                out.add(sb.toString());
+                sb.setLength(0);
+            }
+            i += Character.charCount(cp);
+        }
+        return out;
+    }
+
+    // Drops postings below the horizon, and words left without any
+    private void sweep() {
+        for (Iterator<Map.Entry<String, Postings>> it = terms.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Postings> e = it.next();
+            if (e.getValue().trim(horizon)) {
+                sorted.remove(e.getKey());
+                it.remove();
+            }
+        }
+        for (Iterator<Postings> it = senders.values().iterator(); it.hasNext(); ) {
+            if (it.next().trim(horizon)) it.remove();
+        }
+        swept = horizon;
+    }
+
+    private static Postings postings(Map<String, Postings> map, String key) {
+        Postings p = map.get(key);
+        if (p == null) map.put(key, p = new Postings());
+        return p;
+    }
+
+    // All clauses must match; walks the shortest one from the newest end and probes the others,
+    // whose cursors only ever move towards older entries
+    private static Result intersect(List<Slice> clauses, int limit) {
+        clauses.sort((a, b) -> Integer.compare(a.length(), b.length()));
+        Slice shortest = clauses.get(0);
+        long[] page = new long[Math.min(limit, shortest.length())];
+        int found = 0, total = 0;
+        for (int i = shortest.to - 1; i >= shortest.from; i--) {
+            long seq = shortest.seqs[i];
+            boolean all = true;
+            for (int c = 1; c < clauses.size() && all; c++) all = clauses.get(c).seek(seq);
+            if (!all) continue;
+            if (found < page.length) page[found++] = seq;
+            total++;
+        }
+        return new Result(Arrays.copyOf(page, found), total);
+    }
+
+    // The sorted, distinct sequence numbers in [from, to) of several posting lists, collected in a
+    // bitmap over the window rather than sorted
+    private static Slice union(List<Postings> lists, long from, long to) {
+        List<Slice> slices = new ArrayList<>(lists.size());
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for (Postings p : lists) {
+            Slice s = Slice.of(p, from, to);
+            if (s.length() == 0) continue;
+            slices.add(s);
+            first = Math.min(first, s.seqs[s.from]);
+            last = Math.max(last, s.seqs[s.to - 1]);
+        }
+        if (slices.isEmpty()) return Slice.EMPTY;
+        if (slices.size() == 1) return slices.get(0);
+
+        BitSet bits = new BitSet((int) (last - first + 1));
+        for (Slice s : slices) {
+            for (int i = s.from; i < s.to; i++) bits.set((int) (s.seqs[i] - first));
+        }
+        long[] all = new long[bits.cardinality()];
+        int n = 0;
+        for (int b = bits.nextSetBit(0); b >= 0; b = bits.nextSetBit(b + 1)) all[n++] = first + b;
+        return new Slice(all, 0, n);
+    }
+
+    // A growable, sorted array of sequence numbers; entries before start have been evicted
+    private static final class Postings {
+        long[] seqs = new long[4];
+        int start, end;
+
+        // Lines arrive in sequence order, except with --pipeline=false, where concurrent senders may
+        // swap neighbours; those are inserted in place
+        void add(long seq) {
+            if (end > start && seqs[end - 1] == seq) return; // the word occurs twice in one line
+            if (end == seqs.length) {
+                if (start > seqs.length / 2) {
+                    System.arraycopy(seqs, start, seqs, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else {
+                    seqs = Arrays.copyOf(seqs, seqs.length * 2);
+                }
+            }
+            int at = end > start && seqs[end - 1] > seq ? lowerBound(seqs, start, end, seq) : end;
+            if (at < end && seqs[at] == seq) return;
+            System.arraycopy(seqs, at, seqs, at + 1, end - at);
+            seqs[at] = seq;
+            end++;
+        }
+
+        // Forgets everything below horizon; true when nothing is left
+        boolean trim(long horizon) {
+            start = lowerBound(seqs, start, end, horizon);
+            if (start == end) return true;
+            if (end - start < seqs.length / 4 && seqs.length > 4) {
+                seqs = Arrays.copyOfRange(seqs, start, Math.max(end, start + 4));
+                end -= start;
+                start = 0;
+            }
+            return false;
+        }
+    }
+
+    // Part of a sorted array, a view: nothing is copied
+    private static final class Slice {
+        static final Slice EMPTY = new Slice(new long[0], 0, 0);
+
+        final long[] seqs;
+        final int from, to;
+        private int cursor; // seek(): entries at or above it are newer than anything asked for so far
+
+        Slice(long[] seqs, int from, int to) {
+            this.seqs = seqs;
+            this.from = from;
+            this.to = to;
+            this.cursor = to;
+        }
+
+        static Slice of(Postings p, long fromSeq, long toSeq) {
+            if (p == null) return EMPTY;
+            return new Slice(p.seqs, lowerBound(p.seqs, p.start, p.end, fromSeq), lowerBound(p.seqs, p.start, p.end, toSeq));
+        }
+
+        int length() {
+            return to - from;
+        }
+
+        // Whether seq is in the slice, for seqs asked in descending order: gallops back from the
+        // cursor, so walking a long list against a short one costs about the short one's length
+        boolean seek(long seq) {
+            int step = 1;
+            int low = cursor - 1;
+            while (low >= from && seqs[low] > seq) {
+                low = cursor - (step <<= 1);
+            }
+            cursor = lowerBound(seqs, Math.max(from, low), cursor, seq);
+            return cursor < to && seqs[cursor] == seq;
+        }
+    }
+
+    // First index in a[from, to) holding a value >= key
+    private static int lowerBound(long[] a, int from, int to, long key) {
+        int lo = from, hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < key) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+}
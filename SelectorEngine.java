@@ -0,0 +1,630 @@
+package sb.server;
+
+import sb.protocol.BinaryProtocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLException;
+
+// Non-blocking reactor: the main thread accepts, N selector loops own the connections.
+// An idle connection holds no buffers, so memory per connection stays flat.
+// With --tls-port a second acceptor takes TLS connections; their records are decrypted on the
+// same loops and the plaintext goes through the same line and frame parsers.
+final class SelectorEngine implements ConnectionEngine {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    // an incomplete line or frame plus one more read
+    private static final int MAX_PENDING_BYTES = MAX_LINE_BYTES + BinaryProtocol.HEADER_SIZE + READ_BUFFER_SIZE;
+    private static final int MAX_GATHER = 64;
+
+    private final EventLoop[] loops;
+    private final Tls tls; // null without --tls-port
+    private final AtomicInteger next = new AtomicInteger();
+
+    SelectorEngine(int loopCount, Tls tls) {
+        loops = new EventLoop[loopCount];
+        this.tls = tls;
+    }
+
+    @Override
+    public String name() {
+        return "nio, " + loops.length + " selector loop(s)" + (tls == null ? "" : ", TLS on port " + tls.port);
+    }
+
+    @Override
+    public void serve(int port) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread t = new Thread(loops[i], "sb-selector-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        if (tls != null) {
+            ServerSocketChannel secure = ServerSocketChannel.open();
+            secure.bind(new InetSocketAddress(tls.port), Admission.backlog);
+            Thread t = new Thread(() -> {
+                try {
+                    accept(secure, tls);
+                } catch (IOException e) {
+                    Log.warn("TLS accept failed: " + e.getMessage());
+                }
+            }, "sb-tls-accept");
+            t.setDaemon(true);
+            t.start();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), Admission.backlog);
+            accept(server, null);
+        }
+    }
+
+    private void accept(ServerSocketChannel server, Tls secure) throws IOException {
+        while (true) {
+            SocketChannel ch = Admission.accept(server);
+            InetAddress address = Admission.admit(ch, secure != null);
+            if (address == null) continue;
+            try {
+                ch.configureBlocking(false);
+                if (secure != null) ch.setOption(StandardSocketOptions.TCP_NODELAY, true); // handshake flights
+            } catch (IOException e) {
+                // this connection only; the loop goes on accepting
+                Log.info("Could not set up connection from " + address + ": " + e.getMessage());
+                try { ch.close(); } catch (IOException ignored) {}
+                Admission.release(address);
+                continue;
+            }
+            EventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+            loop.execute(() -> loop.register(ch, address, secure == null ? null : secure.newSession()));
+        }
+    }
+
+    private static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // shared by every connection of this loop; lines are copied out before the next read
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // batch of queued frames handed to one gathering write
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        // TLS records in and out, and their plaintext; allocated with the loop's first TLS connection
+        private ByteBuffer tlsIn, tlsOut, tlsApp;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // A task on behalf of one connection; if it fails, only that connection is closed
+        void execute(NioConnection conn, Runnable task) {
+            execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    conn.fail(e);
+                }
+            });
+        }
+
+        void register(SocketChannel ch, InetAddress address, Tls.Session tls) {
+            if (tls != null && tlsIn == null) {
+                tlsIn = ByteBuffer.allocate(tls.packetBufferSize());
+                tlsOut = ByteBuffer.allocate(tls.packetBufferSize());
+                tlsApp = ByteBuffer.allocate(tls.applicationBufferSize());
+            }
+            NioConnection conn = new NioConnection(this, ch, address, tls);
+            try {
+                conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+            } catch (IOException e) {
+                // the handler already counts as an open connection, so it leaves the normal way
+                conn.closeNow();
+                conn.handler.disconnect();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    Log.warn("Selector error: " + e.getMessage());
+                    continue;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.warn("Selector task failed: " + e);
+                    }
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection conn = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) conn.onReadable();
+                        if (key.isValid() && key.isWritable()) conn.flush();
+                    } catch (RuntimeException e) {
+                        conn.fail(e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class NioConnection implements Transport {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final InetAddress address; // for Admission.release()
+        private final SyncBridgeServer.ClientHandler handler;
+        private final Tls.Session tls; // null on the plain port
+        private boolean unwrapping;
+        private final OutboundQueue queue = new OutboundQueue();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private volatile Compressor compressor;
+        private volatile boolean closing;
+        private boolean closed;
+        SelectionKey key;
+
+        // frame views the socket did not accept yet; only slow consumers allocate this
+        private ArrayDeque<ByteBuffer> unsent;
+        // export chunk lines going out with transferTo after unsent, and how far they got
+        private Frame.Region transfer;
+        private long transferred;
+
+        // bytes of a line (or binary frame) that is not complete yet; null while idle
+        private byte[] partial;
+        private int partialLen;
+        private boolean afterCr; // the last line ended with '\r', so a '\n' next is part of its ending
+        private Boolean binary; // decided by the first byte the client sends
+
+        NioConnection(EventLoop loop, SocketChannel channel, InetAddress address, Tls.Session tls) {
+            this.loop = loop;
+            this.channel = channel;
+            this.address = address;
+            this.tls = tls;
+            this.handler = new SyncBridgeServer.ClientHandler(this);
+        }
+
+        @Override
+        public OutboundQueue.Result send(Frame frame, OutboundQueue.Kind kind) {
+            if (closing) return OutboundQueue.Result.DROPPED;
+            OutboundQueue.Result result = queue.offer(frame, kind);
+            if (result == OutboundQueue.Result.QUEUED) scheduleFlush();
+            return result;
+        }
+
+        @Override
+        public void setFormat(Frame.Format format) {
+            queue.format = format;
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            queue.shutdown();
+            scheduleFlush();
+        }
+
+        @Override
+        public void abort() {
+            closing = true;
+            queue.shutdown();
+            queue.clear();
+            loop.execute(this, () -> {
+                closeNow();
+                handler.disconnect();
+            });
+        }
+
+        @Override
+        public void compress() {
+            if (compressor == null) compressor = new Compressor();
+        }
+
+        @Override
+        public int queued() {
+            return queue.size();
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this, this::flush);
+            }
+        }
+
+        // selector thread only
+        void onReadable() {
+            if (tls != null) {
+                onReadableTls();
+                return;
+            }
+            ByteBuffer buf = loop.readBuffer;
+            buf.clear();
+            int n;
+            try {
+                n = channel.read(buf);
+            } catch (IOException e) {
+                Log.info(handler.nick + " disconnected.");
+                handler.disconnect();
+                closeNow();
+                return;
+            }
+            if (n < 0) {
+                handler.disconnect();
+                closeNow();
+                return;
+            }
+
+            dispatch(buf.array(), n);
+        }
+
+        // Feeds received plaintext to the protocol; false once the connection stops reading.
+        // Text or binary is decided by the first byte, so nothing happens until there is one.
+        private boolean dispatch(byte[] data, int n) {
+            if (n <= 0) return true;
+            if (binary == null) binary = data[0] == BinaryProtocol.HELLO;
+            return binary ? readFrames(data, n) : readLines(data, n);
+        }
+
+        // selector thread only: reads TLS records and decrypts them into the loop's plaintext buffer
+        private void onReadableTls() {
+            try {
+                boolean open = tls.read(channel, loop.tlsIn);
+                unwrapAll();
+                if (!open && !closed) {
+                    handler.disconnect();
+                    closeNow();
+                }
+            } catch (IOException e) {
+                failTls(e);
+            }
+        }
+
+        // Unwraps every complete record, answering the handshake as it goes
+        private void unwrapAll() throws IOException {
+            if (unwrapping) return;
+            unwrapping = true;
+            ByteBuffer app = loop.tlsApp;
+            try {
+                while (!closed) {
+                    if (tls.runningTasks()) return;
+                    if (tls.needsTasks()) {
+                        runTlsTasks();
+                        return;
+                    }
+                    if (tls.needsWrap()) {
+                        flush();
+                        if (tls.needsWrap()) return; // the socket is full; OP_WRITE carries on
+                        continue;
+                    }
+                    boolean wasHandshaking = tls.handshaking();
+                    app.clear();
+                    int used = tls.unwrap(app);
+                    if (used < 0) {
+                        handler.disconnect();
+                        closeNow();
+                        return;
+                    }
+                    if (wasHandshaking && !tls.handshaking()) scheduleFlush();
+                    if (app.position() > 0 && !dispatch(app.array(), app.position())) return;
+                    if (used == 0 && !tls.needsWrap() && !tls.needsTasks()) return;
+                }
+            } finally {
+                unwrapping = false;
+                tls.endRead();
+            }
+        }
+
+        private void runTlsTasks() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            tls.runTasks(task -> loop.execute(this, task), () -> {
+                if (closed) return;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                try {
+                    unwrapAll();
+                    flush();
+                } catch (IOException e) {
+                    failTls(e);
+                }
+            });
+        }
+
+        private void failTls(IOException e) {
+            if (e instanceof SSLException) {
+                Log.info("TLS error with " + handler.nick + " (" + channel.socket().getRemoteSocketAddress() + "): " + e.getMessage());
+            } else {
+                Log.info(handler.nick + " disconnected.");
+            }
+            handler.disconnect();
+            closeNow();
+        }
+
+        // Lines end the way BufferedReader.readLine() ends them, as ThreadEngine's do: at "\n", "\r"
+        // or "\r\n", even when the "\r\n" is split across two reads
+        private boolean readLines(byte[] data, int n) {
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                byte b = data[i];
+                if (b == '\n' && afterCr) {
+                    afterCr = false;
+                    start = i + 1;
+                    continue;
+                }
+                afterCr = b == '\r';
+                if (b != '\n' && b != '\r') continue;
+                String line = decodeLine(data, start, i);
+                start = i + 1;
+                if (line == null) return false;
+                if (!handler.onLine(line)) {
+                    stopReading();
+                    return false;
+                }
+            }
+            return appendPartial(data, start, n);
+        }
+
+        // Dispatches every complete frame; payloads are slices of the read buffer, not copies
+        private boolean readFrames(byte[] data, int n) {
+            byte[] src = data;
+            int end = n;
+            if (partial != null) {
+                if (!appendPartial(data, 0, n)) return false;
+                src = partial;
+                end = partialLen;
+                partial = null;
+                partialLen = 0;
+            }
+
+            ByteBuffer in = ByteBuffer.wrap(src, 0, end);
+            while (in.remaining() >= BinaryProtocol.HEADER_SIZE) {
+                int start = in.position();
+                byte opcode = in.get();
+                int len = in.getInt();
+                long messageId = in.getLong();
+                in.getInt(); // sender id, always the connection itself
+                if (len < 0 || len > BinaryProtocol.MAX_PAYLOAD) {
+                    Log.info(handler.nick + " sent an invalid frame, closing.");
+                    handler.disconnect();
+                    closeNow();
+                    return false;
+                }
+                if (in.remaining() < len) {
+                    in.position(start);
+                    break;
+                }
+                ByteBuffer payload = in.slice();
+                payload.limit(len);
+                in.position(in.position() + len);
+                if (!handler.onFrame(opcode, messageId, payload)) {
+                    stopReading();
+                    return false;
+                }
+            }
+            return appendPartial(src, in.position(), end);
+        }
+
+        private void stopReading() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            handler.disconnect();
+        }
+
+        private String decodeLine(byte[] data, int from, int to) {
+            byte[] src = data;
+            int off = from, len = to - from;
+            if (partial != null) {
+                if (!appendPartial(data, from, to)) return null;
+                src = partial;
+                off = 0;
+                len = partialLen;
+                partial = null;
+                partialLen = 0;
+            }
+            return new String(src, off, len, StandardCharsets.UTF_8);
+        }
+
+        private boolean appendPartial(byte[] data, int from, int to) {
+            int len = to - from;
+            if (len == 0) return true;
+            if (partial == null) {
+                partial = new byte[Math.max(len, 256)];
+            } else if (partialLen + len > partial.length) {
+                partial = Arrays.copyOf(partial, Math.max(partialLen + len, partial.length * 2));
+            }
+            System.arraycopy(data, from, partial, partialLen, len);
+            partialLen += len;
+            if (partialLen > MAX_PENDING_BYTES) {
+                Log.info(handler.nick + " sent an over-long line, closing.");
+                partial = null;
+                handler.disconnect();
+                closeNow();
+                return false;
+            }
+            return true;
+        }
+
+        // selector thread only: moves queued frames to the socket, up to MAX_GATHER per write.
+        // The lines of an export chunk go from the chat log file to the socket with transferTo.
+        void flush() {
+            flushScheduled.set(false);
+            if (closed || key == null) return;
+            if (tls != null) {
+                flushTls();
+                return;
+            }
+            ByteBuffer[] gather = loop.gather;
+            int count = 0;
+            try {
+                while (true) {
+                    count = 0;
+                    while (count < MAX_GATHER && unsent != null && !unsent.isEmpty()) {
+                        gather[count++] = unsent.poll();
+                    }
+                    int queued = count; // frames from here on were not written yet in any form
+                    Compressor c = compressor;
+                    Frame frame;
+                    while (transfer == null && count < MAX_GATHER - 1 && (frame = queue.poll()) != null) {
+                        Frame.Region region = frame.region();
+                        if (region != null && region.file != null && c == null) {
+                            gather[count++] = frame.buffer(queue.format);
+                            transfer = region;
+                            transferred = 0;
+                        } else {
+                            count = frame.gather(queue.format, c != null, gather, count);
+                        }
+                    }
+                    if (count == 0) {
+                        if (transfer == null) break;
+                        if (!transfer()) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        continue;
+                    }
+                    if (c != null && count > queued) count = c.compress(gather, queued, count);
+
+                    Metrics.bytesWritten.add(channel.write(gather, 0, count));
+                    int first = 0;
+                    while (first < count && !gather[first].hasRemaining()) first++;
+                    if (first < count) {
+                        if (unsent == null) unsent = new ArrayDeque<>();
+                        for (int i = count - 1; i >= first; i--) unsent.addFirst(gather[i]);
+                        Arrays.fill(gather, 0, count, null);
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    Arrays.fill(gather, 0, count, null);
+                }
+                unsent = null;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closing) closeNow();
+            } catch (IOException | CancelledKeyException e) {
+                Arrays.fill(gather, 0, count, null);
+                closeNow();
+                handler.disconnect();
+            }
+        }
+
+        // Sends what the socket takes of the pending export lines; true once they are all out
+        private boolean transfer() throws IOException {
+            Frame.Region region = transfer;
+            long n = region.transferTo(transferred, channel);
+            Metrics.bytesWritten.add(n);
+            transferred += n;
+            if (transferred < region.size()) return false;
+            transfer = null;
+            return true;
+        }
+
+        // The TLS variant of flush(): handshake output first, then queued frames wrapped a record at a time
+        private void flushTls() {
+            ByteBuffer[] gather = loop.gather;
+            int count = 0;
+            try {
+                while (true) {
+                    if (!tls.writePending(channel)) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    if (tls.runningTasks()) return; // continues once the tasks are done
+                    if (tls.needsTasks()) {
+                        runTlsTasks();
+                        return;
+                    }
+                    if (tls.needsWrap()) {
+                        tls.wrap(null, 0, 0, loop.tlsOut);
+                        continue;
+                    }
+                    if (tls.handshaking()) {
+                        // frames wait for the client's part of the handshake
+                        if (tls.hasInput()) unwrapAll();
+                        break;
+                    }
+
+                    count = 0;
+                    while (count < MAX_GATHER && unsent != null && !unsent.isEmpty()) {
+                        gather[count++] = unsent.poll();
+                    }
+                    int queued = count;
+                    Compressor c = compressor;
+                    Frame frame;
+                    while (count < MAX_GATHER - 1 && (frame = queue.poll()) != null) {
+                        count = frame.gather(queue.format, c != null, gather, count);
+                    }
+                    if (count == 0) break;
+                    if (c != null && count > queued) count = c.compress(gather, queued, count);
+
+                    int first = 0;
+                    while (first < count) {
+                        boolean wrapped = tls.wrap(gather, first, count - first, loop.tlsOut);
+                        while (first < count && !gather[first].hasRemaining()) first++;
+                        if (!wrapped || !tls.writePending(channel)) {
+                            // the rest is wrapped once the socket takes the pending record
+                            if (unsent == null) unsent = new ArrayDeque<>();
+                            for (int i = count - 1; i >= first; i--) unsent.addFirst(gather[i]);
+                            Arrays.fill(gather, 0, count, null);
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                    }
+                    Arrays.fill(gather, 0, count, null);
+                }
+                unsent = null;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closing) closeNow();
+            } catch (IOException | CancelledKeyException e) {
+                Arrays.fill(gather, 0, count, null);
+                if (e instanceof SSLException) Log.info("TLS error with " + handler.nick + ": " + e.getMessage());
+                closeNow();
+                handler.disconnect();
+            }
+        }
+
+        // A bug while handling this connection closes it, not the loop and every other connection on it
+        void fail(RuntimeException e) {
+            Log.warn("Closing " + handler.nick + "'s connection after an internal error: " + e);
+            closeNow();
+            try {
+                handler.disconnect();
+            } catch (RuntimeException again) {
+                Log.warn("Disconnecting " + handler.nick + " failed: " + again);
+            }
+        }
+
+        void closeNow() {
+            if (closed) return;
+            closed = true;
+            closing = true;
+            queue.shutdown();
+            queue.clear();
+            unsent = null;
+            transfer = null;
+            if (compressor != null) compressor.close();
+            if (tls != null) tls.close(channel, loop.tlsOut);
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            Admission.release(address);
+        }
+    }
+}
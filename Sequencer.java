@@ -0,0 +1,202 @@
+package sb.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+// Single-writer pipeline for room broadcasts, in the style of a disruptor. Handler threads claim a
+// slot in a pre-allocated ring and publish the line into it; one sequencer thread takes the slots
+// in ring order and appends them to their rooms' histories (so numbering, the chat log and the
+// console all follow one order); fan-out workers then hand each frame to the room's members. A
+// room always goes to the same worker, so every member sees a room's lines in sequence order,
+// while different rooms fan out in parallel. Subscriptions travel the ring too, so a joining
+// member's history replay ends exactly where its live lines begin.
+//   --pipeline=false        broadcast on the handler's own thread, as before
+//   --pipeline-size=N       ring slots, rounded up to a power of two (default 65536)
+//   --fanout-threads=N      fan-out workers (default: half the cores, 1 to 4)
+// A full ring makes publishers wait for the slowest worker.
+final class Sequencer {
+
+    // One ring slot, reused for every lap: written by the publisher, then by the sequencer (frame).
+    // A slot keeps its last line until it is reused; nobody clears it, since only the publisher
+    // knows when every worker is done with it.
+    private static final class Event {
+        Room room;
+        String line;
+        SyncBridgeServer.ClientHandler from;
+        OutboundQueue.Kind kind;
+        boolean relay; // false for lines that came from another cluster node
+        Frame frame;
+        Frame.Format format; // non-null for a subscription: from joins the room and gets since..through
+        long since;
+        long through;
+    }
+
+    // A consumer thread and how far it got; parked while it has nothing to do
+    private static final class Stage {
+        final AtomicLong cursor = new AtomicLong(-1);
+        volatile Thread thread;
+        volatile boolean sleeping;
+
+        void wake() {
+            if (sleeping) LockSupport.unpark(thread);
+        }
+    }
+
+    private static final int SPINS = 200;
+
+    private final Event[] ring;
+    private final int mask;
+    private final AtomicLongArray published; // slot -> ring sequence last published into it
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final Stage sequencer = new Stage();
+    private final Stage[] workers;
+
+    private Sequencer(int size, int fanOutThreads) {
+        int n = size <= 2 ? 2 : Integer.highestOneBit(size - 1) << 1;
+        ring = new Event[n];
+        for (int i = 0; i < n; i++) ring[i] = new Event();
+        mask = n - 1;
+        published = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) published.set(i, -1);
+        workers = new Stage[fanOutThreads];
+        for (int i = 0; i < workers.length; i++) workers[i] = new Stage();
+    }
+
+    // null with --pipeline=false
+    static Sequencer create(ServerOptions options) {
+        if (!options.bool("pipeline", true)) return null;
+        int cores = Runtime.getRuntime().availableProcessors();
+        Sequencer s = new Sequencer(options.integer("pipeline-size", 65536),
+                Math.max(1, options.integer("fanout-threads", Math.max(1, Math.min(4, cores / 2)))));
+        s.start(s.sequencer, "sb-sequencer", s::sequence);
+        for (int i = 0; i < s.workers.length; i++) {
+            int index = i;
+            s.start(s.workers[i], "sb-fanout-" + i, () -> s.fanOut(index));
+        }
+        return s;
+    }
+
+    void publish(Room room, String line, SyncBridgeServer.ClientHandler from, OutboundQueue.Kind kind, boolean relay) {
+        long seq = claim();
+        Event e = ring[(int) (seq & mask)];
+        e.room = room;
+        e.line = line;
+        e.from = from;
+        e.kind = kind;
+        e.relay = relay;
+        e.format = null;
+        commit(seq);
+    }
+
+    // See Room.subscribe
+    void subscribe(Room room, SyncBridgeServer.ClientHandler member, long since, Frame.Format format) {
+        long seq = claim();
+        Event e = ring[(int) (seq & mask)];
+        e.room = room;
+        e.line = null;
+        e.from = member;
+        e.kind = null;
+        e.relay = false;
+        e.format = format;
+        e.since = since;
+        commit(seq);
+    }
+
+    private long claim() {
+        long seq = claimed.incrementAndGet();
+        long wrap = seq - ring.length;
+        while (wrap > slowestWorker()) LockSupport.parkNanos(1_000); // ring full
+        return seq;
+    }
+
+    private void commit(long seq) {
+        published.set((int) (seq & mask), seq);
+        sequencer.wake();
+    }
+
+    // Ring slots published but not yet fanned out everywhere
+    long backlog() {
+        return claimed.get() - slowestWorker();
+    }
+
+    // Waits until everything published so far is fanned out; for the benchmark
+    void awaitIdle() {
+        long target = claimed.get();
+        while (slowestWorker() < target) LockSupport.parkNanos(1_000);
+    }
+
+    private long slowestWorker() {
+        long min = Long.MAX_VALUE;
+        for (Stage w : workers) min = Math.min(min, w.cursor.get());
+        return min;
+    }
+
+    private void sequence() {
+        long next = sequencer.cursor.get() + 1;
+        while (true) {
+            int slot = (int) (next & mask);
+            if (published.get(slot) != next) {
+                await(sequencer, () -> published.get(slot) == sequencer.cursor.get() + 1);
+                continue;
+            }
+            Event e = ring[slot];
+            try {
+                if (e.format != null) {
+                    e.through = e.room.history.lastSeq();
+                    e.frame = null;
+                } else {
+                    e.frame = e.room.sequence(e.line, e.from, e.kind, e.relay);
+                }
+            } catch (RuntimeException ex) {
+                Log.warn("Sequencing a line for #" + e.room.name + " failed: " + ex);
+                e.frame = null;
+            }
+            sequencer.cursor.set(next++);
+            for (Stage w : workers) w.wake();
+        }
+    }
+
+    private void fanOut(int index) {
+        Stage me = workers[index];
+        long next = me.cursor.get() + 1;
+        while (true) {
+            if (next > sequencer.cursor.get()) {
+                await(me, () -> sequencer.cursor.get() > me.cursor.get());
+                continue;
+            }
+            Event e = ring[(int) (next & mask)];
+            if ((e.room.name.hashCode() & 0x7fffffff) % workers.length == index && (e.frame != null || e.format != null)) {
+                try {
+                    if (e.format != null) e.room.join(e.from, e.since, e.through, e.format);
+                    else e.room.fanOut(e.frame, e.from, e.kind);
+                } catch (RuntimeException ex) {
+                    Log.warn("Fan-out to #" + e.room.name + " failed: " + ex);
+                }
+            }
+            me.cursor.set(next++);
+        }
+    }
+
+    // Spins briefly, then parks until a producer (or the stage before) wakes this stage
+    private static void await(Stage stage, BooleanSupplier ready) {
+        for (int i = 0; i < SPINS; i++) {
+            if (ready.getAsBoolean()) return;
+            Thread.onSpinWait();
+        }
+        stage.sleeping = true;
+        try {
+            if (!ready.getAsBoolean()) LockSupport.park(stage);
+        } finally {
+            stage.sleeping = false;
+        }
+    }
+
+    private void start(Stage stage, String name, Runnable loop) {
+        Thread t = new Thread(loop, name);
+        t.setDaemon(true);
+        stage.thread = t;
+        t.start();
+    }
+}
@@ -0,0 +1,31 @@
+package sb.server;
+
+import java.util.Map;
+
+// Management view of the server's Metrics, registered as sb.server:type=Metrics
+public interface ServerMetricsMXBean {
+
+    long getConnectionsOpen();
+
+    long getConnectionsOpened();
+
+    Map<String, Long> getRejected();
+
+    Map<String, Long> getCommands();
+
+    long getFramesQueued();
+
+    long getFramesDropped();
+
+    long getBytesWritten();
+
+    long getBroadcasts();
+
+    double getBroadcastMeanMicros();
+
+    long getMaxQueueDepth();
+
+    Map<String, Long> getHistoryLines();
+
+    long getLogSuppressed();
+}
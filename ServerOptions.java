@@ -0,0 +1,47 @@
+package sb.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Startup options given as --key=value arguments (or -Dsyncbridge.key=value)
+final class ServerOptions {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                options.values.put(arg.substring(2), "true");
+            } else {
+                options.values.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return options;
+    }
+
+    String string(String key, String def) {
+        String v = values.get(key);
+        if (v == null) v = System.getProperty("syncbridge." + key);
+        return v == null ? def : v.trim();
+    }
+
+    int integer(String key, int def) {
+        String v = string(key, null);
+        if (v == null) return def;
+        try {
+            return Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --" + key + " expects a number, got: " + v);
+        }
+    }
+
+    boolean bool(String key, boolean def) {
+        String v = string(key, null);
+        return v == null ? def : Boolean.parseBoolean(v);
+    }
+}
@@ -6,6 +6,8 @@ import javafx.animation.Timeline;
 import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -14,31 +16,87 @@ import javafx.scene.layout.*;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.util.Duration;
+import sb.protocol.BinaryProtocol;
 
 import java.io.*;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.time.LocalDateTime; 
 import java.time.format.DateTimeFormatter; 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLSocketFactory;
 
 public class SyncBridgeClient extends Application {
 
-    private ListView<String> chatList;
+    private static final String LOBBY = "lobby";
+    private static final int MAX_LINES = 5000;      // per room; the oldest lines are dropped beyond this
+    private static final int MAX_PER_PULSE = 5000;  // incoming lines applied per FX pulse
+    private static final long LATEST = Long.MAX_VALUE / 2; // "after everything" / "before nothing"
+    private static final String SESSION = "[session] ";
+    private static final String EXPORT = "[export] ";
+    private static final String BUSY = "[busy] ";
+    private static final long ACK_INTERVAL_NANOS = 1_000_000_000L;
+
+    private static final String SELF_STYLE =
+        "-fx-background-color:#3b82f6;" + 
+        "-fx-text-fill:white;" +
+        "-fx-padding:6 10 6 10;" +
+        "-fx-background-radius:12;";
+    private static final String SYSTEM_STYLE = "-fx-text-fill:#a78bfa; -fx-font-size:11; -fx-font-weight: bold;";
+    private static final String OTHER_STYLE =
+        "-fx-background-color:#14b8a6;" + 
+        "-fx-text-fill:white;" +
+        "-fx-padding:6 10 6 10;" +
+        "-fx-background-radius:12;";
+
+    private ListView<ChatLine> chatList;
+    private ComboBox<String> roomBox;
     private TextField input, hostField;
     private Label status;
     private Label centerInfo;      
     private Label dateTimeLabel; 
 
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private volatile ChatConnection conn;
     private Thread readerThread;
+    // binary framing unless started with -Dsyncbridge.protocol=text (for servers without it)
+    private final boolean binary = !"text".equals(System.getProperty("syncbridge.protocol"));
+    // history replays and busy rooms arrive deflated unless started with -Dsyncbridge.compress=false
+    private final boolean compress = !"false".equals(System.getProperty("syncbridge.compress"));
+    // -Dsyncbridge.tls=true connects to the server's TLS port (-Dsyncbridge.tls-port, default 5051),
+    // trusting -Dsyncbridge.truststore, the bundled test certificate with -Dsyncbridge.tls-test-keys=true,
+    // or else the JVM's default CAs
+    private final boolean tls = Boolean.getBoolean("syncbridge.tls");
+    private volatile SSLSocketFactory tlsFactory; // kept so that reconnects resume the TLS session
 
     private String nick = "User";
     private String email = "";
     private boolean typing = false;
     private boolean hasSentRead = false; 
     private String lastReadMessage = ""; 
+    // Lines of every joined room (FX thread only); chatList shows the current one
+    private final Map<String, ObservableList<ChatLine>> roomLines = new LinkedHashMap<>();
+    private final Set<String> pagePending = new HashSet<>(); // rooms with an older page on its way
+    // Lines from the reader thread, applied in batches on the FX thread
+    private final ConcurrentLinkedQueue<ChatLine> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Map<String, Long> lastSeqs = new ConcurrentHashMap<>(); // newest history sequence number per room
+    private final Map<String, Long> ackedSeqs = new HashMap<>(); // what the server was last told (FX thread only)
+    private long lastAckNanos;
+    // lets a reconnect take over the dropped session instead of joining again; null when there is none
+    private volatile String sessionToken;
+    // a Save Chat transcript the server is streaming, written by the reader thread; null when none
+    private volatile Transcript transcript;
+    private String currentRoom = LOBBY;
+    private String searchMore; // "<query> before:<seq>" for the next page of the last search, or null
 
     private Stage mainStage;
     private PauseTransition infoHideTimer;
@@ -53,9 +111,22 @@ public class SyncBridgeClient extends Application {
 
         chatList = new ListView<>();
         chatList.setCellFactory(list -> new ChatCell());
+        roomLines.put(LOBBY, FXCollections.observableArrayList());
+        chatList.setItems(roomLines.get(LOBBY));
+        // scrolling up past the first line asks the server for the page before it
+        chatList.setOnScroll(e -> {
+            if (e.getDeltaY() > 0 && scrolledToTop()) loadOlder();
+        });
+
+        roomBox = new ComboBox<>();
+        roomBox.setEditable(true);
+        roomBox.setPromptText("room");
+        roomBox.getItems().add(LOBBY);
+        roomBox.setValue(LOBBY);
+        roomBox.setOnAction(e -> switchRoom(roomBox.getValue()));
 
         input = new TextField();
-        input.setPromptText("Type a message and press Enter...");
+        input.setPromptText("Type a message and press Enter... (/search words, word*, from:\"nick\")");
 
         hostField = new TextField("127.0.0.1");
         hostField.setPrefWidth(130);
@@ -81,21 +152,24 @@ public class SyncBridgeClient extends Application {
         Button connectBtn = new Button("Connect");
         Button sendBtn    = new Button("Send");
         Button saveBtn    = new Button("Save Chat");
+        Button leaveBtn   = new Button("Leave");
         
         styleButton(connectBtn, "#9333ea", "#7c3aed"); 
         styleButton(sendBtn, "#9333ea", "#7c3aed");   
         styleButton(saveBtn, "#9333ea", "#7c3aed");   
+        styleButton(leaveBtn, "#9333ea", "#7c3aed");   
 
         connectBtn.setOnAction(e -> connect());
         sendBtn.setOnAction(e -> send());
         input.setOnAction(e -> send());
         saveBtn.setOnAction(e -> saveChat());
+        leaveBtn.setOnAction(e -> leaveRoom());
 
         input.setOnKeyTyped(e -> {
-            if (out == null) return;
+            if (conn == null) return;
             String txt = input.getText();
             if (!typing && txt != null && !txt.trim().isEmpty()) {
-                out.println("TYPING_ON");
+                command(BinaryProtocol.TYPING_ON);
                 typing = true;
                 clearCenter(false); // Clear read status when typing starts
             }
@@ -106,15 +180,15 @@ public class SyncBridgeClient extends Application {
 
         // READ logic: Send READ command when chat is interacted with and a new message exists
         chatList.setOnMouseClicked(e -> {
-            if (out != null && !hasSentRead) {
-                out.println("READ");
+            if (conn != null && !hasSentRead) {
+                command(BinaryProtocol.READ, lastSeq(currentRoom), null);
                 hasSentRead = true;
             }
         });
         
         chatList.getSelectionModel().selectedItemProperty().addListener((obs, oldVal, newVal) -> {
-            if (newVal != null && out != null && !hasSentRead) {
-                 out.println("READ");
+            if (newVal != null && conn != null && !hasSentRead) {
+                 command(BinaryProtocol.READ, lastSeq(currentRoom), null);
                  hasSentRead = true;
             }
         });
@@ -140,7 +214,8 @@ public class SyncBridgeClient extends Application {
 
         HBox top = new HBox(8,
                 new Label("Server IP:"), hostField,
-                connectBtn, saveBtn, status, dateTimeLabel); 
+                connectBtn, saveBtn, new Label("Room:"), roomBox, leaveBtn,
+                status, dateTimeLabel); 
         HBox.setHgrow(dateTimeLabel, Priority.ALWAYS);
         dateTimeLabel.setAlignment(Pos.CENTER_RIGHT);
         
@@ -168,7 +243,7 @@ public class SyncBridgeClient extends Application {
         root.setCenter(centerBox);
         root.setBottom(bottom);
 
-        Scene scene = new Scene(root, 720, 460);
+        Scene scene = new Scene(root, 900, 460);
         stage.setTitle("SyncBridge Client – " + nick);
         stage.setScene(scene);
         stage.show();
@@ -249,45 +324,73 @@ public class SyncBridgeClient extends Application {
     private void connect() {
         String hostTxt = hostField.getText().trim();
         final String host = hostTxt.isEmpty() ? "127.0.0.1" : hostTxt;
-        final int port = 5050;
+        final int port = tls ? Integer.getInteger("syncbridge.tls-port", 5051) : 5050;
 
-        if (socket != null && socket.isConnected() && !socket.isClosed()) {
+        if (conn != null && conn.isOpen()) {
             addLine("[system] Already connected.");
             return;
         }
 
         Thread t = new Thread(() -> {
             try {
-                socket = new Socket(host, port);
-                in  = new BufferedReader(
-                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-                out = new PrintWriter(
-                        new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                if (tls && tlsFactory == null) {
+                    String store = System.getProperty("syncbridge.truststore",
+                            Boolean.getBoolean("syncbridge.tls-test-keys") ? "syncbridge-test-trust.p12" : null);
+                    tlsFactory = ChatConnection.tls(store == null ? null : Paths.get(store),
+                            System.getProperty("syncbridge.truststore-password", "syncbridge").toCharArray());
+                }
+                conn = ChatConnection.open(host, port, binary, compress, tls ? tlsFactory : null, new ChatConnection.Listener() {
+                    @Override
+                    public void onLine(long seq, String line) {
+                        if (line.startsWith(EXPORT)) {
+                            exportLine(line);
+                            return;
+                        }
+                        incoming.add(new ChatLine(seq, line, 0));
+                        if (drainScheduled.compareAndSet(false, true)) Platform.runLater(() -> drainIncoming());
+                    }
 
-                out.println("NICK:" + nick);
+                    @Override
+                    public void onClosed(IOException cause) {
+                        Transcript t = transcript;
+                        if (t != null) exportFailed(t, "the connection closed");
+                        if (cause != null) Platform.runLater(() -> addLine("[system] Connection closed."));
+                    }
+
+                    @Override
+                    public void onExport(long seq, byte[] lines, int off, int len) {
+                        Transcript t = transcript;
+                        if (t == null || t.out == null) return;
+                        try {
+                            t.out.write(lines, off, len);
+                            t.written += len;
+                            exportProgress(t);
+                        } catch (IOException e) {
+                            exportFailed(t, e.getMessage());
+                        }
+                    }
+                });
+
+                long lobbySeq = lastSeq(LOBBY);
+                // the server answers with the missed lines, or "[session] expired" and we log in; with
+                // no token yet this only asks for a session, which the server gives only when asked
+                String token = sessionToken;
+                command(BinaryProtocol.RESUME, 0, token == null ? "" : token);
                 
                 hasSentRead = false; 
 
                 Platform.runLater(() -> {
                     status.setText("Connected");
                     status.setStyle("-fx-text-fill:#bbf7d0;");
-                    chatList.getItems().clear(); 
+                    if (lobbySeq == 0) {
+                        roomLines.get(LOBBY).clear();
+                        pagePending.clear();
+                    }
                     addLine("[system] Connected to " + host + ":" + port +
                             " as " + nick + " (" + email + ")");
                 });
 
-                readerThread = new Thread(() -> {
-                    try {
-                        String line;
-                        while ((line = in.readLine()) != null) {
-                            final String msg = line;
-                            Platform.runLater(() -> handleIncoming(msg));
-                        }
-                    } catch (IOException e) {
-                        Platform.runLater(() ->
-                                addLine("[system] Connection closed."));
-                    }
-                }, "sb-reader");
+                readerThread = new Thread(conn::readLoop, "sb-reader");
                 readerThread.setDaemon(true);
                 readerThread.start();
 
@@ -303,7 +406,112 @@ public class SyncBridgeClient extends Application {
         t.start();
     }
 
-    private void handleIncoming(String msg) {
+    // Ask only for the history we have not seen yet; on the first connect only
+    // for the latest page, older pages are loaded when scrolling up
+    private void login(List<String> rejoin) {
+        long lobbySeq = lastSeq(LOBBY);
+        command(BinaryProtocol.HISTORY_SINCE, lobbySeq > 0 ? lobbySeq : LATEST, null);
+        command(BinaryProtocol.NICK, 0, nick);
+        if (lobbySeq == 0) command(BinaryProtocol.HISTORY_BEFORE, LATEST, LOBBY);
+        for (String room : rejoin) joinRoom(room);
+    }
+
+    // Rooms to rejoin after a reconnect, the current one last so it stays current
+    private List<String> rejoinOrder() {
+        List<String> rejoin = new ArrayList<>(roomLines.keySet());
+        rejoin.remove(LOBBY);
+        if (rejoin.remove(currentRoom)) rejoin.add(currentRoom);
+        return rejoin;
+    }
+
+    // Sends one client command in the connection's protocol
+    private void command(byte opcode) {
+        command(opcode, 0, null);
+    }
+
+    private void command(byte opcode, long id, String text) {
+        ChatConnection c = conn;
+        if (c != null) c.command(opcode, id, text);
+    }
+
+    // Applies queued lines in one go: each room's list changes at most twice per pulse
+    private void drainIncoming() {
+        drainScheduled.set(false);
+        Map<String, List<ChatLine>> added = new HashMap<>();
+        Map<String, List<ChatLine>> older = new HashMap<>();
+        ChatLine next;
+        for (int i = 0; i < MAX_PER_PULSE && (next = incoming.poll()) != null; i++) {
+            handleIncoming(next.seq, next.text, added, older);
+        }
+
+        for (Map.Entry<String, List<ChatLine>> e : older.entrySet()) {
+            roomLines.get(e.getKey()).addAll(0, e.getValue());
+            pagePending.remove(e.getKey());
+        }
+        for (Map.Entry<String, List<ChatLine>> e : added.entrySet()) {
+            append(e.getKey(), e.getValue());
+        }
+        if (!added.containsKey(currentRoom) && older.containsKey(currentRoom)) {
+            // keep the line that was at the top in view above the page that just came in
+            chatList.scrollTo(older.get(currentRoom).size());
+        }
+        acknowledge();
+        if (!incoming.isEmpty() && drainScheduled.compareAndSet(false, true)) Platform.runLater(() -> drainIncoming());
+    }
+
+    // Tells the server, at most once per ACK_INTERVAL_NANOS, how far each room has arrived; a resumed
+    // session replays from there, and anything newer that was not acked yet is simply received twice
+    private void acknowledge() {
+        long now = System.nanoTime();
+        if (sessionToken == null || now - lastAckNanos < ACK_INTERVAL_NANOS) return;
+        lastAckNanos = now;
+        for (Map.Entry<String, Long> e : lastSeqs.entrySet()) {
+            if (!e.getValue().equals(ackedSeqs.get(e.getKey()))) {
+                command(BinaryProtocol.ACK, e.getValue(), e.getKey());
+                ackedSeqs.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void handleIncoming(long seq, String line, Map<String, List<ChatLine>> added, Map<String, List<ChatLine>> older) {
+        if (line.startsWith(SESSION)) {
+            String token = line.substring(SESSION.length()).trim();
+            ackedSeqs.clear();
+            if (token.equals("expired")) {
+                sessionToken = null;
+                login(rejoinOrder());
+            } else {
+                sessionToken = token;
+            }
+            return;
+        }
+        if (line.startsWith(BUSY)) {
+            retryLater(line.substring(BUSY.length()).trim());
+            return;
+        }
+        String tagged = BinaryProtocol.roomOf(line);
+        String room = tagged == null ? LOBBY : tagged;
+        String msg = BinaryProtocol.untagged(line);
+        if (!roomLines.containsKey(room)) {
+            // a room we already left (e.g. its leave confirmation): show it as is in the lobby
+            added.computeIfAbsent(LOBBY, r -> new ArrayList<>()).add(chatLine(0, line));
+            return;
+        }
+        List<ChatLine> batch = added.computeIfAbsent(room, r -> new ArrayList<>());
+        long oldest = oldestSeq(roomLines.get(room), batch);
+        if (seq > 0 && oldest > 0 && seq < oldest) {
+            // a page of older history
+            older.computeIfAbsent(room, r -> new ArrayList<>()).add(chatLine(seq, msg));
+            return;
+        }
+        if (seq > 0 && seq <= lastSeq(room)) return; // a page overlapping lines that arrived live
+        if (seq > 0) lastSeqs.put(room, seq);
+
+        if (!room.equals(currentRoom)) {
+            // typing and read status only matter for the room on screen
+            if (!msg.startsWith("[typing]") && !msg.startsWith("[read]")) batch.add(chatLine(seq, msg));
+            return;
+        }
         
         if (msg.startsWith("[typing]")) {
             String who = msg.substring("[typing]".length()).trim();
@@ -318,14 +526,128 @@ public class SyncBridgeClient extends Application {
             return;
         }
         
+        if (msg.startsWith("[search] more: ")) {
+            searchMore = msg.substring("[search] more: ".length());
+            batch.add(chatLine(seq, "[search] More matches: type /search for the next page."));
+            return;
+        }
+
         // This is the trigger to reset the 'read' status only if a new chat message arrives
-        if (!msg.startsWith("[system]") && msg.matches(".*: .*") && !msg.startsWith(nick + ": ")) {
+        if (!msg.startsWith("[system]") && !msg.startsWith("[search]") && msg.matches(".*: .*") && !msg.startsWith(nick + ": ")) {
             hasSentRead = false; 
             clearCenter(true); 
         }
 
         // Add the message to the chat list (This correctly handles the SAVE_CHAT broadcast from the server)
-        addLine(msg);
+        batch.add(chatLine(seq, msg));
+    }
+
+    // "retry-after=<seconds> <reason>": the server is overloaded and closes the connection. Connect
+    // again (resuming the session, if there is one) once the delay it asked for is over.
+    private void retryLater(String busy) {
+        int seconds = 5;
+        String reason = busy;
+        if (busy.startsWith("retry-after=")) {
+            int sp = busy.indexOf(' ');
+            try {
+                seconds = Integer.parseInt(busy.substring("retry-after=".length(), sp < 0 ? busy.length() : sp));
+            } catch (NumberFormatException ignored) {}
+            reason = sp < 0 ? "The server is busy." : busy.substring(sp + 1);
+        }
+        ChatConnection c = conn;
+        if (c != null) c.close();
+        status.setText("Disconnected");
+        status.setStyle("-fx-text-fill:#fecaca;");
+        addLine("[system] " + reason + " Connecting again in " + seconds + " s.");
+        PauseTransition retry = new PauseTransition(Duration.seconds(seconds));
+        retry.setOnFinished(e -> connect());
+        retry.play();
+    }
+
+    // Sequence number of the oldest numbered line shown for a room (or about to be), 0 if none
+    private static long oldestSeq(List<ChatLine> lines, List<ChatLine> pending) {
+        for (ChatLine l : lines) if (l.seq > 0) return l.seq;
+        for (ChatLine l : pending) if (l.seq > 0) return l.seq;
+        return 0;
+    }
+
+    private boolean scrolledToTop() {
+        javafx.scene.Node bar = chatList.lookup(".scroll-bar:vertical");
+        if (!(bar instanceof ScrollBar)) return true; // everything fits, nothing to scroll
+        return ((ScrollBar) bar).getValue() <= ((ScrollBar) bar).getMin();
+    }
+
+    private boolean scrolledToBottom() {
+        javafx.scene.Node bar = chatList.lookup(".scroll-bar:vertical");
+        if (!(bar instanceof ScrollBar) || !bar.isVisible()) return true; // everything fits
+        return ((ScrollBar) bar).getValue() >= ((ScrollBar) bar).getMax();
+    }
+
+    // Requests the page of history just before the oldest line of the current room
+    private void loadOlder() {
+        ObservableList<ChatLine> lines = roomLines.get(currentRoom);
+        long oldest = oldestSeq(lines, List.of());
+        if (conn == null || oldest <= 1 || lines.size() >= MAX_LINES || !pagePending.add(currentRoom)) return;
+        command(BinaryProtocol.HISTORY_BEFORE, oldest, currentRoom);
+    }
+
+    private long lastSeq(String room) {
+        return lastSeqs.getOrDefault(room, 0L);
+    }
+
+    // Shows the room, joining it on the server first if needed; the server makes it the current room
+    private void switchRoom(String requested) {
+        if (requested == null) return;
+        String room = requested.trim().toLowerCase(Locale.ROOT);
+        if (room.startsWith("#")) room = room.substring(1);
+        if (room.isEmpty() || room.equals(currentRoom)) return;
+        if (conn == null) {
+            addLine("[error] Not connected to server.");
+            roomBox.setValue(currentRoom);
+            return;
+        }
+
+        if (!roomLines.containsKey(room)) {
+            roomLines.put(room, FXCollections.observableArrayList());
+            roomBox.getItems().add(room);
+        }
+        if (typing) {
+            command(BinaryProtocol.TYPING_OFF);
+            typing = false;
+        }
+        joinRoom(room);
+        showRoom(room);
+    }
+
+    // Rejoins with what was missed, or joins showing only the latest page of the room's history
+    private void joinRoom(String room) {
+        long seq = lastSeq(room);
+        command(BinaryProtocol.JOIN, seq > 0 ? seq : LATEST, room);
+        if (seq == 0) command(BinaryProtocol.HISTORY_BEFORE, LATEST, room);
+    }
+
+    private void leaveRoom() {
+        if (currentRoom.equals(LOBBY)) {
+            addLine("[error] You cannot leave the lobby.");
+            return;
+        }
+        String room = currentRoom;
+        command(BinaryProtocol.LEAVE, 0, room);
+        showRoom(LOBBY);
+        roomLines.remove(room);
+        lastSeqs.remove(room);
+        pagePending.remove(room);
+        roomBox.getItems().remove(room);
+    }
+
+    private void showRoom(String room) {
+        currentRoom = room;
+        roomBox.setValue(room);
+        chatList.setItems(roomLines.get(room));
+        chatList.scrollTo(chatList.getItems().size() - 1);
+        clearCenter(true);
+        hasSentRead = false;
+        mainStage.setTitle("SyncBridge Client – " + nick + (room.equals(LOBBY) ? "" : " – #" + room));
     }
 
     private void showCenter(String text, boolean autoHide) {
@@ -349,19 +671,30 @@ public class SyncBridgeClient extends Application {
     private void send() {
         String txt = input.getText().trim();
         if (txt.isEmpty()) return;
-        if (out == null) {
+        if (conn == null) {
             addLine("[error] Not connected to server.");
             return;
         }
         
-        // 1. Send message
-        out.println("MSG:" + txt);
-        addLine(nick + ": " + txt);
+        // 1. Send message, or the search typed as "/search <query>" ("/search" alone: the next page)
+        if (txt.equals("/search") || txt.startsWith("/search ")) {
+            String query = txt.substring("/search".length()).trim();
+            if (query.isEmpty()) query = searchMore;
+            if (query == null) {
+                addLine("[error] Type /search followed by words, word* or from:nick (from:\"nick\" when it has spaces).");
+                return;
+            }
+            searchMore = null;
+            command(BinaryProtocol.SEARCH, 0, query);
+        } else {
+            command(BinaryProtocol.MSG, 0, txt);
+            addLine(nick + ": " + txt);
+        }
         input.clear();
 
         // 2. Clear typing status if active
         if (typing) {
-            out.println("TYPING_OFF");
+            command(BinaryProtocol.TYPING_OFF);
             typing = false;
         }
         
@@ -370,6 +703,8 @@ public class SyncBridgeClient extends Application {
         clearCenter(false); 
     }
 
+    // The server streams the room's whole stored history and the reader thread writes it to the file;
+    // the FX thread only shows progress. Offline, the lines on screen are saved on a thread of their own.
     private void saveChat() {
         FileChooser fc = new FileChooser();
         fc.setTitle("Save Chat");
@@ -381,74 +716,186 @@ public class SyncBridgeClient extends Application {
         File f = fc.showSaveDialog(mainStage);
         if (f == null) return;
         
-        String filename = f.getName();
-        
-        try (PrintWriter pw = new PrintWriter(new FileWriter(f, false))) {
-            for (String s : chatList.getItems()) pw.println(s);
-            
-            // Send save command to server. The server will broadcast the confirmation 
-            // back to ALL clients, including this one.
-            if (out != null) {
-                out.println("SAVE_CHAT:" + filename);
+        ChatConnection c = conn;
+        if (c != null && c.isOpen()) {
+            if (transcript != null) {
+                addLine("[error] The chat is still being saved.");
+                return;
+            }
+            transcript = new Transcript(f);
+            command(BinaryProtocol.EXPORT, 0, currentRoom);
+            return;
+        }
+
+        List<String> lines = new ArrayList<>();
+        for (ChatLine l : chatList.getItems()) lines.add(l.text);
+        Thread t = new Thread(() -> {
+            try (PrintWriter pw = new PrintWriter(new FileWriter(f, false))) {
+                for (String l : lines) pw.println(l);
+            } catch (IOException e) {
+                Platform.runLater(() -> addLine("[error] Could not save chat: " + e.getMessage()));
+            }
+        }, "sb-save");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // "[export] begin <room> <from> <to> <bytes>", "[export] end <lines>" or "[export] failed <reason>";
+    // handled on the reader thread, in order with the chunks between them
+    private void exportLine(String line) {
+        Transcript t = transcript;
+        if (t == null) return;
+        String[] parts = line.substring(EXPORT.length()).split(" ", 2);
+        String arg = parts.length > 1 ? parts[1].trim() : "";
+        try {
+            switch (parts[0]) {
+                case "begin": {
+                    String[] fields = arg.split(" ");
+                    t.room = fields[0];
+                    t.expected = Long.parseLong(fields[3]);
+                    t.out = new FileOutputStream(t.file);
+                    exportProgress(t);
+                    break;
+                }
+                case "end": {
+                    if (t.out == null) throw new IOException("nothing was sent");
+                    t.out.close();
+                    transcript = null;
+                    String summary = "[system] Saved " + arg + " lines of #" + t.room + " as " + t.file.getName() + ".";
+                    Platform.runLater(() -> {
+                        clearCenter(false);
+                        addLine(summary);
+                    });
+                    // the server tells the room, including us
+                    command(BinaryProtocol.SAVE_CHAT, 0, t.file.getName());
+                    break;
+                }
+                default:
+                    exportFailed(t, arg);
             }
-            
-        } catch (IOException e) {
-            addLine("[error] Could not save chat: " + e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            exportFailed(t, e.getMessage());
         }
     }
 
+    // Shows the saved share of the transcript whenever it passes another percent
+    private void exportProgress(Transcript t) {
+        int percent = t.expected <= 0 ? 100 : (int) (t.written * 100 / t.expected);
+        if (percent == t.percent) return;
+        t.percent = percent;
+        Platform.runLater(() -> showCenter("Saving chat... " + percent + "%", false));
+    }
+
+    private void exportFailed(Transcript t, String reason) {
+        transcript = null;
+        if (t.out != null) {
+            try {
+                t.out.close();
+            } catch (IOException ignored) {}
+        }
+        Platform.runLater(() -> {
+            clearCenter(false);
+            addLine("[error] Could not save chat: " + reason);
+        });
+    }
+
     private void addLine(String s) {
-        chatList.getItems().add(s);
-        chatList.scrollTo(chatList.getItems().size() - 1);
+        append(currentRoom, List.of(chatLine(0, s)));
+    }
+
+    // Appends to a room's lines, dropping the oldest beyond MAX_LINES. While the user reads back in
+    // the current room the view stays put and up to twice as many are kept, so that older pages just
+    // loaded are not dropped again; the excess goes once the user is back at the bottom.
+    private void append(String room, List<ChatLine> batch) {
+        ObservableList<ChatLine> lines = roomLines.get(room);
+        if (batch.isEmpty() || lines == null) return;
+        boolean readingBack = room.equals(currentRoom) && !scrolledToBottom();
+        lines.addAll(batch);
+        int keep = readingBack ? 2 * MAX_LINES : MAX_LINES;
+        if (lines.size() > keep) lines.remove(0, lines.size() - keep);
+        if (room.equals(currentRoom) && !readingBack) chatList.scrollTo(lines.size() - 1);
+    }
+
+    private ChatLine chatLine(long seq, String text) {
+        int kind = text.startsWith(nick + ": ") ? ChatLine.SELF
+                : text.startsWith("[system]") || text.startsWith("[error]") || text.startsWith("[search]") ? ChatLine.SYSTEM
+                : ChatLine.OTHER;
+        return new ChatLine(seq, text, kind);
     }
 
     private void closeConn() {
         try {
-            if (out != null) out.println("QUIT");
+            command(BinaryProtocol.QUIT);
         } catch (Exception ignored) {}
-        try {
-            if (socket != null && !socket.isClosed()) socket.close();
-        } catch (IOException ignored) {}
+        sessionToken = null;
+        if (conn != null) conn.close();
         if (readerThread != null && readerThread.isAlive()) readerThread.interrupt();
     }
 
-    private class ChatCell extends ListCell<String> {
+    // One line of a room, classified for rendering once when it arrives
+    private static final class ChatLine {
+        static final int SELF = 0, SYSTEM = 1, OTHER = 2;
+
+        final long seq; // history sequence number, 0 if none
+        final String text;
+        final int kind;
+
+        ChatLine(long seq, String text, int kind) {
+            this.seq = seq;
+            this.text = text;
+            this.kind = kind;
+        }
+    }
+
+    // A transcript export on its way to disk; reader thread only once requested
+    private static final class Transcript {
+        final File file;
+        String room;
+        OutputStream out; // open from "[export] begin" on
+        long expected, written; // bytes
+        int percent = -1;
+
+        Transcript(File file) {
+            this.file = file;
+        }
+    }
+
+    // Cells are recycled by the ListView: the label and box are built once, styles only change with the kind
+    private static class ChatCell extends ListCell<ChatLine> {
+        private final Label label = new Label();
+        private final HBox box = new HBox(label);
+        private int kind = -1;
+
+        ChatCell() {
+            label.setWrapText(true);
+            label.setMaxWidth(400);
+            box.setPadding(new Insets(4));
+        }
+
         @Override
-        protected void updateItem(String item, boolean empty) {
+        protected void updateItem(ChatLine item, boolean empty) {
             super.updateItem(item, empty);
             if (empty || item == null) {
                 setGraphic(null);
                 return;
             }
 
-            Label label = new Label(item);
-            label.setWrapText(true);
-            label.setMaxWidth(400);
-            HBox box = new HBox(label);
-            box.setPadding(new Insets(4));
-
-            if (item.startsWith(nick + ": ")) { 
-                // Sender (Your Client): Blue
-                label.setStyle(
-                    "-fx-background-color:#3b82f6;" + 
-                    "-fx-text-fill:white;" +
-                    "-fx-padding:6 10 6 10;" +
-                    "-fx-background-radius:12;"
-                );
-                box.setAlignment(Pos.CENTER_RIGHT);
-            } else if (item.startsWith("[system]") || item.startsWith("[error]")) {
-                // System messages: Light Purple
-                label.setStyle("-fx-text-fill:#a78bfa; -fx-font-size:11; -fx-font-weight: bold;");
-                box.setAlignment(Pos.CENTER);
-            } else { 
-                // Receiver (Other User): Teal/Cyan
-                label.setStyle(
-                    "-fx-background-color:#14b8a6;" + 
-                    "-fx-text-fill:white;" +
-                    "-fx-padding:6 10 6 10;" +
-                    "-fx-background-radius:12;"
-                );
-                box.setAlignment(Pos.CENTER_LEFT);
+            label.setText(item.text);
+            if (item.kind != kind) {
+                kind = item.kind;
+                if (kind == ChatLine.SELF) {
+                    // Sender (Your Client): Blue
+                    label.setStyle(SELF_STYLE);
+                    box.setAlignment(Pos.CENTER_RIGHT);
+                } else if (kind == ChatLine.SYSTEM) {
+                    // System messages: Light Purple
+                    label.setStyle(SYSTEM_STYLE);
+                    box.setAlignment(Pos.CENTER);
+                } else {
+                    // Receiver (Other User): Teal/Cyan
+                    label.setStyle(OTHER_STYLE);
+                    box.setAlignment(Pos.CENTER_LEFT);
+                }
             }
             setGraphic(box);
         }
@@ -1,140 +1,746 @@
 package sb.server;
 
+import sb.protocol.BinaryProtocol;
+
 import java.io.*;
-import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.time.LocalDateTime; 
 import java.time.format.DateTimeFormatter; 
-import java.util.ArrayList; 
-import java.util.Collections; 
-import java.util.List; 
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SyncBridgeServer {
 
     private static final int PORT = 5050;
+    private static final int HISTORY_PAGE = 200;
     private static final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
-    private static final List<String> chatHistory = Collections.synchronizedList(new ArrayList<>());
+    private static final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private static final Map<String, ClientHandler> sessions = new ConcurrentHashMap<>(); // token -> handler
+    private static ServerOptions options = ServerOptions.parse(new String[0]);
+    static Cluster cluster = Cluster.create(options, PORT);
+    static Sequencer sequencer; // null: rooms broadcast on the calling thread
+    private static Room lobby;
+    private static int maxRooms = 256;
+    private static int typingRate = 5;
+    private static long sessionGraceMillis = 60_000;
+    private static final SecureRandom tokens = new SecureRandom();
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sb-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final AtomicInteger nextClientId = new AtomicInteger(1);
     private static final DateTimeFormatter DT_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
     public static void main(String[] args) {
-        System.out.println("SyncBridge Server running on port " + PORT);
-        chatHistory.add("[system] Server started at " + LocalDateTime.now().format(DT_FORMAT));
-        try (ServerSocket server = new ServerSocket(PORT)) {
-            while (true) {
-                Socket sock = server.accept();
-                new ClientHandler(sock).start();
-            }
+        options = ServerOptions.parse(args);
+        Log.configure(options);
+        int port = options.integer("port", PORT);
+        cluster = Cluster.create(options, port);
+        ConnectionEngine engine = ConnectionEngine.create(options);
+        OutboundQueue.configure(options);
+        Compressor.configure(options);
+        Admission.configure(options);
+        sequencer = Sequencer.create(options);
+        typingRate = options.integer("typing-rate", typingRate);
+        maxRooms = options.integer("max-rooms", maxRooms);
+        sessionGraceMillis = Math.max(0, options.integer("session-grace-ms", (int) sessionGraceMillis));
+        try {
+            lobby = new Room(Room.LOBBY, options);
+        } catch (IOException e) {
+            System.err.println("Could not open the chat log: " + e.getMessage());
+            return;
+        }
+        rooms.put(Room.LOBBY, lobby);
+
+        Log.info("SyncBridge Server running on port " + port + " (" + engine.name() + ")");
+        lobby.history.append("[system] Server started at " + LocalDateTime.now().format(DT_FORMAT));
+        startPresenceTicker(options.integer("presence-tick-ms", 250));
+        if (sessionGraceMillis > 0) timer.scheduleAtFixedRate(SyncBridgeServer::expireSessions, 1, 1, TimeUnit.SECONDS);
+        try {
+            Metrics.start(options);
+            if (cluster.enabled()) cluster.start();
+            engine.serve(port);
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
         }
     }
 
-    // Used for regular chat messages (does NOT send back to sender)
-    static void broadcast(String msg, String fromNick) {
-        chatHistory.add(msg); 
-        for (ClientHandler c : clients.values()) {
-            if (!c.nick.equals(fromNick)) c.send(msg);
+    // The named room, opened on first use; null once --max-rooms rooms exist or its log cannot be opened
+    static Room room(String name) {
+        Room room = rooms.get(name);
+        if (room != null) return room;
+        synchronized (rooms) {
+            room = rooms.get(name);
+            if (room == null && rooms.size() < maxRooms) {
+                try {
+                    room = new Room(name, options);
+                    rooms.put(name, room);
+                } catch (IOException e) {
+                    Log.warn("Could not open room " + name + ": " + e.getMessage());
+                }
+            }
+        }
+        return room;
+    }
+
+    // The client connected to this node under nick, if any
+    static ClientHandler client(String nick) {
+        return clients.get(nick);
+    }
+
+    // Nicknames taken on this node
+    static Collection<String> nicks() {
+        return clients.keySet();
+    }
+
+    // Handlers of joined clients, for metrics
+    static Collection<ClientHandler> handlers() {
+        return clients.values();
+    }
+
+    static Collection<Room> rooms() {
+        return rooms.values();
+    }
+
+    // One thread publishes the typing presence and read receipts of every room
+    private static void startPresenceTicker(long tickMillis) {
+        timer.scheduleAtFixedRate(() -> {
+            for (Room room : rooms.values()) {
+                try {
+                    room.presence.tick(room.members);
+                    room.reads.tick(room.members);
+                } catch (RuntimeException e) {
+                    Log.warn("Presence tick failed: " + e.getMessage());
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Clients whose connection dropped more than --session-grace-ms ago leave for good
+    private static void expireSessions() {
+        long now = System.nanoTime();
+        for (ClientHandler c : sessions.values()) {
+            if (c.expired(now) && sessions.remove(c.token, c)) c.depart();
         }
-        System.out.println(msg);
     }
-    
-    // Used for system messages/read receipts (sends to ALL clients, including sender)
-    static void broadcastAll(String msg) {
-        chatHistory.add(msg);
-        for (ClientHandler c : clients.values()) {
-            c.send(msg);
-        }
-        System.out.println(msg);
+
+    private static String newToken() {
+        byte[] b = new byte[18];
+        tokens.nextBytes(b);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(b);
     }
 
-    private static class ClientHandler extends Thread {
-        private final Socket socket;
-        private BufferedReader in;
-        private PrintWriter out;
-        String nick = "???";
+    // Protocol state of one connection; the ConnectionEngine feeds it commands and owns the socket.
+    // Text lines and binary frames are both mapped onto the same command methods below.
+    // Every client is in the lobby; MSG, typing and READ go to the room it joined last.
+    // A joined client that asked for it (HELLO, or RESUME before NICK, even with no token) gets a session
+    // token; when its connection drops (without QUIT) the nickname and
+    // rooms are held for --session-grace-ms, and RESUME:<token> on a new connection takes them over,
+    // replaying only what came after the sequence numbers the client acknowledged with ACK.
+    static class ClientHandler {
+        private final Transport transport;
+        final int id = nextClientId.getAndIncrement();
+        private final TokenBucket typingLimit = new TokenBucket(typingRate, typingRate);
+        private final TokenBucket messageLimit = new TokenBucket(Admission.messageRate, Admission.messageBurst);
+        private boolean throttled; // told that messages are being dropped, until one gets through again
+        private final Set<Room> subscriptions = ConcurrentHashMap.newKeySet();
+        private volatile Room room;
+        private boolean joined;
+        private long joinSince; // set by a HISTORY_SINCE line sent before NICK
+        private Frame.Format format = Frame.Format.TEXT;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final Map<String, Long> acked = new ConcurrentHashMap<>(); // room -> newest seq the client has
+        private volatile String token;
+        private volatile long detachedAt; // System.nanoTime() when the connection dropped, 0 while attached
+        private volatile boolean ending;  // QUIT or kicked: no grace period
+        private volatile boolean replaced; // resumed on another connection
+        private boolean wantsSession; // sent HELLO or RESUME; legacy text clients leave at once when they drop
+        volatile String nick = "???";
+
+        ClientHandler(Transport transport) {
+            this.transport = transport;
+            Metrics.connectionsOpened.increment();
+        }
+
+        int queued() {
+            return transport.queued();
+        }
 
-        ClientHandler(Socket socket) {
-            this.socket = socket;
+        // Still wants the room's lines: subscribed, and the connection neither dropped nor taken over
+        boolean subscribedTo(Room r) {
+            return !closed.get() && !replaced && subscriptions.contains(r);
         }
 
         void send(String msg) {
-            try {
-                out.println(msg);
-            } catch (Exception e) {
-                disconnect();
+            send(Frame.of(msg), OutboundQueue.Kind.MESSAGE);
+        }
+
+        void send(Frame frame, OutboundQueue.Kind kind) {
+            OutboundQueue.Result result = transport.send(frame, kind);
+            Metrics.frame(kind, result);
+            if (result == OutboundQueue.Result.OVERFLOW && OutboundQueue.disconnectSlowConsumers) {
+                Log.info(nick + " is not keeping up, disconnecting.");
+                transport.abort();
             }
         }
 
-        @Override
-        public void run() {
-            try {
-                in = new BufferedReader(new InputStreamReader(
-                        socket.getInputStream(), StandardCharsets.UTF_8));
-                out = new PrintWriter(new OutputStreamWriter(
-                        socket.getOutputStream(), StandardCharsets.UTF_8), true);
-
-                String first = in.readLine();
-                if (first == null || !first.startsWith("NICK:")) {
-                    socket.close();
-                    return;
+        // Text protocol; returns false when the connection should be closed
+        boolean onLine(String line) {
+            if (line.startsWith("HISTORY_SINCE:")) {
+                return historySince(parseSince(line));
+            }
+            if (line.startsWith("RESUME:")) {
+                return resume(line.substring(7).trim());
+            }
+            if (!joined) {
+                return line.startsWith("NICK:") && join(line.substring(5).trim());
+            }
+
+            if (line.equalsIgnoreCase("QUIT")) {
+                Metrics.command(Metrics.Command.QUIT);
+                ending = true;
+                return false;
+            }
+
+            if (line.startsWith("MSG:")) {
+                message(line.substring(4).trim());
+
+            } else if (line.equals("TYPING_ON")) {
+                typing(true);
+
+            } else if (line.equals("TYPING_OFF")) {
+                typing(false);
+
+            } else if (line.equals("READ") || line.startsWith("READ:")) {
+                // "READ" or "READ:<newest seq read>"
+                long seq = 0;
+                try {
+                    if (line.length() > 5) seq = Long.parseLong(line.substring(5).trim());
+                } catch (NumberFormatException ignored) {}
+                read(seq);
+                
+            } else if (line.startsWith("SAVE_CHAT:")) {
+                saveChat(line.substring("SAVE_CHAT:".length()).trim());
+
+            } else if (line.equals("EXPORT") || line.startsWith("EXPORT:")) {
+                // "EXPORT:<room>[:<from>[-<to>]]"; no room means the current one
+                export(line.length() > 7 ? line.substring(7) : "");
+
+            } else if (line.startsWith("SEARCH:")) {
+                search(line.substring(7));
+
+            } else if (line.startsWith("JOIN:")) {
+                // "JOIN:<room>" or "JOIN:<room>:<last seq seen>"
+                String arg = line.substring(5);
+                int colon = arg.indexOf(':');
+                long since = 0;
+                if (colon >= 0) {
+                    try {
+                        since = Math.max(0, Long.parseLong(arg.substring(colon + 1).trim()));
+                    } catch (NumberFormatException ignored) {}
+                    arg = arg.substring(0, colon);
                 }
-                nick = first.substring(5).trim();
-                if (nick.isEmpty() || clients.containsKey(nick)) {
-                    out.println("[system] Nickname not allowed.");
-                    socket.close();
+                joinRoom(arg, since);
+
+            } else if (line.startsWith("LEAVE:")) {
+                leaveRoom(line.substring(6));
+
+            } else if (line.startsWith("HISTORY_BEFORE:")) {
+                // "HISTORY_BEFORE:<seq>" for the lobby or "HISTORY_BEFORE:<seq>:<room>"
+                String arg = line.substring("HISTORY_BEFORE:".length());
+                int colon = arg.indexOf(':');
+                try {
+                    historyBefore(colon < 0 ? "" : arg.substring(colon + 1),
+                            Long.parseLong((colon < 0 ? arg : arg.substring(0, colon)).trim()));
+                } catch (NumberFormatException ignored) {}
+
+            } else if (line.startsWith("ACK:")) {
+                // "ACK:<seq>" for the lobby or "ACK:<seq>:<room>"
+                String arg = line.substring(4);
+                int colon = arg.indexOf(':');
+                try {
+                    ack(colon < 0 ? "" : arg.substring(colon + 1),
+                            Long.parseLong((colon < 0 ? arg : arg.substring(0, colon)).trim()));
+                } catch (NumberFormatException ignored) {}
+
+            } else {
+                Metrics.command(Metrics.Command.OTHER);
+            }
+            return true;
+        }
+
+        // Binary protocol; payload is only valid during the call and only decoded where it carries text
+        boolean onFrame(byte opcode, long messageId, ByteBuffer payload) {
+            switch (opcode) {
+                case BinaryProtocol.HELLO:
+                    Metrics.command(Metrics.Command.HELLO);
+                    format = Frame.Format.BINARY;
+                    transport.setFormat(format);
+                    wantsSession = true;
+                    send(Frame.raw(BinaryProtocol.encode(BinaryProtocol.HELLO, BinaryProtocol.VERSION, null)),
+                            OutboundQueue.Kind.MESSAGE);
+                    return true;
+                case BinaryProtocol.COMPRESS:
+                    Metrics.command(Metrics.Command.COMPRESS);
+                    boolean on = Compressor.enabled && format == Frame.Format.BINARY;
+                    send(Frame.raw(BinaryProtocol.encode(BinaryProtocol.COMPRESS, on ? 1 : 0, null)),
+                            OutboundQueue.Kind.MESSAGE);
+                    if (on) transport.compress();
+                    return true;
+                case BinaryProtocol.HISTORY_SINCE:
+                    return historySince(Math.max(0, messageId));
+                case BinaryProtocol.NICK:
+                    return !joined && join(decode(payload).trim());
+                case BinaryProtocol.RESUME:
+                    return resume(decode(payload).trim());
+                default:
+                    if (!joined) return false;
+            }
+
+            switch (opcode) {
+                case BinaryProtocol.QUIT:
+                    Metrics.command(Metrics.Command.QUIT);
+                    ending = true;
+                    return false;
+                case BinaryProtocol.MSG:
+                    message(decode(payload).trim());
+                    break;
+                case BinaryProtocol.TYPING_ON:
+                    typing(true);
+                    break;
+                case BinaryProtocol.TYPING_OFF:
+                    typing(false);
+                    break;
+                case BinaryProtocol.READ:
+                    read(messageId);
+                    break;
+                case BinaryProtocol.SAVE_CHAT:
+                    saveChat(decode(payload).trim());
+                    break;
+                case BinaryProtocol.EXPORT:
+                    export(decode(payload));
+                    break;
+                case BinaryProtocol.SEARCH:
+                    search(decode(payload));
+                    break;
+                case BinaryProtocol.JOIN:
+                    joinRoom(decode(payload), Math.max(0, messageId));
+                    break;
+                case BinaryProtocol.LEAVE:
+                    leaveRoom(decode(payload));
+                    break;
+                case BinaryProtocol.HISTORY_BEFORE:
+                    historyBefore(decode(payload), messageId);
+                    break;
+                case BinaryProtocol.ACK:
+                    ack(decode(payload), messageId);
+                    break;
+                default:
+                    // unknown commands are ignored, as in the text protocol
+                    Metrics.command(Metrics.Command.OTHER);
+            }
+            return true;
+        }
+
+        // Anything that would read as a server line when shown as "<nick>: <text>" is refused: a
+        // leading "[" ([system], [export] data, [session] ...) or "#" (a room or sequence prefix),
+        // an inner ": ", and control characters such as line breaks
+        private static boolean validNick(String nick) {
+            if (nick.isEmpty() || nick.startsWith("[") || nick.startsWith("#") || nick.contains(": ")) return false;
+            for (int i = 0; i < nick.length(); i++) {
+                if (Character.isISOControl(nick.charAt(i))) return false;
+            }
+            return true;
+        }
+
+        private boolean join(String requested) {
+            Metrics.command(Metrics.Command.NICK);
+            String busy = Admission.join();
+            if (busy != null) {
+                send(busy);
+                return false;
+            }
+            nick = requested;
+            if (!validNick(nick) || cluster.nickTaken(nick) || clients.putIfAbsent(nick, this) != null) {
+                send("[system] Nickname not allowed.");
+                return false;
+            }
+            cluster.nickAdded(nick);
+            joined = true;
+            room = lobby;
+            subscriptions.add(lobby);
+            send(Frame.of("[system] Welcome, " + nick + "!", 0, id), OutboundQueue.Kind.MESSAGE);
+            openSession();
+            acked.put(Room.LOBBY, Math.min(joinSince, lobby.history.lastSeq()));
+
+            // Send Chat History on Connect (only the missed part for clients that sent HISTORY_SINCE)
+            lobby.subscribe(this, joinSince, format);
+
+            lobby.broadcast("[system] " + nick + " has connected successfully.", this, OutboundQueue.Kind.MESSAGE);
+            return true;
+        }
+
+        // Beyond --message-rate per second (bursts up to --message-burst) messages are dropped,
+        // and the sender is told once when to try again
+        private void message(String txt) {
+            Metrics.command(Metrics.Command.MSG);
+            if (txt.isEmpty()) return;
+            if (!messageLimit.tryAcquire()) {
+                Metrics.rejected(Admission.Reason.MESSAGES);
+                if (!throttled) {
+                    throttled = true;
+                    long wait = Math.max(1, TimeUnit.NANOSECONDS.toMillis(messageLimit.nanosUntilAvailable()));
+                    send("[error] You are sending too fast; messages are dropped, retry after " + wait + " ms.");
+                }
+                return;
+            }
+            throttled = false;
+            room.broadcast(nick + ": " + printable(txt), this, OutboundQueue.Kind.MESSAGE);
+        }
+
+        // Coalesced by the PresenceTracker; bursts beyond --typing-rate per second are dropped
+        private void typing(boolean on) {
+            Metrics.command(Metrics.Command.TYPING);
+            if (typingLimit.tryAcquire()) {
+                room.presence.typing(nick, on);
+                cluster.relayTyping(room, nick, on);
+            }
+        }
+
+        private void stopTyping(Room r) {
+            r.presence.remove(nick);
+            cluster.relayTyping(r, nick, false);
+        }
+
+        // Moves this reader's watermark in the current room; 0 (or a bad number) means everything so far.
+        // Receipts go out with the next presence tick, and only to the authors they concern.
+        private void read(long seq) {
+            Metrics.command(Metrics.Command.READ);
+            Room r = room;
+            long last = r.history.lastSeq();
+            r.reads.read(nick, seq <= 0 ? last : Math.min(seq, last));
+        }
+
+        private void saveChat(String filename) {
+            Metrics.command(Metrics.Command.SAVE_CHAT);
+            // Use broadcastAll for system messages to ensure the sender also sees the confirmation
+            room.broadcastAll("[system] " + nick + " saved the chat locally as: " + printable(filename), OutboundQueue.Kind.MESSAGE);
+        }
+
+        // Streams the stored history of a joined room, or its lines from..to, to this client only:
+        // "[export] begin <room> <from> <to> <bytes>", the lines in chunks of whole lines, then
+        // "[export] end <lines>", or "[export] failed <reason>". On a plain socket the chunks go from
+        // the chat log file to the socket without passing through the heap.
+        private void export(String arg) {
+            Metrics.command(Metrics.Command.EXPORT);
+            int colon = arg.indexOf(':');
+            String requested = (colon < 0 ? arg : arg.substring(0, colon)).trim();
+            String name = requested.isEmpty() ? room.name : Room.normalize(requested);
+            Room target = name == null ? null : rooms.get(name);
+            if (target == null || !subscriptions.contains(target)) {
+                send("[export] failed You are not in room #" + requested + ".");
+                return;
+            }
+            long from = 1, to = Long.MAX_VALUE;
+            if (colon >= 0 && !arg.substring(colon + 1).trim().isEmpty()) {
+                String range = arg.substring(colon + 1).trim();
+                int dash = range.indexOf('-');
+                try {
+                    from = Math.max(1, Long.parseLong((dash < 0 ? range : range.substring(0, dash)).trim()));
+                    if (dash >= 0 && !range.substring(dash + 1).trim().isEmpty()) {
+                        to = Long.parseLong(range.substring(dash + 1).trim());
+                    }
+                } catch (NumberFormatException e) {
+                    send("[export] failed Ranges are <from>[-<to>].");
                     return;
                 }
+            }
 
-                clients.put(nick, this);
-                out.println("[system] Welcome, " + nick + "!");
-                
-                // Send Chat History on Connect
-                for (String historyMsg : chatHistory) {
-                    out.println(historyMsg);
+            List<Frame.Region> chunks = new ArrayList<>();
+            target.history.export(from, to, chunks::add);
+            long bytes = 0;
+            int lines = 0;
+            for (Frame.Region r : chunks) {
+                bytes += r.size();
+                lines += r.count;
+            }
+            long first = 0, last = 0;
+            if (!chunks.isEmpty()) {
+                Frame.Region tail = chunks.get(chunks.size() - 1);
+                first = chunks.get(0).firstSeq;
+                last = tail.firstSeq + tail.count - 1;
+            }
+            send(Frame.of("[export] begin " + target.name + " " + first + " " + last + " " + bytes), OutboundQueue.Kind.REPLAY);
+            for (Frame.Region r : chunks) send(Frame.export(r), OutboundQueue.Kind.REPLAY);
+            send(Frame.of("[export] end " + lines), OutboundQueue.Kind.REPLAY);
+            Log.info(nick + " exported " + lines + " lines of #" + target.name + ".");
+        }
+
+        // Searches the current room's retained chat lines, newest first, a page at a time:
+        // "[search] <total> matches for <query>", "[search] #<seq> <line>" for each, and
+        // "[search] more: <query> before:<seq>" when there are older matches.
+        private void search(String query) {
+            Metrics.command(Metrics.Command.SEARCH);
+            Room r = room;
+            SearchIndex.Query q = SearchIndex.Query.parse(query);
+            if (r.search == null) {
+                send(r.tag("[search] failed Search is turned off on this server."));
+                return;
+            }
+            if (q.isEmpty()) {
+                send(r.tag("[search] failed Search for words, word* or from:<nick> (from:\"<nick>\" when it has spaces)."));
+                return;
+            }
+            String terms = query.replaceAll("(?i)\\s*before:\\S*", "").trim();
+            SearchIndex.Result result = r.search.search(q, SearchIndex.PAGE);
+            send(Frame.of(r.tag("[search] " + result.total + (result.total == 1 ? " match" : " matches") + " for " + terms)),
+                    OutboundQueue.Kind.REPLAY);
+            for (long seq : result.seqs) {
+                Frame line = r.history.get(seq);
+                if (line != null) {
+                    send(Frame.of(r.tag("[search] #" + seq + " " + BinaryProtocol.untagged(line.text()))), OutboundQueue.Kind.REPLAY);
                 }
-                
-                broadcast("[system] " + nick + " has connected successfully.", nick);
-
-                String line;
-                while ((line = in.readLine()) != null) {
-                    if (line.equalsIgnoreCase("QUIT")) break;
-
-                    if (line.startsWith("MSG:")) {
-                        String txt = line.substring(4).trim();
-                        if (!txt.isEmpty())
-                            broadcast(nick + ": " + txt, nick);
-
-                    } else if (line.equals("TYPING_ON")) {
-                        broadcast("[typing] " + nick + " is typing...", nick);
-
-                    } else if (line.equals("TYPING_OFF")) {
-                        broadcast("[typing] " + nick + " has stopped typing.", nick);
-
-                    } else if (line.equals("READ")) {
-                        // Send "READ" status to all clients
-                        broadcastAll("[read] " + nick + " has read the messages.");
-                        
-                    } else if (line.startsWith("SAVE_CHAT:")) {
-                        // Use broadcastAll for system messages to ensure the sender also sees the confirmation
-                        String filename = line.substring("SAVE_CHAT:".length()).trim();
-                        broadcastAll("[system] " + nick + " saved the chat locally as: " + filename);
+            }
+            if (result.total > result.seqs.length) {
+                long oldest = result.seqs[result.seqs.length - 1];
+                send(Frame.of(r.tag("[search] more: " + terms + " before:" + oldest)), OutboundQueue.Kind.REPLAY);
+            }
+        }
+
+        // Subscribes to the room (replaying its history after since) and makes it the current one
+        private void joinRoom(String requested, long since) {
+            Metrics.command(Metrics.Command.JOIN);
+            String name = Room.normalize(requested);
+            if (name == null) {
+                send("[error] Room names are 1-32 letters, digits, '-' or '_'.");
+                return;
+            }
+            Room target = room(name);
+            if (target == null) {
+                send("[error] Could not open room #" + name + ".");
+                return;
+            }
+            if (target != room) stopTyping(room);
+            room = target;
+            if (subscriptions.add(target)) {
+                acked.put(name, Math.min(since, target.history.lastSeq()));
+                target.subscribe(this, since, format);
+                target.broadcastAll("[system] " + nick + " joined #" + name + ".", OutboundQueue.Kind.MESSAGE);
+            } else if (since > 0) {
+                target.history.replaySince(since, format, f -> send(f, OutboundQueue.Kind.REPLAY));
+            }
+        }
+
+        private void leaveRoom(String requested) {
+            Metrics.command(Metrics.Command.LEAVE);
+            String name = Room.normalize(requested);
+            Room target = name == null ? null : rooms.get(name);
+            if (target == lobby) {
+                send("[error] You cannot leave the lobby.");
+                return;
+            }
+            if (target == null || !subscriptions.remove(target)) {
+                send("[error] You are not in room #" + requested.trim() + ".");
+                return;
+            }
+            target.members.remove(this);
+            target.reads.remove(nick);
+            acked.remove(name);
+            stopTyping(target);
+            if (room == target) room = lobby;
+            target.broadcast("[system] " + nick + " left #" + name + ".", this, OutboundQueue.Kind.MESSAGE);
+            send(target.tag("[system] You left #" + name + "."));
+        }
+
+        // One page of a joined room's history just below before, for clients that load older lines lazily
+        private void historyBefore(String requested, long before) {
+            Metrics.command(Metrics.Command.HISTORY_BEFORE);
+            String name = requested.trim().isEmpty() ? Room.LOBBY : Room.normalize(requested);
+            Room target = name == null ? null : rooms.get(name);
+            if (target == null || !subscriptions.contains(target)) {
+                send("[error] You are not in room #" + requested.trim() + ".");
+                return;
+            }
+            if (format == Frame.Format.TEXT) {
+                // paged lines are only useful with their numbers
+                format = Frame.Format.SEQUENCED;
+                transport.setFormat(format);
+            }
+            long to = Math.min(before - 1, target.history.lastSeq());
+            if (to < 1) return;
+            target.history.replayRange(Math.max(1, to - HISTORY_PAGE + 1), to, format,
+                    f -> send(f, OutboundQueue.Kind.REPLAY));
+        }
+
+        private void ack(String requested, long seq) {
+            Metrics.command(Metrics.Command.ACK);
+            String name = requested.trim().isEmpty() ? Room.LOBBY : Room.normalize(requested);
+            Room target = name == null ? null : rooms.get(name);
+            if (target != null && subscriptions.contains(target)) acked.merge(name, seq, Math::max);
+        }
+
+        // Takes over the session of a dropped connection: same nick and rooms, no join or leave lines,
+        // and only the history after what the client acknowledged. Any other answer means "send NICK".
+        private boolean resume(String presented) {
+            Metrics.command(Metrics.Command.RESUME);
+            if (joined) return true;
+            wantsSession = true;
+            if (presented.isEmpty()) {
+                // no session yet, only asking for one: log in with NICK
+                send(Frame.of("[session] expired"), OutboundQueue.Kind.MESSAGE);
+                return true;
+            }
+            String busy = Admission.join();
+            if (busy != null) {
+                send(busy);
+                return false;
+            }
+            ClientHandler old = sessions.remove(presented);
+            if (old == null || !clients.replace(old.nick, old, this)) {
+                send(Frame.of("[session] expired"), OutboundQueue.Kind.MESSAGE);
+                return true;
+            }
+            old.replaced = true;
+            for (Room r : old.subscriptions) r.members.remove(old);
+            old.transport.abort(); // a half-open socket the server has not noticed yet
+
+            nick = old.nick;
+            joined = true;
+            room = old.room;
+            acked.putAll(old.acked);
+            if (format == Frame.Format.TEXT) {
+                format = Frame.Format.SEQUENCED;
+                transport.setFormat(format);
+            }
+            send(Frame.of("[system] Welcome back, " + nick + "!", 0, id), OutboundQueue.Kind.MESSAGE);
+            openSession();
+            for (Room r : old.subscriptions) {
+                subscriptions.add(r);
+                r.subscribe(this, acked.getOrDefault(r.name, 0L), format);
+            }
+            Log.info(nick + " resumed the session.");
+            return true;
+        }
+
+        private void openSession() {
+            if (sessionGraceMillis <= 0 || !wantsSession) return;
+            token = newToken();
+            sessions.put(token, this);
+            send(Frame.of("[session] " + token), OutboundQueue.Kind.MESSAGE);
+        }
+
+        boolean expired(long now) {
+            long at = detachedAt;
+            return at != 0 && now - at > TimeUnit.MILLISECONDS.toNanos(sessionGraceMillis);
+        }
+
+        // Before joining this only sets where the join-time replay starts
+        private boolean historySince(long since) {
+            Metrics.command(Metrics.Command.HISTORY_SINCE);
+            if (format == Frame.Format.TEXT) {
+                format = Frame.Format.SEQUENCED;
+                transport.setFormat(format);
+            }
+            if (joined) {
+                // Only what the client missed, numbered so it can ask again after a reconnect
+                replay(since);
+            } else {
+                joinSince = since;
+            }
+            return true;
+        }
+
+        private void replay(long since) {
+            lobby.history.replaySince(since, format, f -> send(f, OutboundQueue.Kind.REPLAY));
+        }
+
+        // "HISTORY_SINCE:<seq>"; anything unparsable means "everything retained"
+        private static long parseSince(String line) {
+            try {
+                return Math.max(0, Long.parseLong(line.substring("HISTORY_SINCE:".length()).trim()));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        private static String decode(ByteBuffer payload) {
+            return printable(StandardCharsets.UTF_8.decode(payload).toString());
+        }
+
+        // Control characters become spaces. A line break in a client's text would split the line
+        // it ends up in, and the second half could pass for a server line such as "[export] data ...";
+        // stored history also has to stay one line per entry.
+        static String printable(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                if (Character.isISOControl(text.charAt(i))) {
+                    char[] chars = text.toCharArray();
+                    for (int j = i; j < chars.length; j++) {
+                        if (Character.isISOControl(chars[j])) chars[j] = ' ';
                     }
+                    return new String(chars);
                 }
+            }
+            return text;
+        }
+
+        // Says why and closes the connection once that line is written
+        void kick(String reason) {
+            ending = true;
+            if (detachedAt != 0) {
+                // nobody to tell; the held session just ends
+                if (sessions.remove(token, this)) depart();
+                return;
+            }
+            send(reason);
+            transport.close();
+        }
+
+        // Called by the engine once the connection ends, for whatever reason
+        void disconnect() {
+            if (closed.compareAndSet(false, true)) {
+                Metrics.connectionsClosed.increment();
+                if (joined && !replaced) {
+                    if (token != null && !ending) detach(); else depart();
+                }
+            }
+            transport.close();
+        }
 
-            } catch (IOException e) {
-                System.out.println(nick + " disconnected.");
-            } finally {
-                disconnect();
+        // Leaves the rooms but keeps the nickname and session until RESUME or expireSessions()
+        private void detach() {
+            for (Room r : subscriptions) {
+                r.members.remove(this);
+                r.presence.remove(nick);
             }
+            cluster.relayTyping(room, nick, false);
+            detachedAt = System.nanoTime();
+            Log.info(nick + " lost the connection, holding the session.");
         }
 
-        private void disconnect() {
-            if (clients.remove(nick) != null) {
-                broadcast("[system] " + nick + " was kicked out of server.", nick);
+        private void depart() {
+            if (token != null) sessions.remove(token, this);
+            if (!clients.remove(nick, this)) return;
+            cluster.nickRemoved(nick);
+            for (Room r : subscriptions) {
+                r.members.remove(this);
+                r.presence.remove(nick);
+                r.reads.remove(nick);
             }
-            try { socket.close(); } catch (IOException ignored) {}
+            cluster.relayTyping(room, nick, false);
+            lobby.broadcast("[system] " + nick + " was kicked out of server.", this, OutboundQueue.Kind.MESSAGE);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,213 @@
+package sb.server;
+
+import sb.protocol.BinaryProtocol;
+import sb.protocol.VirtualThreads;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+// One blocking reader and one writer per connection, on platform threads or (JDK 21+) virtual threads
+final class ThreadEngine implements ConnectionEngine {
+
+    private final Executor executor;
+    private final String name;
+
+    ThreadEngine(boolean virtual) {
+        if (virtual && !VirtualThreads.available()) {
+            Log.warn("Virtual threads are not available on this JVM, using platform threads.");
+        }
+        if (virtual && VirtualThreads.available()) {
+            executor = VirtualThreads.executorOrFallback(Executors::newCachedThreadPool);
+            name = "virtual threads";
+        } else {
+            executor = task -> new Thread(task, "sb-connection").start();
+            name = "platform threads";
+        }
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public void serve(int port) throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), Admission.backlog);
+            while (true) {
+                SocketChannel ch = Admission.accept(server);
+                InetAddress address = Admission.admit(ch, false);
+                if (address != null) executor.execute(() -> handle(ch, address));
+            }
+        }
+    }
+
+    private void handle(SocketChannel ch, InetAddress address) {
+        SyncBridgeServer.ClientHandler handler = null;
+        try {
+            BufferedInputStream in = new BufferedInputStream(Channels.newInputStream(ch));
+            SocketTransport transport = new SocketTransport(ch);
+            handler = new SyncBridgeServer.ClientHandler(transport);
+            executor.execute(transport::writeLoop);
+
+            in.mark(1);
+            int first = in.read();
+            in.reset();
+            if (first == BinaryProtocol.HELLO) {
+                readFrames(new DataInputStream(in), handler);
+            } else {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!handler.onLine(line)) break;
+                }
+            }
+        } catch (IOException e) {
+            if (handler != null) Log.info(handler.nick + " disconnected.");
+        } finally {
+            if (handler != null) {
+                handler.disconnect();
+            } else {
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+            Admission.release(address);
+        }
+    }
+
+    private static void readFrames(DataInputStream in, SyncBridgeServer.ClientHandler handler) throws IOException {
+        byte[] payload = new byte[256];
+        while (true) {
+            int opcode = in.read();
+            if (opcode < 0) return;
+            int len = in.readInt();
+            long messageId = in.readLong();
+            in.readInt(); // sender id, always the connection itself
+            if (len < 0 || len > BinaryProtocol.MAX_PAYLOAD) {
+                Log.info(handler.nick + " sent an invalid frame, closing.");
+                return;
+            }
+            if (payload.length < len) payload = new byte[len];
+            in.readFully(payload, 0, len);
+            if (!handler.onFrame((byte) opcode, messageId, ByteBuffer.wrap(payload, 0, len))) return;
+        }
+    }
+
+    private static final class SocketTransport implements Transport {
+        private static final int MAX_BATCH = 256;
+
+        private final SocketChannel channel;
+        private final OutboundQueue queue = new OutboundQueue();
+        private volatile Compressor compressor;
+
+        SocketTransport(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public OutboundQueue.Result send(Frame frame, OutboundQueue.Kind kind) {
+            return queue.offer(frame, kind);
+        }
+
+        @Override
+        public void setFormat(Frame.Format format) {
+            queue.format = format;
+        }
+
+        @Override
+        public void close() {
+            queue.shutdown();
+        }
+
+        @Override
+        public void abort() {
+            queue.shutdown();
+            queue.clear();
+            closeChannel();
+        }
+
+        @Override
+        public void compress() {
+            if (compressor == null) compressor = new Compressor();
+        }
+
+        @Override
+        public int queued() {
+            return queue.size();
+        }
+
+        // Drains the queue, handing every available frame to one gathering write.
+        // The lines of an export chunk go from the chat log file to the socket with transferTo.
+        void writeLoop() {
+            List<Frame> batch = new ArrayList<>(MAX_BATCH);
+            ByteBuffer[] gather = new ByteBuffer[MAX_BATCH * 2];
+            try {
+                while (queue.take(batch, MAX_BATCH)) {
+                    Frame.Format format = queue.format;
+                    Compressor c = compressor;
+                    int count = 0;
+                    for (Frame frame : batch) {
+                        Frame.Region region = frame.region();
+                        if (region == null || region.file == null || c != null) {
+                            count = frame.gather(format, c != null, gather, count);
+                        } else {
+                            gather[count++] = frame.buffer(format);
+                            write(gather, count);
+                            count = 0;
+                            transfer(region);
+                        }
+                    }
+                    batch.clear();
+                    if (c != null) count = c.compress(gather, 0, count);
+                    write(gather, count);
+                }
+            } catch (IOException | InterruptedException ignored) {
+                // the reader sees the closed channel and disconnects the handler
+            } finally {
+                closeChannel();
+                if (compressor != null) compressor.close();
+            }
+        }
+
+        private void write(ByteBuffer[] gather, int count) throws IOException {
+            int first = 0;
+            while (first < count) {
+                Metrics.bytesWritten.add(channel.write(gather, first, count - first));
+                while (first < count && !gather[first].hasRemaining()) first++;
+            }
+            Arrays.fill(gather, 0, count, null);
+        }
+
+        // A blocking socket takes something or fails, so transferTo only moves nothing when the file has
+        // nothing at that position (say it was cut short); the rest then goes from the mapped lines
+        // rather than retrying forever
+        private void transfer(Frame.Region region) throws IOException {
+            long sent = 0;
+            while (sent < region.size()) {
+                long n = region.transferTo(sent, channel);
+                if (n == 0) {
+                    ByteBuffer[] rest = {region.lines()};
+                    rest[0].position((int) sent);
+                    write(rest, 1);
+                    return;
+                }
+                sent += n;
+                Metrics.bytesWritten.add(n);
+            }
+        }
+
+        private void closeChannel() {
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+}
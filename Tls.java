@@ -0,0 +1,250 @@
+package sb.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+
+// TLS for the second client port (--tls-port), driven by the selector loops through SSLEngine.
+//   --tls-keystore=FILE      PKCS#12 key and certificate, required with --tls-port
+//   --tls-password=SECRET    keystore password
+//   --tls-test-keys          use the bundled syncbridge-test.p12 instead (self-signed for localhost,
+//                            password syncbridge; clients trust it with syncbridge-test-trust.p12)
+//   --tls-session-cache=N    sessions kept for resumption (default 20000)
+//   --tls-session-timeout=S  how long a session may be resumed, in seconds (default 86400)
+// Reconnecting clients resume their session (TLS 1.3 tickets or the session cache) and skip the
+// certificate signature, which is what makes a reconnect storm cheap.
+final class Tls {
+
+    private static final ByteBuffer[] NO_DATA = {ByteBuffer.allocate(0)};
+
+    // Handshake crypto runs here, not on the selector loops
+    private static final ExecutorService tasks = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2), r -> {
+                Thread t = new Thread(r, "sb-tls");
+                t.setDaemon(true);
+                return t;
+            });
+
+    final int port;
+    private final SSLContext context;
+
+    private Tls(int port, SSLContext context) {
+        this.port = port;
+        this.context = context;
+    }
+
+    // null unless --tls-port is set
+    static Tls create(ServerOptions options) {
+        int port = options.integer("tls-port", 0);
+        if (port <= 0) return null;
+        Path file;
+        char[] password;
+        if (options.bool("tls-test-keys", false)) {
+            file = Paths.get("syncbridge-test.p12");
+            password = "syncbridge".toCharArray();
+            Log.warn("TLS uses the bundled test key, which anyone can read: for local testing only.");
+        } else {
+            String keystore = options.string("tls-keystore", "");
+            if (keystore.isEmpty()) {
+                throw new IllegalArgumentException("--tls-port needs --tls-keystore=FILE and --tls-password=SECRET"
+                        + " (or --tls-test-keys for the bundled test key)");
+            }
+            file = Paths.get(keystore);
+            password = options.string("tls-password", "").toCharArray();
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            KeyStore keys = KeyStore.getInstance("PKCS12");
+            keys.load(in, password);
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keys, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(options.integer("tls-session-cache", 20000));
+            sessions.setSessionTimeout(options.integer("tls-session-timeout", 86400));
+            return new Tls(port, context);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalArgumentException("Could not load the TLS keystore " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    Session newSession() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new Session(engine);
+    }
+
+    // One connection's SSLEngine. Ciphertext is read into and wrapped in the selector loop's shared
+    // buffers; a connection only keeps its own copy of a record that is not complete yet or not
+    // written yet, so an idle connection holds no buffers, as on the plain port. Selector thread
+    // only, except for the delegated handshake tasks, which run on the sb-tls pool.
+    static final class Session {
+        private final SSLEngine engine;
+        private ByteBuffer netIn;  // an incomplete record kept between reads (fill mode)
+        private ByteBuffer netOut; // ciphertext the socket did not take yet (drain mode)
+        private ByteBuffer input;  // what unwrap reads during one onReadable: netIn or the shared buffer
+        private ByteBuffer output; // what the next write takes: netOut or the shared buffer
+        private boolean handshaking = true;
+        private volatile boolean runningTasks;
+
+        private Session(SSLEngine engine) {
+            this.engine = engine;
+        }
+
+        int packetBufferSize() {
+            return engine.getSession().getPacketBufferSize();
+        }
+
+        int applicationBufferSize() {
+            return engine.getSession().getApplicationBufferSize();
+        }
+
+        boolean handshaking() {
+            return handshaking;
+        }
+
+        boolean runningTasks() {
+            return runningTasks;
+        }
+
+        boolean needsWrap() {
+            return engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+        }
+
+        boolean needsTasks() {
+            return engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK;
+        }
+
+        boolean hasInput() {
+            ByteBuffer in = input != null ? input : netIn;
+            return in != null && in.position() > 0;
+        }
+
+        // Reads what the socket has; false once the peer closed it. endRead() must follow.
+        boolean read(SocketChannel channel, ByteBuffer shared) throws IOException {
+            if (netIn != null) {
+                if (!netIn.hasRemaining()) netIn = grow(netIn, netIn.capacity() + packetBufferSize());
+                input = netIn;
+            } else {
+                shared.clear();
+                input = shared;
+            }
+            return channel.read(input) >= 0;
+        }
+
+        // Unwraps at most one record into app; returns the ciphertext bytes it used (0: more input
+        // needed, or the handshake wants something else first), -1 once the peer sent close_notify
+        int unwrap(ByteBuffer app) throws SSLException {
+            ByteBuffer in = input != null ? input : netIn;
+            if (in == null || in.position() == 0) return 0;
+            in.flip();
+            SSLEngineResult r;
+            try {
+                r = engine.unwrap(in, app);
+            } finally {
+                in.compact();
+            }
+            finished(r);
+            switch (r.getStatus()) {
+                case CLOSED:
+                    return -1;
+                case BUFFER_OVERFLOW:
+                    throw new SSLException("Application buffer too small for a TLS record");
+                default:
+                    return r.bytesConsumed();
+            }
+        }
+
+        // Keeps a partial record out of the shared buffer until the next read
+        void endRead() {
+            if (input != null && input != netIn && input.position() > 0) {
+                input.flip();
+                netIn = ByteBuffer.allocate(Math.max(input.remaining(), packetBufferSize())).put(input);
+            } else if (netIn != null && netIn.position() == 0) {
+                netIn = null;
+            }
+            input = null;
+        }
+
+        // Wraps app data (or, when src is null, pending handshake output) into one record; only
+        // called once earlier ciphertext is written. Returns false if nothing could be wrapped.
+        boolean wrap(ByteBuffer[] src, int offset, int length, ByteBuffer shared) throws SSLException {
+            ByteBuffer out = shared.capacity() >= packetBufferSize() ? shared : ByteBuffer.allocate(packetBufferSize());
+            out.clear();
+            SSLEngineResult r = src == null ? engine.wrap(NO_DATA, out) : engine.wrap(src, offset, length, out);
+            out.flip();
+            output = out;
+            finished(r);
+            if (r.getStatus() == SSLEngineResult.Status.CLOSED && r.bytesProduced() == 0) {
+                throw new SSLException("TLS connection closed");
+            }
+            return r.bytesProduced() > 0;
+        }
+
+        // Writes wrapped ciphertext; true when none is left over
+        boolean writePending(SocketChannel channel) throws IOException {
+            ByteBuffer out = output;
+            if (out == null) return true;
+            if (out.hasRemaining()) Metrics.bytesWritten.add(channel.write(out));
+            if (!out.hasRemaining()) {
+                output = null;
+                netOut = null;
+                return true;
+            }
+            if (out != netOut) {
+                netOut = ByteBuffer.allocate(out.remaining()).put(out).flip();
+                output = netOut;
+            }
+            return false;
+        }
+
+        // Runs the delegated handshake tasks off the selector thread, then resume on it
+        void runTasks(Executor loop, Runnable resume) {
+            runningTasks = true;
+            tasks.execute(() -> {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) task.run();
+                runningTasks = false;
+                loop.execute(resume);
+            });
+        }
+
+        // Best effort close_notify; the channel is closed right after
+        void close(SocketChannel channel, ByteBuffer shared) {
+            engine.closeOutbound();
+            try {
+                if (output == null) wrap(null, 0, 0, shared);
+                writePending(channel);
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+        }
+
+        private void finished(SSLEngineResult r) {
+            if (handshaking && r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                handshaking = false;
+                Metrics.tlsHandshakes.increment();
+            }
+        }
+
+        private static ByteBuffer grow(ByteBuffer buf, int capacity) {
+            buf.flip();
+            return ByteBuffer.allocate(capacity).put(buf);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package sb.server;
+
+// Token bucket rate limiter; not thread-safe, so a bucket shared by connections is locked by its users
+final class TokenBucket {
+
+    private final double perNano;
+    private final double capacity;
+    private double tokens;
+    private long last = System.nanoTime();
+
+    // perSecond <= 0 means unlimited
+    TokenBucket(double perSecond, double burst) {
+        this.perNano = perSecond / 1e9;
+        this.capacity = Math.max(1, burst);
+        this.tokens = capacity;
+    }
+
+    boolean tryAcquire() {
+        if (perNano <= 0) return true;
+        refill();
+        if (tokens < 1) return false;
+        tokens--;
+        return true;
+    }
+
+    // How long until tryAcquire() can succeed, 0 if it can now
+    long nanosUntilAvailable() {
+        if (perNano <= 0) return 0;
+        refill();
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / perNano);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - last) * perNano);
+        last = now;
+    }
+}
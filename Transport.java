@@ -0,0 +1,23 @@
+package sb.server;
+
+// Outbound side of one client connection, implemented by each ConnectionEngine
+interface Transport {
+
+    // Enqueues one shared frame for the connection's writer; never blocks the calling thread
+    OutboundQueue.Result send(Frame frame, OutboundQueue.Kind kind);
+
+    // Applies to frames written from now on
+    void setFormat(Frame.Format format);
+
+    // Closes the connection once already-queued frames are written; safe to call more than once
+    void close();
+
+    // Closes immediately, discarding queued frames; the engine then disconnects the handler
+    void abort();
+
+    // Deflates outgoing batches from now on; only for binary connections
+    void compress();
+
+    // Frames waiting to be written, for metrics
+    int queued();
+}
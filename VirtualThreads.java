@@ -0,0 +1,41 @@
+package sb.protocol;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+// Virtual-thread executors for the server, LoadTool and the DNS tools. They are JDK 21+, so
+// Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively and everything still runs on JDK 17.
+public final class VirtualThreads {
+
+    private static final Method FACTORY = factory();
+
+    private VirtualThreads() {}
+
+    // Whether executorOrFallback gives virtual threads on this JVM
+    public static boolean available() {
+        return FACTORY != null;
+    }
+
+    // A new virtual-thread-per-task executor, or fallback's executor when this JVM has none
+    public static ExecutorService executorOrFallback(Supplier<? extends ExecutorService> fallback) {
+        if (FACTORY != null) {
+            try {
+                return (ExecutorService) FACTORY.invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException ignored) {}
+        }
+        return fallback.get();
+    }
+
+    // The method is there but unusable on JDK 19 and 20 without --enable-preview, so it is tried once
+    private static Method factory() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ((ExecutorService) m.invoke(null)).shutdown();
+            return m;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
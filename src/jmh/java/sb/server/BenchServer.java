@@ -0,0 +1,93 @@
+package sb.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+// The real server, started once per benchmark JVM with memory-only history and admission limits
+// off; room(), the lobby and the engines are all live. With the test keystores in the working
+// directory it also serves TLS. Its console output is discarded while measuring.
+final class BenchServer {
+
+    static final String TRUST_STORE = "syncbridge-test-trust.p12";
+
+    private static int port;
+    private static int tlsPort;
+
+    private BenchServer() {
+    }
+
+    // The plaintext port
+    static synchronized int start() {
+        if (port != 0) return port;
+        boolean tls = Files.exists(Paths.get("syncbridge-test.p12")) && Files.exists(Paths.get(TRUST_STORE));
+        int p = freePort();
+        int t = tls ? freePort() : 0;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread server = new Thread(() -> SyncBridgeServer.main(new String[]{
+                "--port=" + p, "--persist=false", "--slow-consumer=drop", "--max-rooms=4096",
+                "--join-rate=0", "--message-rate=0", "--max-connections=0",
+                "--tls-port=" + t, "--tls-test-keys=" + tls}), "sb-bench-server");
+        server.setDaemon(true);
+        server.start();
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", p).close();
+                port = p;
+                tlsPort = t;
+                return port;
+            } catch (IOException e) {
+                sleep(50);
+            }
+        }
+        throw new IllegalStateException("Benchmark server did not start on port " + p);
+    }
+
+    // The TLS port; fails when the test keystores are not in the working directory
+    static int startTls() {
+        start();
+        if (tlsPort == 0) throw new IllegalStateException("TLS benchmarks need syncbridge-test.p12 and " + TRUST_STORE + " in the working directory");
+        return tlsPort;
+    }
+
+    // A client factory trusting the test certificate, with its own session cache
+    static SSLSocketFactory clientTls() {
+        try (InputStream in = Files.newInputStream(Paths.get(TRUST_STORE))) {
+            KeyStore trusted = KeyStore.getInstance("PKCS12");
+            trusted.load(in, "syncbridge".toCharArray());
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(trusted);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, tmf.getTrustManagers(), null);
+            return context.getSocketFactory();
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int freePort() {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
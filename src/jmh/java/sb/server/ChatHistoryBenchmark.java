@@ -0,0 +1,75 @@
+package sb.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Join-time history replay versus history size, from the ring alone and from a small ring in front
+// of a mapped log, so almost everything then comes from the segments
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatHistoryBenchmark {
+
+    @Param({"1024", "65536"})
+    int lines;
+
+    @Param({"ring", "log"})
+    String store;
+
+    @Param({"TEXT", "SEQUENCED"})
+    String replayFormat;
+
+    private Frame.Format format;
+    private ChatHistory history;
+    private ChatLog log;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        format = Frame.Format.valueOf(replayFormat);
+        if (store.equals("log")) {
+            dir = Files.createTempDirectory("sb-bench-log");
+            log = ChatLog.open(dir, 64 * 1024 * 1024, ChatLog.Fsync.OS, 0);
+            history = new ChatHistory(1024, 0, log);
+        } else {
+            history = new ChatHistory(lines, 0);
+        }
+        for (int i = 0; i < lines; i++) history.append(FrameBenchmark.MSG);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (log == null) return;
+        log.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void replay(Blackhole bh) {
+        history.replaySince(0, format, f -> bh.consume(f.buffer(format)));
+    }
+}
@@ -0,0 +1,72 @@
+package sb.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sb.protocol.BinaryProtocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Per-command parse and dispatch cost of ClientHandler.onLine and onFrame, for a joined client
+// alone in its room: commands are dispatched but fan out to nobody else
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+    @Param({"MSG", "TYPING_ON", "TYPING_OFF", "READ", "UNKNOWN"})
+    String command;
+
+    private QueueTransport transport;
+    private SyncBridgeServer.ClientHandler handler;
+    private String line;
+    private byte opcode;
+    private ByteBuffer payload;
+    private int calls;
+
+    @Setup
+    public void setup() {
+        BenchServer.start();
+        transport = new QueueTransport();
+        handler = new SyncBridgeServer.ClientHandler(transport);
+        handler.onLine("NICK:bench-parser");
+        handler.onLine("JOIN:parse");
+        transport.drain();
+
+        String text = command.equals("MSG") ? FrameBenchmark.MSG : "";
+        line = command.equals("MSG") ? "MSG:" + text : command.equals("UNKNOWN") ? "UNKNOWN_COMMAND" : command;
+        switch (command) {
+            case "MSG": opcode = BinaryProtocol.MSG; break;
+            case "TYPING_ON": opcode = BinaryProtocol.TYPING_ON; break;
+            case "TYPING_OFF": opcode = BinaryProtocol.TYPING_OFF; break;
+            case "READ": opcode = BinaryProtocol.READ; break;
+            default: opcode = 0x7f;
+        }
+        payload = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void text() {
+        handler.onLine(line);
+        if ((++calls & 1023) == 0) transport.drain();
+    }
+
+    @Benchmark
+    public void binary() {
+        handler.onFrame(opcode, 0, payload.duplicate());
+        if ((++calls & 1023) == 0) transport.drain();
+    }
+}
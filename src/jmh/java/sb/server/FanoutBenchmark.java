@@ -0,0 +1,57 @@
+package sb.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Room.broadcastAll in the live server versus the number of room members, per broadcast. Members
+// are in-memory transports drained by the benchmark thread; with the sequencer, fan-out is
+// asynchronous, so a batch goes through before waiting for it and draining.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanoutBenchmark {
+
+    private static final int BATCH = 64;
+
+    @Param({"10", "100", "1000", "10000"})
+    int members;
+
+    private Room room;
+    private QueueTransport[] transports;
+
+    @Setup
+    public void setup() {
+        BenchServer.start();
+        room = SyncBridgeServer.room("fanout-" + members);
+        transports = new QueueTransport[members];
+        for (int i = 0; i < members; i++) {
+            transports[i] = new QueueTransport();
+            room.members.add(new SyncBridgeServer.ClientHandler(transports[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int broadcast() {
+        for (int m = 0; m < BATCH; m++) room.broadcastAll(FrameBenchmark.MSG, OutboundQueue.Kind.MESSAGE);
+        if (SyncBridgeServer.sequencer != null) SyncBridgeServer.sequencer.awaitIdle();
+        int delivered = 0;
+        for (QueueTransport t : transports) delivered += t.drain();
+        return delivered;
+    }
+}
@@ -0,0 +1,74 @@
+package sb.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Fan-out cost of the old per-recipient PrintWriter path versus one shared Frame per broadcast,
+// per broadcast. Each PrintWriter encodes the line into its own buffer and hands it to a null
+// stream, which discards it without copying; the Frame paths encode once and copy the shared
+// bytes into a direct buffer per recipient, as the kernel would. No socket I/O is measured.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+    static final String MSG = "Some User: a typical chat line with a few words and ünïcödé in it";
+
+    @Param({"10", "1000"})
+    int recipients;
+
+    private PrintWriter[] writers;
+    private final ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+
+    @Setup
+    public void setup() {
+        writers = new PrintWriter[recipients];
+        for (int i = 0; i < recipients; i++) {
+            writers[i] = new PrintWriter(new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8), true);
+        }
+    }
+
+    @Benchmark
+    public void printWriter() {
+        for (PrintWriter w : writers) w.println(MSG);
+    }
+
+    @Benchmark
+    public ByteBuffer sharedFrame() {
+        Frame frame = Frame.of(MSG);
+        for (int r = 0; r < recipients; r++) {
+            sink.clear();
+            sink.put(frame.buffer());
+        }
+        return sink;
+    }
+
+    @Benchmark
+    public ByteBuffer sharedFrameBinary() {
+        Frame frame = Frame.of(MSG, 1, 7);
+        for (int r = 0; r < recipients; r++) {
+            sink.clear();
+            sink.put(frame.buffer(Frame.Format.BINARY));
+        }
+        return sink;
+    }
+}
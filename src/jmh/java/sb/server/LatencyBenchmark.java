@@ -0,0 +1,98 @@
+package sb.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// End-to-end delivery latency through the live server over loopback sockets: one sender's line
+// until every other client in the room has read it. Sampled, so JMH reports p50/p99/p99.9.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatencyBenchmark {
+
+    private static final String SENDER = "bench-sender";
+
+    @Param({"1", "200"})
+    int clients;
+
+    private final List<Socket> sockets = new ArrayList<>();
+    private final AtomicLong delivered = new AtomicLong();
+    private OutputStream out;
+    private long sent;
+
+    @Setup
+    public void setup() throws Exception {
+        int port = BenchServer.start();
+        String room = "latency-" + clients;
+        CountDownLatch joined = new CountDownLatch(clients + 1);
+        for (int c = 0; c <= clients; c++) {
+            Socket s = new Socket("127.0.0.1", port);
+            s.setTcpNoDelay(true);
+            sockets.add(s);
+            String nick = c == clients ? SENDER : "bench-" + clients + "-" + c;
+            Thread reader = new Thread(() -> read(s, nick, room, joined), "sb-bench-client");
+            reader.setDaemon(true);
+            reader.start();
+            s.getOutputStream().write(("NICK:" + nick + "\nJOIN:" + room + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        if (!joined.await(30, TimeUnit.SECONDS)) throw new IllegalStateException("Clients did not join " + room);
+        out = sockets.get(clients).getOutputStream();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (Socket s : sockets) s.close();
+    }
+
+    @Benchmark
+    public long deliver() throws IOException {
+        out.write(("MSG:" + (++sent) + "\n").getBytes(StandardCharsets.UTF_8));
+        long expected = sent * clients;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (delivered.get() < expected) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("Lines stopped arriving after " + delivered.get() / clients);
+            Thread.onSpinWait();
+        }
+        return expected;
+    }
+
+    // Counts the sender's lines as seen by everyone else; the sender only drains its own copies
+    private void read(Socket s, String nick, String room, CountDownLatch joined) {
+        String prefix = "[#" + room + "] " + SENDER + ": ";
+        String self = nick + " joined #" + room + ".";
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            for (String line; (line = in.readLine()) != null; ) {
+                if (line.endsWith(self)) joined.countDown();
+                else if (!nick.equals(SENDER) && line.startsWith(prefix)) delivered.incrementAndGet();
+            }
+        } catch (IOException e) {
+            // closed at the end of the trial
+        }
+    }
+}
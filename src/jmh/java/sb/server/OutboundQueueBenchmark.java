@@ -0,0 +1,63 @@
+package sb.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// A client's outbound queue: a batch queued and drained by one thread, and broadcasters offering
+// while the connection's writer drains, as the selector loops do with poll()
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutboundQueueBenchmark {
+
+    private static final int BATCH = 64;
+
+    private OutboundQueue queue;
+    private Frame frame;
+
+    @Setup
+    public void setup() {
+        OutboundQueue.capacity = 4096;
+        OutboundQueue.ephemeralLimit = 256;
+        queue = new OutboundQueue();
+        frame = Frame.of(FrameBenchmark.MSG);
+    }
+
+    // one offer and one poll per frame, BATCH frames per call
+    @Benchmark
+    @Group("uncontended")
+    public Frame offerThenPoll() {
+        for (int i = 0; i < BATCH; i++) queue.offer(frame, OutboundQueue.Kind.MESSAGE);
+        Frame last = null;
+        for (Frame f; (f = queue.poll()) != null; ) last = f;
+        return last;
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public OutboundQueue.Result broadcaster() {
+        return queue.offer(frame, OutboundQueue.Kind.MESSAGE);
+    }
+
+    @Benchmark
+    @Group("contended")
+    public Frame writer() {
+        return queue.poll();
+    }
+}
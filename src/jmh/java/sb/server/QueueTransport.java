@@ -0,0 +1,55 @@
+package sb.server;
+
+import java.nio.ByteBuffer;
+
+// A client whose writer is the benchmark thread itself: queued frames are copied out and discarded
+final class QueueTransport implements Transport {
+
+    private static final ByteBuffer SINK = ByteBuffer.allocateDirect(256 * 1024); // all drained by the one benchmark thread
+
+    private final OutboundQueue queue = new OutboundQueue();
+
+    @Override
+    public OutboundQueue.Result send(Frame frame, OutboundQueue.Kind kind) {
+        return queue.offer(frame, kind);
+    }
+
+    @Override
+    public void setFormat(Frame.Format format) {
+        queue.format = format;
+    }
+
+    @Override
+    public void close() {
+        queue.shutdown();
+    }
+
+    @Override
+    public void abort() {
+        queue.shutdown();
+        queue.clear();
+    }
+
+    @Override
+    public void compress() {
+        // frames here never reach a socket
+    }
+
+    @Override
+    public int queued() {
+        return queue.size();
+    }
+
+    // Copies every queued frame once, as the kernel would, so the JIT cannot skip producing them
+    int drain() {
+        Frame.Format format = queue.format;
+        int drained = 0;
+        for (Frame f; (f = queue.poll()) != null; drained++) {
+            ByteBuffer src = f.buffer(format);
+            SINK.clear();
+            if (src.remaining() > SINK.capacity()) src.limit(src.position() + SINK.capacity());
+            SINK.put(src);
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,133 @@
+package sb.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The search index on the sequencer's path and its queries. Chat lines are drawn from a skewed
+// vocabulary, so a few words are everywhere and most are rare. The indexes run past their window,
+// so sweeps of evicted postings are part of the per-line cost; the query index is filled four
+// times over before searching.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchIndexBenchmark {
+
+    @Param({"8192", "65536"})
+    int window;
+
+    private String[] vocabulary;
+    private String[] lines;
+    private SearchIndex live;
+    private SearchIndex full;
+    private Room indexed;
+    private Room plain;
+    private long seq;
+    private SearchIndex.Query common, rare, twoWords, from, prefix, before;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        vocabulary = new String[5_000];
+        String[] syllables = {"ka", "lo", "mi", "ne", "su", "ta", "ri", "po", "de", "an", "el", "or", "um", "zy"};
+        for (int i = 0; i < vocabulary.length; i++) {
+            StringBuilder w = new StringBuilder();
+            for (int n = 2 + random.nextInt(3); n > 0; n--) w.append(syllables[random.nextInt(syllables.length)]);
+            vocabulary[i] = w.append(i).toString();
+        }
+        lines = new String[8_192];
+        for (int i = 0; i < lines.length; i++) {
+            StringBuilder line = new StringBuilder("user" + random.nextInt(50) + ":");
+            for (int n = 5 + random.nextInt(12); n > 0; n--) {
+                line.append(' ').append(vocabulary[(int) (vocabulary.length * Math.pow(random.nextDouble(), 3))]);
+            }
+            lines[i] = line.toString();
+        }
+
+        live = new SearchIndex(window);
+        full = new SearchIndex(window);
+        int count = window * 4;
+        for (int i = 0; i < count; i++) full.add(i + 1, lines[i % lines.length]);
+        indexed = room(true);
+        plain = room(false);
+
+        String c = vocabulary[0];
+        common = SearchIndex.Query.parse(c);
+        rare = SearchIndex.Query.parse(vocabulary[vocabulary.length / 2]);
+        twoWords = SearchIndex.Query.parse(c + " " + vocabulary[1]);
+        from = SearchIndex.Query.parse(c + " from:user7");
+        prefix = SearchIndex.Query.parse(c.substring(0, 2) + "*");
+        before = SearchIndex.Query.parse("from:user7 before:" + (count - window / 2));
+    }
+
+    private Room room(boolean search) throws IOException {
+        return new Room("index-bench", ServerOptions.parse(new String[]{
+                "--persist=false", "--history-capacity=" + window, "--search=" + search}));
+    }
+
+    private String next() {
+        return lines[(int) (++seq % lines.length)];
+    }
+
+    @Benchmark
+    public long add() {
+        live.add(++seq, lines[(int) (seq % lines.length)]);
+        return seq;
+    }
+
+    // Room.sequence, the sequencer's per-line work (history, read tracking, index, console)
+    @Benchmark
+    public Frame sequenceIndexed() {
+        return indexed.sequence(next(), null, OutboundQueue.Kind.MESSAGE, false);
+    }
+
+    @Benchmark
+    public Frame sequenceNotIndexed() {
+        return plain.sequence(next(), null, OutboundQueue.Kind.MESSAGE, false);
+    }
+
+    @Benchmark
+    public int searchCommon() {
+        return full.search(common, SearchIndex.PAGE).total;
+    }
+
+    @Benchmark
+    public int searchRare() {
+        return full.search(rare, SearchIndex.PAGE).total;
+    }
+
+    @Benchmark
+    public int searchTwoWords() {
+        return full.search(twoWords, SearchIndex.PAGE).total;
+    }
+
+    @Benchmark
+    public int searchFrom() {
+        return full.search(from, SearchIndex.PAGE).total;
+    }
+
+    @Benchmark
+    public int searchPrefix() {
+        return full.search(prefix, SearchIndex.PAGE).total;
+    }
+
+    @Benchmark
+    public int searchBefore() {
+        return full.search(before, SearchIndex.PAGE).total;
+    }
+}
@@ -0,0 +1,140 @@
+package sb.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+// The TLS port against plaintext: connection setup (a full handshake with a fresh client context
+// each time, or a resumed one through a shared context) and one sender's lines through a room to
+// one receiver. Needs syncbridge-test.p12 and syncbridge-test-trust.p12 in the working directory.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlsBenchmark {
+
+    private static final int BATCH = 256;
+
+    @Param({"plain", "tls"})
+    String transport;
+
+    private int port;
+    private SSLSocketFactory shared;
+    private Socket sender;
+    private Socket receiver;
+    private OutputStream out;
+    private final AtomicLong received = new AtomicLong();
+    private long sent;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        boolean tls = transport.equals("tls");
+        port = tls ? BenchServer.startTls() : BenchServer.start();
+        shared = tls ? BenchServer.clientTls() : null;
+        sender = connect(shared);
+        receiver = connect(shared);
+
+        String room = "tls-" + transport;
+        String nick = "bench-tx-" + transport;
+        CountDownLatch ready = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(receiver.getInputStream(), StandardCharsets.UTF_8));
+                for (String line; (line = in.readLine()) != null; ) {
+                    if (line.contains(nick + " joined #")) ready.countDown();
+                    else if (line.startsWith("[#" + room + "] " + nick + ": ")) received.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // closed at the end of the trial
+            }
+        }, "sb-bench-rx");
+        reader.setDaemon(true);
+        reader.start();
+        receiver.getOutputStream().write(("NICK:bench-rx-" + transport + "\nJOIN:" + room + "\n").getBytes(StandardCharsets.UTF_8));
+        BenchServer.sleep(200);
+
+        out = new BufferedOutputStream(sender.getOutputStream(), 64 * 1024);
+        out.write(("NICK:" + nick + "\nJOIN:" + room + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        Thread drain = new Thread(() -> {
+            try {
+                sender.getInputStream().transferTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                // closed at the end of the trial
+            }
+        }, "sb-bench-tx");
+        drain.setDaemon(true);
+        drain.start();
+        if (!ready.await(10, TimeUnit.SECONDS)) throw new IllegalStateException("The receiver did not see the sender join");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.close();
+        receiver.close();
+    }
+
+    // Plain connect, or a full handshake: every TLS connection gets a fresh client context
+    @Benchmark
+    public void connect() throws IOException {
+        connect(shared == null ? null : BenchServer.clientTls()).close();
+    }
+
+    @Benchmark
+    public void connectResumed() throws IOException {
+        connect(shared).close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long relay() throws IOException {
+        byte[] line = ("MSG:" + FrameBenchmark.MSG + "\n").getBytes(StandardCharsets.UTF_8);
+        for (int m = 0; m < BATCH; m++) out.write(line);
+        out.flush();
+        sent += BATCH;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (received.get() < sent) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("The receiver stopped getting lines");
+            Thread.onSpinWait();
+        }
+        return sent;
+    }
+
+    private Socket connect(SSLSocketFactory factory) throws IOException {
+        if (factory == null) {
+            Socket s = new Socket("127.0.0.1", port);
+            s.setTcpNoDelay(true);
+            return s;
+        }
+        SSLSocket s = (SSLSocket) factory.createSocket("127.0.0.1", port);
+        s.setTcpNoDelay(true);
+        s.startHandshake();
+        return s;
+    }
+}
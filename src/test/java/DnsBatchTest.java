@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DnsBatchTest {
+
+    @Test
+    void readsTheFirstWordOfEveryLineSkippingCommentsAndBlanks() {
+        List<String> hosts = DnsBatch.readHosts(List.of(
+                "# a hosts file",
+                "",
+                "127.0.0.1   localhost localhost.localdomain",
+                "   example.com  # trailing comment",
+                "::1\tip6-localhost",
+                "   ",
+                "#127.0.0.2 commented out"));
+        assertEquals(List.of("127.0.0.1", "example.com", "::1"), hosts);
+    }
+
+    @Test
+    void csvQuotesOnlyWhatNeedsIt() {
+        assertEquals("", DnsBatch.csv(null));
+        assertEquals("plain.example", DnsBatch.csv("plain.example"));
+        assertEquals("\"a,b\"", DnsBatch.csv("a,b"));
+        assertEquals("\"say \"\"hi\"\"\"", DnsBatch.csv("say \"hi\""));
+        assertEquals("\"two\nlines\"", DnsBatch.csv("two\nlines"));
+        assertEquals("\"cr\rhere\"", DnsBatch.csv("cr\rhere"));
+    }
+
+    @Test
+    void jsonEscapesQuotesBackslashesAndControlCharacters() {
+        assertEquals("\"plain\"", DnsBatch.json("plain"));
+        assertEquals("\"a\\\"b\\\\c\"", DnsBatch.json("a\"b\\c"));
+        assertEquals("\"tab\\u0009nl\\u000a\"", DnsBatch.json("tab\tnl\n"));
+        assertEquals("\"ünï\"", DnsBatch.json("ünï"));
+    }
+
+    @Test
+    void percentilesAreNearestRank() {
+        long[] micros = new long[100];
+        for (int i = 0; i < micros.length; i++) micros[i] = 100 - i; // 1..100 us, unsorted
+        DnsBatch.Summary s = new DnsBatch.Summary(100, 0, 0, 1_000_000_000L, micros, null);
+        assertEquals("50us", s.percentile(0.50));
+        assertEquals("90us", s.percentile(0.90));
+        assertEquals("99us", s.percentile(0.99));
+        assertEquals("100us", s.percentile(1.0));
+        assertEquals("1us", s.percentile(0.0));
+        assertEquals(100, s.queriesPerSecond(), 1e-9);
+    }
+
+    @Test
+    void percentilesSwitchToMillisecondsAndHandleNoHosts() {
+        DnsBatch.Summary s = new DnsBatch.Summary(1, 0, 0, 1, new long[] {12_345}, null);
+        assertEquals("12.3ms", s.percentile(0.5));
+        assertEquals("-", new DnsBatch.Summary(0, 0, 0, 1, new long[0], null).percentile(0.5));
+    }
+
+    @Test
+    void runWritesOneRowPerAddressAndCountsFailures() throws IOException, InterruptedException {
+        DnsLookupEngine engine = new DnsLookupEngine(300, 1000, 16);
+        try {
+            DnsBatch batch = new DnsBatch(engine, 4, false, new int[0], DnsBatch.Format.CSV);
+            StringWriter out = new StringWriter();
+            DnsBatch.Summary summary = batch.run(List.of("127.0.0.1", "127.0.0.1", "no-such-host.invalid"), out, p -> {});
+            String[] lines = out.toString().split("\n");
+            assertEquals("input,address,host_name,canonical_name,reachable,micros,error", lines[0]);
+            assertEquals(4, lines.length);
+            assertEquals(3, summary.hosts);
+            assertEquals(1, summary.failed);
+            long ok = List.of(lines).stream().filter(l -> l.startsWith("127.0.0.1,127.0.0.1,")).count();
+            assertEquals(2, ok);
+            assertTrue(out.toString().contains("no-such-host.invalid,,,,,"));
+        } finally {
+            engine.shutdown();
+        }
+    }
+}
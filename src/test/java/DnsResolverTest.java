@@ -0,0 +1,163 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DnsResolverTest {
+
+    private static final int QUESTION_NAME = 12; // where the question's name starts, for pointers
+
+    @Test
+    void queryParsesBackToItsQuestion() throws IOException {
+        DnsResolver.Message m = DnsResolver.Message.parse(ByteBuffer.wrap(
+                DnsResolver.encodeQuery(0x1234, "www.example.com", DnsResolver.Type.AAAA)));
+        assertEquals(0x1234, m.id);
+        assertEquals("www.example.com", m.question);
+        assertEquals(DnsResolver.Type.AAAA.code, m.qtype);
+        assertTrue(m.records.isEmpty());
+    }
+
+    @Test
+    void answersFollowCompressionPointers() throws IOException {
+        Message msg = new Message(7, 0x8180, "www.example.com", 1);
+        msg.record(pointer(QUESTION_NAME), 5, 300, concat(label("web"), pointer(QUESTION_NAME + 4))); // web.example.com
+        int webName = msg.size() - 6;
+        msg.record(pointer(webName), 1, 60, new byte[] {93, (byte) 184, (byte) 216, 34});
+        msg.record(pointer(QUESTION_NAME + 4), 15, 3600, concat(new byte[] {0, 10}, label("mail"), pointer(QUESTION_NAME + 4)));
+        msg.record(pointer(QUESTION_NAME + 4), 16, 1, concat(text("v=spf1 -all"), text("x")));
+
+        DnsResolver.Message m = DnsResolver.Message.parse(msg.buffer());
+        assertEquals(7, m.id);
+        assertEquals(DnsResolver.NOERROR, m.rcode);
+        assertEquals("www.example.com", m.question);
+        List<DnsResolver.Record> r = m.records;
+        assertEquals(4, r.size());
+        assertEquals("www.example.com", r.get(0).name);
+        assertEquals("web.example.com", r.get(0).data);
+        assertEquals("web.example.com", r.get(1).name);
+        assertEquals("93.184.216.34", r.get(1).data);
+        assertEquals(60, r.get(1).ttl);
+        assertEquals("example.com", r.get(2).name);
+        assertEquals("10 mail.example.com", r.get(2).data);
+        assertEquals("\"v=spf1 -all\" \"x\"", r.get(3).data);
+    }
+
+    @Test
+    void truncatedAnswerStopsAfterTheQuestion() throws IOException {
+        Message msg = new Message(9, 0x8380, "big.example.com", 16); // TC set
+        msg.header(6, 3); // claims answers that are not there
+        DnsResolver.Message m = DnsResolver.Message.parse(msg.buffer());
+        assertTrue(m.truncated);
+        assertEquals("big.example.com", m.question);
+        assertTrue(m.records.isEmpty());
+    }
+
+    @Test
+    void nxdomainHasItsCode() throws IOException {
+        DnsResolver.Message m = DnsResolver.Message.parse(new Message(1, 0x8183, "nope.example", 1).buffer());
+        assertEquals(DnsResolver.NXDOMAIN, m.rcode);
+    }
+
+    @Test
+    void pointerLoopIsRejected() {
+        Message msg = new Message(2, 0x8180, "a.example", 1);
+        int self = msg.size();
+        msg.record(pointer(self), 1, 1, new byte[4]);
+        IOException e = assertThrows(IOException.class, () -> DnsResolver.Message.parse(msg.buffer()));
+        assertTrue(e.getMessage().contains("loop"));
+    }
+
+    @Test
+    void recordPastTheEndIsRejected() {
+        Message msg = new Message(3, 0x8180, "a.example", 1);
+        msg.record(pointer(QUESTION_NAME), 1, 1, new byte[4]);
+        ByteBuffer b = msg.buffer();
+        b.limit(b.limit() - 2);
+        assertThrows(IOException.class, () -> DnsResolver.Message.parse(b));
+    }
+
+    @Test
+    void cutOffMessagesAreRejected() {
+        byte[] full = new Message(4, 0x8180, "a.example", 1).bytes();
+        for (int len = 0; len < full.length - 2; len++) { // the question's class is not read
+            ByteBuffer b = ByteBuffer.wrap(full, 0, len).slice();
+            assertThrows(IOException.class, () -> DnsResolver.Message.parse(b), "length " + len);
+        }
+    }
+
+    @Test
+    void reverseNamesAreNibbledOrOctetReversed() throws IOException {
+        assertEquals("4.3.2.1.in-addr.arpa", DnsResolver.reverseName(java.net.InetAddress.getByName("1.2.3.4")));
+        assertTrue(DnsResolver.reverseName(java.net.InetAddress.getByName("::1")).startsWith("1.0.0.0."));
+    }
+
+    // A response built by hand: header, one question, then the records added
+    private static final class Message {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private byte[] header;
+        private int answers;
+
+        Message(int id, int flags, String question, int qtype) {
+            header = new byte[12];
+            ByteBuffer.wrap(header).putShort((short) id).putShort((short) flags).putShort((short) 1);
+            out.writeBytes(header);
+            ByteBuffer q = ByteBuffer.allocate(300);
+            DnsResolver.putName(q, question);
+            q.putShort((short) qtype).putShort((short) 1);
+            out.write(q.array(), 0, q.position());
+        }
+
+        void header(int offset, int value) {
+            header = bytes();
+            ByteBuffer.wrap(header).putShort(offset, (short) value);
+            out.reset();
+            out.writeBytes(header);
+        }
+
+        void record(byte[] name, int type, int ttl, byte[] rdata) {
+            out.writeBytes(name);
+            out.writeBytes(ByteBuffer.allocate(10).putShort((short) type).putShort((short) 1).putInt(ttl)
+                    .putShort((short) rdata.length).array());
+            out.writeBytes(rdata);
+            header(6, ++answers);
+        }
+
+        int size() {
+            return out.size();
+        }
+
+        byte[] bytes() {
+            return out.toByteArray();
+        }
+
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(bytes());
+        }
+    }
+
+    private static byte[] pointer(int offset) {
+        return new byte[] {(byte) (0xC0 | offset >> 8), (byte) offset};
+    }
+
+    private static byte[] label(String s) {
+        byte[] b = s.getBytes(StandardCharsets.US_ASCII);
+        return concat(new byte[] {(byte) b.length}, b);
+    }
+
+    private static byte[] text(String s) {
+        return label(s);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts) out.writeBytes(p);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,134 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// DnsResolver against the in-process DnsStubServer: UDP answers, ID matching, truncation and the
+// TCP fallback
+class DnsStubServerTest {
+
+    private DnsStubServer stub;
+    private DnsResolver resolver;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        stub = new DnsStubServer(0, 512);
+        stub.add("www.test", DnsResolver.Type.A, 300, "192.0.2.10")
+            .add("www.test", DnsResolver.Type.AAAA, 300, "2001:db8::10")
+            .add("alias.test", DnsResolver.Type.CNAME, 60, "www.test.")
+            .add("test", DnsResolver.Type.MX, 3600, "10 mail.test");
+        for (int i = 0; i < 30; i++) {
+            stub.add("big.test", DnsResolver.Type.TXT, 60, "record " + i + " " + "x".repeat(60));
+        }
+        for (int i = 0; i < 200; i++) {
+            stub.add("host" + i + ".test", DnsResolver.Type.A, 60, "10.0." + (i / 256) + "." + (i % 256));
+        }
+        resolver = new DnsResolver(new InetSocketAddress(InetAddress.getLoopbackAddress(), stub.port()), 2000, 64);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        resolver.close();
+        stub.close();
+    }
+
+    @Test
+    void answersOverUdp() {
+        DnsResolver.Answer a = resolver.query("www.test", DnsResolver.Type.A).join();
+        assertEquals("NOERROR", a.status());
+        assertFalse(a.tcp);
+        assertEquals(1, a.records.size());
+        assertEquals("192.0.2.10", a.records.get(0).data);
+        assertEquals(300, a.records.get(0).ttl);
+
+        assertEquals("10 mail.test", resolver.query("test.", DnsResolver.Type.MX).join().records.get(0).data);
+        assertEquals("www.test", resolver.query("alias.test", DnsResolver.Type.CNAME).join().records.get(0).data);
+    }
+
+    @Test
+    void unknownNamesAreNxdomain() {
+        DnsResolver.Answer a = resolver.query("nope.test", DnsResolver.Type.A).join();
+        assertEquals(DnsResolver.NXDOMAIN, a.rcode);
+        assertTrue(a.records.isEmpty());
+    }
+
+    @Test
+    void truncatedAnswersAreAskedAgainOverTcp() {
+        DnsResolver.Answer a = resolver.query("big.test", DnsResolver.Type.TXT).join();
+        assertTrue(a.tcp);
+        assertEquals(30, a.records.size());
+        assertTrue(a.records.get(29).data.startsWith("\"record 29 "));
+    }
+
+    @Test
+    void concurrentQueriesGetTheirOwnAnswers() {
+        List<CompletableFuture<DnsResolver.Answer>> answers = new ArrayList<>();
+        for (int i = 0; i < 200; i++) answers.add(resolver.query("host" + i + ".test", DnsResolver.Type.A));
+        for (int i = 0; i < 200; i++) {
+            DnsResolver.Answer a = answers.get(i).join();
+            assertEquals("host" + i + ".test", a.name);
+            assertEquals("10.0." + (i / 256) + "." + (i % 256), a.records.get(0).data);
+        }
+    }
+
+    // An answer with the right ID but another question is not taken for the real one
+    @Test
+    void answersToAnotherQuestionAreIgnored() throws Exception {
+        try (DatagramChannel server = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             DnsResolver r = new DnsResolver((InetSocketAddress) server.getLocalAddress(), 2000, 4)) {
+            CompletableFuture<DnsResolver.Answer> answer = r.query("real.test", DnsResolver.Type.A);
+            ByteBuffer query = ByteBuffer.allocate(512);
+            SocketAddress client = server.receive(query);
+            query.flip();
+
+            ByteBuffer spoofed = reply(query);
+            spoofed.put(13, (byte) 'f'); // "real" -> "feal"
+            server.send(spoofed, client);
+            Thread.sleep(100);
+            assertFalse(answer.isDone());
+
+            server.send(reply(query), client);
+            assertEquals("real.test", answer.get(2, TimeUnit.SECONDS).name);
+        }
+    }
+
+    @Test
+    void silentServersTimeOutAfterOneRetry() throws Exception {
+        try (DatagramChannel server = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             DnsResolver r = new DnsResolver((InetSocketAddress) server.getLocalAddress(), 300, 4)) {
+            CompletableFuture<DnsResolver.Answer> answer = r.query("quiet.test", DnsResolver.Type.A);
+            ByteBuffer buf = ByteBuffer.allocate(512);
+            server.receive(buf);
+            buf.clear();
+            server.receive(buf); // the retry
+            CompletionException e = assertThrows(CompletionException.class, answer::join);
+            assertInstanceOf(SocketTimeoutException.class, e.getCause());
+        }
+    }
+
+    // The query turned into an empty answer: response flag set, no additional records
+    private static ByteBuffer reply(ByteBuffer query) {
+        ByteBuffer b = ByteBuffer.allocate(query.remaining());
+        b.put(query.duplicate()).flip();
+        b.putShort(2, (short) 0x8180).putShort(10, (short) 0);
+        return b;
+    }
+}
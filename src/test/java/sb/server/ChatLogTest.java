@@ -0,0 +1,138 @@
+package sb.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatLogTest {
+
+    private static final int SEGMENT = 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void rollsOverIntoNewSegments() throws IOException {
+        try (ChatLog log = open()) {
+            appendLines(log, 1, 3000);
+            assertEquals(1, log.firstSeq());
+            assertEquals(3000, log.lastSeq());
+            assertLines(log, 1, 3000);
+        }
+        assertTrue(segmentFiles() >= 3, "1000 byte lines fill a 1 MB segment after about a thousand");
+    }
+
+    @Test
+    void recoversWhatWasWrittenBeforeClose() throws IOException {
+        try (ChatLog log = open()) {
+            appendLines(log, 1, 2500);
+        }
+        try (ChatLog log = open()) {
+            assertEquals(1, log.firstSeq());
+            assertEquals(2500, log.lastSeq());
+            assertLines(log, 1, 2500);
+            appendLines(log, 2501, 2600);
+            assertLines(log, 1, 2600);
+        }
+    }
+
+    @Test
+    void readsEveryOlderSegmentAgainAfterUnmappingIt() throws IOException {
+        try (ChatLog log = open()) {
+            appendLines(log, 1, 8000);
+            assertLines(log, 1, 8000);
+            assertLines(log, 1, 8000);
+            List<Frame> chunks = new ArrayList<>();
+            log.chunks(1, 8000, chunks::add);
+            assertTrue(chunks.size() > 4);
+            int bytes = 0;
+            for (Frame f : chunks) bytes += f.buffer().remaining();
+            assertEquals(8000 * line(1).remaining(), bytes);
+        }
+    }
+
+    @Test
+    void skipsLinesThatNeverReachedTheLog() throws IOException {
+        try (ChatLog log = open()) {
+            appendLines(log, 1, 5);
+            appendLines(log, 7, 8); // 6 failed to be written
+            assertEquals(8, log.lastSeq());
+            assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 7L, 8L), seqs(log, 1, 8));
+        }
+        try (ChatLog log = open()) {
+            assertEquals(8, log.lastSeq());
+            assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 7L, 8L), seqs(log, 1, 8));
+            appendLines(log, 9, 9);
+            assertEquals(9, log.lastSeq());
+        }
+    }
+
+    @Test
+    void dropsTheEmptySegmentLeftByAGapAtTheStart() throws IOException {
+        try (ChatLog log = open()) {
+            appendLines(log, 3, 4); // 1 and 2 failed
+            assertEquals(3, log.firstSeq());
+            assertEquals(List.of(3L, 4L), seqs(log, 1, 4));
+        }
+        assertEquals(1, segmentFiles());
+    }
+
+    @Test
+    void rejectsLinesOutOfOrder() throws IOException {
+        try (ChatLog log = open()) {
+            appendLines(log, 1, 3);
+            assertThrows(IllegalStateException.class, () -> log.append(3, 1, line(3)));
+        }
+    }
+
+    private ChatLog open() throws IOException {
+        return ChatLog.open(dir, SEGMENT, ChatLog.Fsync.OS, 0);
+    }
+
+    private static void appendLines(ChatLog log, long from, long to) throws IOException {
+        for (long seq = from; seq <= to; seq++) log.append(seq, seq, line(seq));
+    }
+
+    // 1000 bytes with the separator, and the seq at the front
+    private static ByteBuffer line(long seq) {
+        String text = String.format("%010d", seq) + "x".repeat(989) + "\n";
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertLines(ChatLog log, long from, long to) {
+        List<Long> seen = new ArrayList<>();
+        log.forEach(from, to, (seq, time, frame) -> {
+            assertEquals(seq, time);
+            assertEquals(line(seq), frame.buffer());
+            seen.add(seq);
+        });
+        assertEquals(to - from + 1, seen.size());
+        for (int i = 0; i < seen.size(); i++) assertEquals(from + i, seen.get(i));
+    }
+
+    private static List<Long> seqs(ChatLog log, long from, long to) {
+        List<Long> seen = new ArrayList<>();
+        log.forEach(from, to, (seq, time, frame) -> seen.add(seq));
+        return seen;
+    }
+
+    private int segmentFiles() throws IOException {
+        int n = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path ignored : files) n++;
+        }
+        return n;
+    }
+}
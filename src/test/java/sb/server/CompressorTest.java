@@ -0,0 +1,107 @@
+package sb.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import sb.protocol.BinaryProtocol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompressorTest {
+
+    private final Compressor compressor = new Compressor();
+    private final Inflater inflater = new Inflater(true); // the client's, one per connection
+
+    @AfterEach
+    void tearDown() {
+        compressor.close();
+        inflater.end();
+        Compressor.minBytes = 512;
+    }
+
+    @Test
+    void batchesRoundTripThroughOneInflater() throws DataFormatException {
+        for (int batch = 0; batch < 20; batch++) {
+            ByteBuffer[] gather = new ByteBuffer[8];
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            for (int i = 0; i < 8; i++) {
+                gather[i] = frame("#" + (batch * 8 + i) + " alice: the same words again and again " + "z".repeat(40) + batch);
+                expected.writeBytes(bytes(gather[i]));
+            }
+            assertEquals(1, compressor.compress(gather, 0, 8));
+            assertArrayEquals(expected.toByteArray(), inflate(gather[0]));
+            for (int i = 1; i < 8; i++) assertNull(gather[i]);
+        }
+    }
+
+    @Test
+    void laterBatchesShrinkAgainstTheSharedDictionary() {
+        Compressor.minBytes = 0;
+        ByteBuffer[] first = {frame("x".repeat(40) + " a line that will come again")};
+        ByteBuffer[] second = {frame("x".repeat(40) + " a line that will come again")};
+        compressor.compress(first, 0, 1);
+        compressor.compress(second, 0, 1);
+        assertTrue(second[0].remaining() < first[0].remaining());
+    }
+
+    @Test
+    void smallBatchesGoOutAsTheyAre() {
+        ByteBuffer small = frame("hi");
+        ByteBuffer[] gather = {small};
+        assertEquals(1, compressor.compress(gather, 0, 1));
+        assertSame(small, gather[0]);
+    }
+
+    @Test
+    void framesBeforeFromAndPastTheInflatedLimitAreKept() throws DataFormatException {
+        ByteBuffer head = frame("header frame, not compressed");
+        ByteBuffer a = frame("y".repeat(600));
+        ByteBuffer big = ByteBuffer.allocate(BinaryProtocol.MAX_INFLATED);
+        ByteBuffer[] gather = {head, a, big, null};
+        assertEquals(3, compressor.compress(gather, 1, 3));
+        assertSame(head, gather[0]);
+        assertArrayEquals(bytes(a.rewind()), inflate(gather[1]));
+        assertSame(big, gather[2]);
+        assertNull(gather[3]);
+    }
+
+    // Checks the DEFLATED header and inflates its payload
+    private byte[] inflate(ByteBuffer frame) throws DataFormatException {
+        assertEquals(BinaryProtocol.DEFLATED, frame.get());
+        int len = frame.getInt();
+        long size = frame.getLong();
+        frame.getInt();
+        assertEquals(len, frame.remaining());
+        byte[] in = new byte[len];
+        frame.get(in);
+        inflater.setInput(in);
+        byte[] out = new byte[(int) size];
+        int n = 0;
+        while (n < out.length) {
+            int r = inflater.inflate(out, n, out.length - n);
+            if (r == 0 && inflater.needsInput()) break;
+            n += r;
+        }
+        assertEquals(size, n);
+        return out;
+    }
+
+    private static ByteBuffer frame(String text) {
+        return ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] bytes(ByteBuffer b) {
+        byte[] out = new byte[b.remaining()];
+        b.duplicate().get(out);
+        return out;
+    }
+}
@@ -0,0 +1,91 @@
+package sb.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchIndexTest {
+
+    @Test
+    void parsesWordsPrefixesSenderAndCursor() {
+        SearchIndex.Query q = SearchIndex.Query.parse("  Hello wor* FROM:Bob before:1234 ");
+        assertEquals(List.of("hello"), q.words);
+        assertEquals(List.of("wor"), q.prefixes);
+        assertEquals("bob", q.sender);
+        assertEquals(1234, q.before);
+    }
+
+    @Test
+    void quotedSenderKeepsItsSpaces() {
+        SearchIndex.Query q = SearchIndex.Query.parse("from:\"John Smith\" lunch");
+        assertEquals("john smith", q.sender);
+        assertEquals(List.of("lunch"), q.words);
+    }
+
+    @Test
+    void wordsAreSplitOnPunctuationAndLowerCased() {
+        SearchIndex.Query q = SearchIndex.Query.parse("don't Ünïcode-ok");
+        assertEquals(List.of("don", "t", "ünïcode", "ok"), q.words);
+    }
+
+    @Test
+    void badCursorIsIgnoredAndBareFromIsAWord() {
+        SearchIndex.Query q = SearchIndex.Query.parse("before:soon from:");
+        assertEquals(Long.MAX_VALUE, q.before);
+        assertNull(q.sender);
+        assertEquals(List.of("from"), q.words);
+        assertTrue(SearchIndex.Query.parse("before:12 ...").isEmpty());
+    }
+
+    @Test
+    void findsNewestFirstAndPagesWithBefore() {
+        SearchIndex index = new SearchIndex(1024);
+        for (long seq = 1; seq <= 50; seq++) {
+            index.add(seq, (seq % 2 == 0 ? "alice" : "bob") + ": line " + seq + (seq % 5 == 0 ? " fizz" : ""));
+        }
+        SearchIndex.Result r = index.search(SearchIndex.Query.parse("fizz"), 3);
+        assertEquals(10, r.total);
+        assertArrayEquals(new long[] {50, 45, 40}, r.seqs);
+
+        r = index.search(SearchIndex.Query.parse("fizz from:alice before:40"), 10);
+        assertArrayEquals(new long[] {30, 20, 10}, r.seqs);
+
+        r = index.search(SearchIndex.Query.parse("fi* from:bob"), 10);
+        assertArrayEquals(new long[] {45, 35, 25, 15, 5}, r.seqs);
+    }
+
+    @Test
+    void sendersWithSpacesAreFound() {
+        SearchIndex index = new SearchIndex(1024);
+        index.add(1, "John Smith: hello");
+        index.add(2, "john: hello");
+        assertArrayEquals(new long[] {1}, index.search(SearchIndex.Query.parse("from:\"john smith\""), 10).seqs);
+    }
+
+    @Test
+    void linesThatLeftTheRingAreNotFound() {
+        SearchIndex index = new SearchIndex(16);
+        for (long seq = 1; seq <= 100; seq++) index.add(seq, "bob: word" + (seq % 3) + " common");
+        SearchIndex.Result r = index.search(SearchIndex.Query.parse("common"), 100);
+        assertEquals(16, r.total);
+        assertEquals(100, r.seqs[0]);
+        assertEquals(85, r.seqs[15]);
+        assertEquals(0, index.search(SearchIndex.Query.parse("common before:85"), 100).total);
+        assertEquals(0, index.search(SearchIndex.Query.parse("nothing"), 100).total);
+    }
+
+    @Test
+    void outOfOrderLinesAreStillSorted() {
+        SearchIndex index = new SearchIndex(1024);
+        index.add(1, "bob: x");
+        index.add(3, "bob: x");
+        index.add(2, "bob: x");
+        index.add(2, "bob: x");
+        assertArrayEquals(new long[] {3, 2, 1}, index.search(SearchIndex.Query.parse("x"), 10).seqs);
+    }
+}